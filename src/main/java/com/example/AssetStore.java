@@ -0,0 +1,187 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Costume and sound files, stored once on disk by content hash and shared by every project.
+ *
+ * An asset's id is the SHA-256 of its bytes plus an extension for its media type, e.g.
+ * {@code 3f9a...c2.png}. Uploading the same file again, from any project, finds the existing copy and
+ * stores nothing. Since an id always names the same bytes, assets never change and clients may cache
+ * them forever. Files live in {@code <dir>/<first two hex digits>/<id>}, so no directory grows too large.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.assets.dir} - where assets are stored (default "assets")</li>
+ *     <li>{@code jscratch.assets.maxBytes} - largest accepted asset (default 10 MB)</li>
+ * </ul>
+ */
+public class AssetStore {
+
+    private static final Logger LOGGER = Logger.getLogger(AssetStore.class.getName());
+
+    private static final Pattern ASSET_ID_PATTERN = Pattern.compile("^[0-9a-f]{64}\\.[a-z0-9]{1,5}$");
+    private static final Map<String, String> EXTENSION_BY_TYPE = new HashMap<>();
+    private static final Map<String, String> TYPE_BY_EXTENSION = new HashMap<>();
+
+    static {
+        register("image/png", "png");
+        register("image/jpeg", "jpg");
+        register("image/gif", "gif");
+        register("image/svg+xml", "svg");
+        register("image/webp", "webp");
+        register("audio/wav", "wav");
+        register("audio/mpeg", "mp3");
+        register("audio/ogg", "ogg");
+    }
+
+    private static void register(String contentType, String extension) {
+        EXTENSION_BY_TYPE.put(contentType, extension);
+        TYPE_BY_EXTENSION.put(extension, contentType);
+    }
+
+    /** A stored asset. {@code deduplicated} is true if an identical file was already stored. */
+    public static class Asset {
+        public final String id;
+        public final long size;
+        public final String contentType;
+        public final boolean deduplicated;
+
+        Asset(String id, long size, String contentType, boolean deduplicated) {
+            this.id = id;
+            this.size = size;
+            this.contentType = contentType;
+            this.deduplicated = deduplicated;
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+
+    public AssetStore(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static AssetStore fromSystemProperties() {
+        return new AssetStore(
+            Path.of(System.getProperty("jscratch.assets.dir", "assets")),
+            Long.getLong("jscratch.assets.maxBytes", 10L * 1024 * 1024));
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** True if assets of this media type (parameters such as charset are ignored) can be stored. */
+    public static boolean isSupportedType(String contentType) {
+        return contentType != null && EXTENSION_BY_TYPE.containsKey(baseType(contentType));
+    }
+
+    /** The media type of an asset, from its id. */
+    public static String contentTypeOf(String assetId) {
+        String type = TYPE_BY_EXTENSION.get(assetId.substring(assetId.lastIndexOf('.') + 1));
+        return type != null ? type : "application/octet-stream";
+    }
+
+    /**
+     * Reads an asset from {@code in} (at most {@code maxBytes}) and stores it unless an identical one is
+     * stored already. The bytes are hashed while they are written to a temporary file, so the upload is
+     * never held in memory.
+     *
+     * @throws LimitedInputStream.LimitExceededException if the asset is larger than {@code maxBytes}
+     * @throws IllegalArgumentException if the media type is not supported
+     */
+    public Asset store(InputStream in, String contentType) throws IOException {
+        if (!isSupportedType(contentType)) {
+            throw new IllegalArgumentException("Unsupported asset type: " + contentType);
+        }
+        String type = baseType(contentType);
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "upload-", ".tmp");
+        try {
+            MessageDigest sha256 = ContentHash.newDigest();
+            long size;
+            try (InputStream source = new DigestInputStream(new LimitedInputStream(in, maxBytes), sha256);
+                 OutputStream out = Files.newOutputStream(temp, StandardOpenOption.WRITE)) {
+                size = source.transferTo(out);
+            }
+            String id = ContentHash.toHex(sha256.digest()) + "." + EXTENSION_BY_TYPE.get(type);
+            Path target = pathFor(id);
+            if (Files.exists(target)) {
+                return new Asset(id, size, type, true);
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                return new Asset(id, size, type, true); // Same bytes uploaded concurrently; either copy will do
+            }
+            LOGGER.info("Stored asset " + id + " (" + size + " bytes)");
+            return new Asset(id, size, type, false);
+        } finally {
+            Files.deleteIfExists(temp); // Gone already if it was moved into place
+        }
+    }
+
+    /** The size of a stored asset, or -1 if there is no such asset (or the id is malformed). */
+    public long sizeOf(String assetId) throws IOException {
+        if (!isValidId(assetId)) {
+            return -1;
+        }
+        Path file = pathFor(assetId);
+        return Files.isRegularFile(file) ? Files.size(file) : -1;
+    }
+
+    /**
+     * Writes a stored asset to {@code out} with {@link FileChannel#transferTo}, so the file is not copied
+     * through a Java buffer where the target allows it. Returns false if there is no such asset.
+     */
+    public boolean transferTo(String assetId, OutputStream out) throws IOException {
+        if (!isValidId(assetId)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(pathFor(assetId), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    public static boolean isValidId(String assetId) {
+        return assetId != null && ASSET_ID_PATTERN.matcher(assetId).matches();
+    }
+
+    private Path pathFor(String assetId) {
+        return dir.resolve(assetId.substring(0, 2)).resolve(assetId);
+    }
+
+    private static String baseType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+    }
+}
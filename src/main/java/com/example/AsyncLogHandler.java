@@ -0,0 +1,414 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * A log handler that keeps disk I/O off the threads that log. {@link #publish} only puts the record
+ * into a fixed-size ring buffer; one background thread ("log-writer") formats the records and appends
+ * them to the log file in batches, one write per batch.
+ *
+ * Records are formatted on the writer thread, so a record costs the logging thread no string building
+ * beyond what the caller did itself; callers that log often pass a {@code Supplier}, which is not even
+ * called when the level is off.
+ *
+ * When the buffer is full (the disk cannot keep up), records below WARNING are dropped at once, and
+ * WARNING and SEVERE records wait up to {@code jscratch.log.blockMs} for room before they are dropped
+ * too. Logging never blocks a request for longer than that. The writer notes how many records were
+ * dropped in the log once there is room again.
+ *
+ * Sampling keeps only every Nth record below WARNING of a noisy logger (a "category"), e.g.
+ * {@code -Djscratch.log.sample=com.example.BlockNode=100,com.example.InputNode=1000}. A name also covers
+ * the loggers below it.
+ *
+ * The log file is rotated when it grows past {@code jscratch.log.maxBytes}: {@code server.log} becomes
+ * {@code server.log.1}, which becomes {@code server.log.2}, and so on up to {@code jscratch.log.files}.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.log.file} - the log file (default "server.log")</li>
+ *     <li>{@code jscratch.log.level} - lowest level logged (default INFO)</li>
+ *     <li>{@code jscratch.log.bufferRecords} - records the ring buffer holds, rounded up to a power of two (default 8192)</li>
+ *     <li>{@code jscratch.log.blockMs} - how long a WARNING or SEVERE record waits for room in a full buffer (default 50)</li>
+ *     <li>{@code jscratch.log.sample} - comma-separated {@code logger=N}: keep one in N records below WARNING (default none)</li>
+ *     <li>{@code jscratch.log.maxBytes} - size at which the log file is rotated (default 10485760)</li>
+ *     <li>{@code jscratch.log.files} - rotated files kept besides the current one (default 5)</li>
+ * </ul>
+ */
+public class AsyncLogHandler extends Handler {
+
+    private static final int BATCH_RECORDS = 1024;              // Records formatted into one write at most
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final Path file;
+    private final long maxBytes;
+    private final int files;
+    private final long blockNanos;
+    private final Map<String, Integer> sampleRates;
+
+    // Bounded lock-free ring buffer: many producers claim slots with a CAS on tail; the writer is the only consumer.
+    // sequences[i] says whose turn slot i is: equal to a position when a producer may fill it, position + 1 once filled.
+    private final int mask;
+    private final AtomicReferenceArray<Pending> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head; // Written by the writer thread only
+
+    private final Map<String, Sampler> samplers = new ConcurrentHashMap<>(); // Logger name -> its category's sampler
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private long droppedReported; // Writer thread only, like the two below
+    private long stampMillis = Long.MIN_VALUE;
+    private String stamp;
+
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closing;
+    private FileChannel channel; // Writer thread only, after construction
+    private long fileSize;
+
+    public AsyncLogHandler(Path file, int bufferRecords, long blockMillis, Map<String, Integer> sampleRates, long maxBytes, int files)
+            throws IOException {
+        this.file = file;
+        this.maxBytes = Math.max(1024, maxBytes);
+        this.files = Math.max(0, files);
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockMillis));
+        this.sampleRates = new HashMap<>(sampleRates);
+        int capacity = Integer.highestOneBit(Math.max(2, bufferRecords) - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        setFormatter(new SimpleFormatter()); // Only its formatMessage() is used, for parameters and resource bundles
+        openFile();
+        this.writer = new Thread(this::writeLoop, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static AsyncLogHandler fromSystemProperties() throws IOException {
+        AsyncLogHandler handler = new AsyncLogHandler(
+                Paths.get(System.getProperty("jscratch.log.file", "server.log")),
+                Integer.getInteger("jscratch.log.bufferRecords", 8192),
+                Long.getLong("jscratch.log.blockMs", 50L),
+                parseSampleRates(System.getProperty("jscratch.log.sample", "")),
+                Long.getLong("jscratch.log.maxBytes", 10L * 1024 * 1024),
+                Integer.getInteger("jscratch.log.files", 5));
+        handler.setLevel(Level.parse(System.getProperty("jscratch.log.level", "INFO")));
+        return handler;
+    }
+
+    /** Sends everything the com.example loggers log to {@code handler}, and nothing to the console. */
+    public static void install(Logger packageLogger, AsyncLogHandler handler) {
+        packageLogger.addHandler(handler);
+        packageLogger.setLevel(handler.getLevel());
+        packageLogger.setUseParentHandlers(false);
+        Metrics.counterFunction("jscratch_log_dropped_total", "Log records dropped because the log buffer was full.", handler::getDroppedCount);
+        Metrics.counterFunction("jscratch_log_sampled_out_total", "Log records skipped by jscratch.log.sample.", handler::getSampledOutCount);
+        Metrics.gauge("jscratch_log_queued", "Log records waiting for the log writer thread.", handler::getQueuedCount);
+    }
+
+    // "com.example.BlockNode=100,com.example.InputNode=1000" -> {com.example.BlockNode: 100, ...}
+    static Map<String, Integer> parseSampleRates(String spec) {
+        Map<String, Integer> rates = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            int equals = entry.indexOf('=');
+            if (equals > 0) {
+                try {
+                    rates.put(entry.substring(0, equals).trim(), Math.max(1, Integer.parseInt(entry.substring(equals + 1).trim())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring jscratch.log.sample entry '" + entry + "': not a number");
+                }
+            }
+        }
+        return rates;
+    }
+
+    /** Queues {@code record} for the writer thread. Never touches the disk. */
+    @Override
+    public void publish(LogRecord record) {
+        if (closing || !isLoggable(record)) {
+            return;
+        }
+        boolean important = record.getLevel().intValue() >= Level.WARNING.intValue();
+        if (!important && !samplerFor(record.getLoggerName()).keep()) {
+            sampledOut.increment();
+            return;
+        }
+        Pending pending = new Pending(record, Thread.currentThread().getName());
+        if (!offer(pending) && !(important && offerWithin(pending, blockNanos))) {
+            dropped.increment();
+            return;
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private boolean offer(Pending pending) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, pending);
+                    sequences.set(index, position + 1); // Publishes the slot to the writer
+                    return true;
+                }
+                position = tail.get(); // Another producer took this slot
+            } else if (difference < 0) {
+                return false; // The writer has not freed this slot yet: the buffer is full
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private boolean offerWithin(Pending pending, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            if (offer(pending)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Pending poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null; // Empty, or a producer has claimed the slot but not filled it yet
+        }
+        Pending pending = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, position + mask + 1); // Free for the producer one lap later
+        head = position + 1;
+        return pending;
+    }
+
+    private Sampler samplerFor(String loggerName) {
+        String name = loggerName == null ? "" : loggerName;
+        Sampler sampler = samplers.get(name);
+        return sampler != null ? sampler : samplers.computeIfAbsent(name, k -> new Sampler(rateFor(k)));
+    }
+
+    // The rate of the most specific configured category covering this logger; 1 (keep all) if there is none
+    private int rateFor(String loggerName) {
+        for (String category = loggerName; ; category = category.substring(0, category.lastIndexOf('.'))) {
+            Integer rate = sampleRates.get(category);
+            if (rate != null) {
+                return rate;
+            }
+            if (category.lastIndexOf('.') < 0) {
+                return 1;
+            }
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            int count = 0;
+            Pending pending;
+            while (count < BATCH_RECORDS && (pending = poll()) != null) {
+                format(pending, batch);
+                count++;
+            }
+            long droppedNow = dropped.sum();
+            if (droppedNow != droppedReported && count < BATCH_RECORDS) {
+                // Caught up with the buffer, so say what was lost while it was full
+                batch.append(timestamp(System.currentTimeMillis())).append(" WARNING [log-writer] AsyncLogHandler: Dropped ")
+                        .append(droppedNow - droppedReported).append(" log record(s) because the log buffer was full")
+                        .append(System.lineSeparator());
+                droppedReported = droppedNow;
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                written.add(count);
+                batch.setLength(0);
+                if (batch.capacity() > 1024 * 1024) {
+                    batch = new StringBuilder(64 * 1024); // Do not hold on to the buffer of one huge batch
+                }
+                continue;
+            }
+            if (closing) {
+                break;
+            }
+            writerParked = true;
+            if (head == tail.get()) { // Re-checked after announcing the park, so a producer's unpark cannot be missed
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            reportError("Could not close " + file, e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    private void format(Pending pending, StringBuilder out) {
+        LogRecord record = pending.record;
+        String message;
+        try {
+            message = getFormatter() != null ? getFormatter().formatMessage(record) : record.getMessage();
+        } catch (RuntimeException e) {
+            message = record.getMessage(); // A parameter whose toString() throws
+        }
+        String logger = record.getLoggerName() == null ? "" : record.getLoggerName();
+        out.append(timestamp(record.getMillis())).append(' ').append(record.getLevel().getName())
+                .append(" [").append(pending.threadName).append("] ")
+                .append(logger.startsWith("com.example.") ? logger.substring("com.example.".length()) : logger)
+                .append(": ").append(message).append(System.lineSeparator());
+        if (record.getThrown() != null) {
+            StringWriter trace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+
+    // Records in a batch mostly share their millisecond, so the timestamp is formatted once per millisecond
+    private String timestamp(long millis) {
+        if (millis != stampMillis) {
+            stampMillis = millis;
+            stamp = TIMESTAMP.format(Instant.ofEpochMilli(millis));
+        }
+        return stamp;
+    }
+
+    private void write(StringBuilder batch) {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch));
+        try {
+            while (bytes.hasRemaining()) {
+                fileSize += channel.write(bytes);
+            }
+            if (fileSize >= maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            reportError("Could not write to " + file, e, ErrorManager.WRITE_FAILURE); // The batch is lost; later ones try again
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        try {
+            if (files == 0) {
+                Files.deleteIfExists(file);
+            } else {
+                for (int i = files - 1; i >= 1; i--) {
+                    Path older = rotated(i);
+                    if (Files.exists(older)) {
+                        Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            openFile(); // Even if a move failed, so later batches are written rather than lost to a closed channel
+        }
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    /** Waits (up to a second) until everything published so far has been written. */
+    @Override
+    public void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head < target && writer.isAlive() && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /** Writes what is queued, then stops the writer and closes the file. */
+    @Override
+    public void close() {
+        flush();
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Records queued but not written yet. */
+    public int getQueuedCount() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public long getDroppedCount() { return dropped.sum(); }
+    public long getSampledOutCount() { return sampledOut.sum(); }
+    public long getWrittenCount() { return written.sum(); }
+    public int getCapacity() { return mask + 1; }
+
+    /** Keeps one in {@code rate} records of one category. */
+    private static final class Sampler {
+        final int rate;
+        private final AtomicLong seen = new AtomicLong();
+
+        Sampler(int rate) {
+            this.rate = rate;
+        }
+
+        boolean keep() {
+            return rate == 1 || seen.getAndIncrement() % rate == 0;
+        }
+    }
+
+    private static final class Pending {
+        final LogRecord record;
+        final String threadName; // Not part of LogRecord; the writer thread cannot find it out later
+
+        Pending(LogRecord record, String threadName) {
+            this.record = record;
+            this.threadName = threadName;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+/**
+ * Makes and deletes a project's sprite clones ({@code CREATE_CLONE_BLOCK}, {@code DELETE_CLONE_BLOCK}).
+ *
+ * A clone is a flyweight {@link Sprite}: it shares its parent's costume table and sounds and reads the
+ * parent's local variables until it writes its own, so a project can have many thousands of them.
+ * Deleted clones are kept and reused for the next clone instead of being left to the garbage
+ * collector, so a program that keeps spawning and deleting clones allocates almost nothing. A clone's
+ * id ({@code clone-<n>}) belongs to the pooled object and is reused with it, oldest deleted first.
+ *
+ * Clones live in the project's sprite map like any other sprite and appear in snapshots and state
+ * deltas, but, as in Scratch, they are not saved: a project loaded from disk has none.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.clones.maxPerProject} - clones alive at once per project at most (default 10000)</li>
+ * </ul>
+ */
+public class ClonePool {
+
+    private static final Logger LOGGER = Logger.getLogger(ClonePool.class.getName());
+
+    public static final int MAX_PER_PROJECT = Math.max(0, Integer.getInteger("jscratch.clones.maxPerProject", 10_000));
+    static final String ID_PREFIX = "clone-";
+
+    private final ProjectState project;
+    private final int maxClones;
+    private final ArrayDeque<Sprite> free = new ArrayDeque<>(); // Deleted clones, oldest first. Guarded by this.
+    private int lastNumber; // Of the newest clone object's id. Guarded by this.
+    private int live; // Guarded by this
+
+    public ClonePool(ProjectState project, int maxClones) {
+        this.project = project;
+        this.maxClones = maxClones;
+    }
+
+    /**
+     * Makes a clone of {@code parent} and adds it to the project's sprites. Returns null if the project
+     * already has as many clones as allowed.
+     */
+    public synchronized Sprite create(Sprite parent) {
+        if (live >= maxClones) {
+            return null;
+        }
+        Sprite clone = free.pollFirst();
+        if (clone != null) {
+            clone.becomeCloneOf(parent);
+        } else {
+            String id;
+            do {
+                id = ID_PREFIX + (++lastNumber);
+            } while (project.getSprites().containsKey(id)); // Never take over a saved sprite that happens to have such an id
+            clone = new Sprite(id, parent);
+        }
+        live++;
+        project.addSprite(clone);
+        return clone;
+    }
+
+    /** Removes a clone from the project and keeps it for reuse. Returns false if it is not a live clone of this project. */
+    public synchronized boolean delete(Sprite clone) {
+        if (!clone.isClone() || !project.removeSprite(clone)) {
+            return false;
+        }
+        live--;
+        free.addLast(clone);
+        return true;
+    }
+
+    /** Deletes every clone of the sprite with id {@code originalId}. Returns how many were deleted. */
+    public synchronized int deleteClonesOf(String originalId) {
+        int deleted = 0;
+        for (Sprite sprite : project.getSprites().values()) {
+            if (originalId.equals(sprite.getCloneOf()) && delete(sprite)) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            LOGGER.fine("Deleted " + deleted + " clone(s) of sprite '" + originalId + "'");
+        }
+        return deleted;
+    }
+
+    /** Forgets every clone, e.g. after the project's sprites were replaced wholesale. */
+    synchronized void reset() {
+        free.clear();
+        lastNumber = 0;
+        live = 0;
+    }
+
+    public synchronized int getLiveCount() {
+        return live;
+    }
+
+    public synchronized int getPooledCount() {
+        return free.size();
+    }
+
+    public int getMaxClones() {
+        return maxClones;
+    }
+}
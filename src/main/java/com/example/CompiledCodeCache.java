@@ -0,0 +1,81 @@
+package com.example;
+
+import org.python.core.Py;
+import org.python.core.PyCode;
+import org.python.core.PyException;
+import org.python.util.PythonInterpreter;
+
+/**
+ * Caches compiled Python code objects keyed by a SHA-256 hash of the source text.
+ *
+ * Classroom programs run the same handful of PYTHON_BLOCK snippets over and over, and Jython's
+ * parse + compile step is a large part of each execution. A compiled {@link PyCode} does not hold
+ * on to the interpreter that compiled it, so one entry can be executed by any pooled interpreter.
+ * Snippets that fail to compile are cached as well, so a broken block is rejected without being
+ * parsed again.
+ *
+ * The cache is bounded by an estimate of the memory held by the code objects
+ * ({@code jscratch.jython.codeCache.maxBytes}, default 32 MB). Jython does not expose the real size
+ * of a code object, so the estimate is derived from the length of the source.
+ */
+public class CompiledCodeCache {
+
+    // Rough cost of a compiled code object per source character (bytecode, constants, names, line table).
+    private static final long BYTES_PER_SOURCE_CHAR = 8;
+    private static final long BYTES_PER_ENTRY = 512;
+
+    /** The outcome of compiling one snippet: either code to run or the syntax error to report. */
+    public static class CompiledScript {
+        public final PyCode code;
+        public final PyException syntaxError;
+        final long estimatedBytes;
+
+        CompiledScript(PyCode code, PyException syntaxError, int sourceLength) {
+            this.code = code;
+            this.syntaxError = syntaxError;
+            this.estimatedBytes = BYTES_PER_ENTRY + sourceLength * BYTES_PER_SOURCE_CHAR;
+        }
+
+        public boolean hasSyntaxError() {
+            return syntaxError != null;
+        }
+    }
+
+    private final LruCache<String, CompiledScript> cache;
+
+    public CompiledCodeCache(long maxBytes) {
+        this.cache = new LruCache<>(maxBytes, script -> script.estimatedBytes);
+    }
+
+    public static CompiledCodeCache fromSystemProperties() {
+        return new CompiledCodeCache(Long.getLong("jscratch.jython.codeCache.maxBytes", 32L * 1024 * 1024));
+    }
+
+    /**
+     * Returns the compiled form of {@code source}, compiling it with {@code interpreter} on a miss.
+     * Syntax errors are returned (and cached) rather than thrown; any other failure propagates.
+     */
+    public CompiledScript getOrCompile(String source, PythonInterpreter interpreter) {
+        String key = ContentHash.sha256Hex(source);
+        CompiledScript script = cache.get(key);
+        if (script != null) {
+            return script;
+        }
+        try {
+            script = new CompiledScript(interpreter.compile(source), null, source.length());
+        } catch (PyException e) {
+            if (!e.match(Py.SyntaxError)) { // IndentationError and TabError are SyntaxError subclasses
+                throw e;
+            }
+            script = new CompiledScript(null, e, source.length());
+        }
+        cache.put(key, script);
+        return script;
+    }
+
+    public long getHitCount() { return cache.getHitCount(); }
+    public long getMissCount() { return cache.getMissCount(); }
+    public long getEvictionCount() { return cache.getEvictionCount(); }
+    public int size() { return cache.size(); }
+    public long getEstimatedBytes() { return cache.getWeight(); }
+}
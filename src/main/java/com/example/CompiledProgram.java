@@ -0,0 +1,51 @@
+package com.example;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, compiled block program: the scripts of one /api/execute_program request.
+ * A plain JSON array of blocks compiles to a single script for the default sprite.
+ */
+public class CompiledProgram {
+
+    /** Scripts one program may have ({@code jscratch.program.maxScripts}, default 2048); they share one instruction budget and output limit. */
+    public static final int MAX_SCRIPTS = Math.max(1, Integer.getInteger("jscratch.program.maxScripts", 2048));
+
+    /** One script: a list of top-level blocks run for one sprite. */
+    public static class Script {
+        private final String spriteId; // null = the request's default sprite
+        private final List<BlockNode> blocks;
+
+        public Script(String spriteId, List<BlockNode> blocks) {
+            this.spriteId = spriteId;
+            this.blocks = Collections.unmodifiableList(blocks);
+        }
+
+        public String getSpriteId() {
+            return spriteId;
+        }
+
+        public List<BlockNode> getBlocks() {
+            return blocks;
+        }
+    }
+
+    private final List<Script> scripts;
+
+    public CompiledProgram(List<Script> scripts) {
+        this.scripts = Collections.unmodifiableList(scripts);
+    }
+
+    public static CompiledProgram singleScript(List<BlockNode> blocks) {
+        return new CompiledProgram(Collections.singletonList(new Script(null, blocks)));
+    }
+
+    public List<Script> getScripts() {
+        return scripts;
+    }
+
+    public int size() {
+        return scripts.size();
+    }
+}
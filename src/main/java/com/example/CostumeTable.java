@@ -0,0 +1,85 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sprite's costumes, in order and indexed by costume id, so {@code SWITCH_COSTUME_BLOCK} finds one with
+ * a single hash lookup instead of scanning the list.
+ *
+ * Tables are immutable: adding a costume builds a new table (costumes change rarely, lookups are
+ * constant). That also lets published snapshots share a sprite's costume list instead of copying it.
+ * Costume metadata is a string map with at least {@code "id"} and {@code "name"}; a costume stored on
+ * the server also has an {@code "assetId"} naming its image in the {@link AssetStore}.
+ */
+public final class CostumeTable {
+
+    public static final CostumeTable EMPTY = new CostumeTable(Collections.emptyList());
+
+    private final List<Map<String, String>> costumes;
+    private final Map<String, Integer> indexById;
+
+    private CostumeTable(List<Map<String, String>> costumes) {
+        this.costumes = Collections.unmodifiableList(costumes);
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < costumes.size(); i++) {
+            String id = costumes.get(i).get("id");
+            if (id != null) {
+                index.putIfAbsent(id, i); // Like the old list scan, the first costume with an id wins
+            }
+        }
+        this.indexById = index;
+    }
+
+    public static CostumeTable of(List<Map<String, String>> costumes) {
+        if (costumes == null || costumes.isEmpty()) {
+            return EMPTY;
+        }
+        List<Map<String, String>> copies = new ArrayList<>(costumes.size());
+        for (Map<String, String> costume : costumes) {
+            copies.add(freeze(costume));
+        }
+        return new CostumeTable(copies);
+    }
+
+    /** A new table with {@code costume} added at the end. */
+    public CostumeTable with(Map<String, String> costume) {
+        List<Map<String, String>> copies = new ArrayList<>(costumes.size() + 1);
+        copies.addAll(costumes);
+        copies.add(freeze(costume));
+        return new CostumeTable(copies);
+    }
+
+    /** The costumes in order. Unmodifiable, and the same list for as long as the table is. */
+    public List<Map<String, String>> list() {
+        return costumes;
+    }
+
+    public int size() {
+        return costumes.size();
+    }
+
+    public boolean contains(String costumeId) {
+        return costumeId != null && indexById.containsKey(costumeId);
+    }
+
+    /** The costume with this id, or null. */
+    public Map<String, String> get(String costumeId) {
+        Integer index = costumeId == null ? null : indexById.get(costumeId);
+        return index == null ? null : costumes.get(index);
+    }
+
+    /** The position of the costume with this id, or -1. */
+    public int indexOf(String costumeId) {
+        Integer index = costumeId == null ? null : indexById.get(costumeId);
+        return index == null ? -1 : index;
+    }
+
+    private static Map<String, String> freeze(Map<String, String> costume) {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(costume));
+    }
+}
@@ -0,0 +1,185 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything a compiled block needs while it runs: the project state it reads and changes, the
+ * sprite the script belongs to, the Python executor and the request's output.
+ *
+ * Compiled programs are cached and shared between requests, so all per-run state lives here and
+ * never in the block nodes themselves.
+ *
+ * A context has its own instruction budget, or draws from a {@link SharedBudget} together with the
+ * other scripts of the same request, so running more scripts does not buy more instructions.
+ */
+public class ExecutionContext {
+
+    // Instructions a script takes from a shared budget at a time, so the hot path stays a local decrement
+    private static final long SHARED_BUDGET_CHUNK = 1024;
+
+    /** One instruction budget for all scripts of a request (or stage), drawn from concurrently in chunks. */
+    public static final class SharedBudget {
+        private final long instructions;
+        private final AtomicLong left;
+
+        public SharedBudget(long instructions) {
+            this.instructions = instructions;
+            this.left = new AtomicLong(instructions);
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+
+        long take(long max) {
+            while (true) {
+                long available = left.get();
+                if (available <= 0) {
+                    return 0;
+                }
+                long taken = Math.min(available, max);
+                if (left.compareAndSet(available, available - taken)) {
+                    return taken;
+                }
+            }
+        }
+
+        void giveBack(long unused) {
+            left.addAndGet(unused);
+        }
+    }
+
+    private final Map<String, Sprite> sprites;
+    private final VariableStore globals;
+    private final ClonePool clones; // Null when not running against a ProjectState
+    private final SpatialIndex spatialIndex; // Likewise
+    private final JythonExecutor jythonExecutor;
+    private final ProgramOutput output;
+    private final String targetSpriteId;
+    private final long instructionBudget;
+    private final SharedBudget sharedBudget; // Null when this context has its own budget
+    private long instructionsDrawn; // Taken from the budget so far (all of it up front without a shared budget)
+    private long instructionsLeft;
+    private boolean quiet;
+    private Profiler.Lane profiler; // Null unless the request asked for a profile
+
+    public ExecutionContext(Map<String, Sprite> sprites, VariableStore globals,
+                            JythonExecutor jythonExecutor, ProgramOutput output, String targetSpriteId) {
+        this(sprites, globals, jythonExecutor, output, targetSpriteId, ScriptThread.DEFAULT_INSTRUCTION_BUDGET);
+    }
+
+    public ExecutionContext(Map<String, Sprite> sprites, VariableStore globals,
+                            JythonExecutor jythonExecutor, ProgramOutput output, String targetSpriteId,
+                            long instructionBudget) {
+        this(sprites, globals, null, null, jythonExecutor, output, targetSpriteId, instructionBudget, null);
+    }
+
+    /** A context for a script running against {@code project}, which can also use clones and sensing reporters. */
+    public ExecutionContext(ProjectState project, JythonExecutor jythonExecutor, ProgramOutput output, String targetSpriteId) {
+        this(project.getSprites(), project.getGlobals(), project.getClones(), project.getSpatialIndex(), jythonExecutor,
+                output, targetSpriteId, ScriptThread.DEFAULT_INSTRUCTION_BUDGET, null);
+    }
+
+    /** Like {@link #ExecutionContext(ProjectState, JythonExecutor, ProgramOutput, String)}, drawing instructions from {@code budget}. */
+    public ExecutionContext(ProjectState project, JythonExecutor jythonExecutor, ProgramOutput output, String targetSpriteId,
+                            SharedBudget budget) {
+        this(project.getSprites(), project.getGlobals(), project.getClones(), project.getSpatialIndex(), jythonExecutor,
+                output, targetSpriteId, budget.getInstructions(), budget);
+    }
+
+    private ExecutionContext(Map<String, Sprite> sprites, VariableStore globals, ClonePool clones, SpatialIndex spatialIndex,
+                             JythonExecutor jythonExecutor, ProgramOutput output, String targetSpriteId,
+                             long instructionBudget, SharedBudget sharedBudget) {
+        this.sprites = sprites;
+        this.globals = globals;
+        this.clones = clones;
+        this.spatialIndex = spatialIndex;
+        this.jythonExecutor = jythonExecutor;
+        this.output = output;
+        this.targetSpriteId = targetSpriteId;
+        this.instructionBudget = instructionBudget;
+        this.sharedBudget = sharedBudget;
+        this.instructionsDrawn = sharedBudget == null ? instructionBudget : 0;
+        this.instructionsLeft = instructionsDrawn;
+    }
+
+    public Map<String, Sprite> getSprites() { return sprites; }
+    public VariableStore getGlobals() { return globals; }
+    /** The project's clones, or null if this script cannot make any. */
+    public ClonePool getClones() { return clones; }
+    /** The project's sprite position index, or null if sensing reporters are not available. */
+    public SpatialIndex getSpatialIndex() { return spatialIndex; }
+    /** The global variables as a live map by name (see {@link VariableStore#asMap()}). */
+    public Map<String, Object> getGlobalVariables() { return globals.asMap(); }
+    public JythonExecutor getJythonExecutor() { return jythonExecutor; }
+    public ProgramOutput getOutput() { return output; }
+    public String getTargetSpriteId() { return targetSpriteId; }
+
+    /** This script's budget, or the whole shared budget it draws from. */
+    public long getInstructionBudget() { return instructionBudget; }
+    public long getInstructionsExecuted() { return instructionsDrawn - instructionsLeft; }
+
+    /** Takes one instruction from the budget; false once the budget is exhausted. */
+    boolean consumeInstruction() {
+        if (instructionsLeft > 0) {
+            instructionsLeft--;
+            return true;
+        }
+        return drawInstructions();
+    }
+
+    private boolean drawInstructions() {
+        long taken = sharedBudget != null ? sharedBudget.take(SHARED_BUDGET_CHUNK) : 0;
+        if (taken == 0) {
+            instructionsLeft = -1; // Over budget; the refused instruction counts as executed
+            return false;
+        }
+        instructionsDrawn += taken;
+        instructionsLeft = taken - 1; // This call's instruction comes out of the new chunk
+        return true;
+    }
+
+    /** Hands instructions drawn but not used back to the shared budget, once the script has finished. */
+    void returnUnusedInstructions() {
+        if (sharedBudget != null && instructionsLeft > 0) {
+            sharedBudget.giveBack(instructionsLeft);
+            instructionsDrawn -= instructionsLeft;
+            instructionsLeft = 0;
+        }
+    }
+
+    /** True once {@link #consumeInstruction()} has been refused. */
+    boolean isOverBudget() {
+        return instructionsLeft < 0;
+    }
+
+    /**
+     * True while running inside a loop body. Blocks then skip their per-block narration and info
+     * logging, which would otherwise dominate the cost of a tight loop.
+     */
+    public boolean isQuiet() { return quiet; }
+    void setQuiet(boolean quiet) { this.quiet = quiet; }
+
+    /** Where this script's blocks are profiled, or null when profiling is off. */
+    public Profiler.Lane getProfiler() { return profiler; }
+    void setProfiler(Profiler.Lane profiler) { this.profiler = profiler; }
+
+    /** The sprite the running script belongs to, or null if it no longer exists. */
+    public Sprite getTargetSprite() {
+        return sprites.get(targetSpriteId);
+    }
+
+    // Names a PYTHON_BLOCK sees besides its own: the project's global variables and the target sprite's
+    // local variables, bound as the live maps themselves so Python reads and writes the server state directly.
+    Map<String, Object> pythonBindings() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("global_vars", globals.asMap());
+        Sprite sprite = getTargetSprite();
+        if (sprite != null) {
+            bindings.put("sprite_vars", sprite.getLocalVariablesView());
+        }
+        return bindings;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example;
+
+import org.python.core.Py;
+import org.python.core.PyException;
+import org.python.core.PyFrame;
+import org.python.core.PyObject;
+import org.python.core.ThreadState;
+import org.python.core.TraceFunction;
+
+/**
+ * Lets a Python script be stopped from another thread.
+ *
+ * Jython compiles Python to JVM bytecode and never looks at {@link Thread#interrupt()} on its own,
+ * so a {@code while True: pass} would ignore a cancelled Future forever. While installed on the
+ * executing thread, this trace function is called by Jython at every line of every frame and raises
+ * {@code KeyboardInterrupt} once {@link #cancel()} has been called or the thread has been interrupted.
+ * A script that swallows the exception is stopped again on its next line.
+ */
+public class ExecutionGuard extends TraceFunction {
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Installs this guard on the calling thread. Must be paired with {@link #uninstall()}. */
+    public void install() {
+        Py.getThreadState().tracefunc = this;
+    }
+
+    public void uninstall() {
+        ThreadState state = Py.getThreadState();
+        if (state.tracefunc == this) {
+            state.tracefunc = null;
+        }
+    }
+
+    private TraceFunction check() {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw Py.KeyboardInterrupt("Python block was stopped because it exceeded its time budget");
+        }
+        return this;
+    }
+
+    @Override
+    public TraceFunction traceCall(PyFrame frame) {
+        return check();
+    }
+
+    @Override
+    public TraceFunction traceReturn(PyFrame frame, PyObject ret) {
+        return this;
+    }
+
+    @Override
+    public TraceFunction traceLine(PyFrame frame, int line) {
+        return check();
+    }
+
+    @Override
+    public TraceFunction traceException(PyFrame frame, PyException exc) {
+        return this;
+    }
+}
@@ -0,0 +1,369 @@
+package com.example;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map from strings, changed by making a new version: {@link #with} and {@link #without}
+ * copy only the few small arrays on the path to the entry and share everything else with the version
+ * they were called on. {@link ProjectSnapshot} keeps its sprites in one, so publishing a version in
+ * which one sprite changed costs O(log n) however many sprites (and clones) the project has, and the
+ * versions kept for clients that are behind share nearly all of their entries.
+ *
+ * It is a hash array mapped trie: every level of nodes takes 5 more bits of the key's hash, and a node
+ * holds a 32-bit map of the children it has plus an array of just those. Keys whose whole hash
+ * collides share a small array. Iteration order follows the hashes, not insertion.
+ */
+public final class HashTrie<V> extends AbstractMap<String, V> {
+
+    private static final int BITS = 5;
+    private static final Node EMPTY_ROOT = new Node(0, new Object[0]);
+    private static final HashTrie<?> EMPTY = new HashTrie<>(EMPTY_ROOT, 0);
+
+    // A key and its value. Children of a node are Leaf, Collision or Node.
+    private static final class Leaf<V> implements Map.Entry<String, V> {
+        final int hash;
+        final String key;
+        final V value;
+
+        Leaf(int hash, String key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override public String getKey() { return key; }
+        @Override public V getValue() { return value; }
+        @Override public V setValue(V value) { throw new UnsupportedOperationException(); }
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && java.util.Objects.equals(value, e.getValue());
+        }
+        @Override public int hashCode() { return key.hashCode() ^ (value == null ? 0 : value.hashCode()); }
+        @Override public String toString() { return key + "=" + value; }
+    }
+
+    // Keys with the same full hash (rare)
+    private static final class Collision {
+        final int hash;
+        final Leaf<?>[] leaves;
+
+        Collision(int hash, Leaf<?>[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    private static final class Node {
+        final int bitmap; // Bit i set: the child for hash chunk i is at children[bitCount(bitmap below i)]
+        final Object[] children;
+
+        Node(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private HashTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> HashTrie<V> empty() {
+        return (HashTrie<V>) EMPTY;
+    }
+
+    /** A trie holding every entry of {@code map}. */
+    public static <V> HashTrie<V> of(Map<String, ? extends V> map) {
+        HashTrie<V> trie = empty();
+        for (Map.Entry<String, ? extends V> entry : map.entrySet()) {
+            trie = trie.with(entry.getKey(), entry.getValue());
+        }
+        return trie;
+    }
+
+    /** This map with {@code key} mapped to {@code value}. */
+    public HashTrie<V> with(String key, V value) {
+        boolean[] added = new boolean[1];
+        Node updated = put(root, new Leaf<>(hash(key), key, value), 0, added);
+        return new HashTrie<>(updated, added[0] ? size + 1 : size);
+    }
+
+    /** This map without {@code key}, or this map itself if it has no such key. */
+    public HashTrie<V> without(String key) {
+        boolean[] removed = new boolean[1];
+        Object updated = remove(root, key, hash(key), 0, removed);
+        if (!removed[0]) {
+            return this;
+        }
+        return new HashTrie<>(updated instanceof Node ? (Node) updated : wrap(updated, 0), size - 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        Leaf<V> leaf = key instanceof String ? find((String) key) : null;
+        return leaf != null ? leaf.value : null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new Walker<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Leaf<V> find(String key) {
+        int hash = hash(key);
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = node.children[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (child instanceof Node) {
+                node = (Node) child;
+            } else if (child instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) child;
+                return leaf.hash == hash && leaf.key.equals(key) ? leaf : null;
+            } else {
+                for (Leaf<?> leaf : ((Collision) child).leaves) {
+                    if (leaf.key.equals(key)) {
+                        return (Leaf<V>) leaf;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    private static Node put(Node node, Leaf<?> leaf, int shift, boolean[] added) {
+        int bit = bit(leaf.hash, shift);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            Object[] children = new Object[node.children.length + 1];
+            System.arraycopy(node.children, 0, children, 0, index);
+            children[index] = leaf;
+            System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+            return new Node(node.bitmap | bit, children);
+        }
+        Object existing = node.children[index];
+        Object replacement;
+        if (existing instanceof Node) {
+            replacement = put((Node) existing, leaf, shift + BITS, added);
+        } else if (existing instanceof Leaf && ((Leaf<?>) existing).key.equals(leaf.key)) {
+            replacement = leaf;
+        } else if (existing instanceof Collision && ((Collision) existing).hash == leaf.hash) {
+            replacement = putInCollision((Collision) existing, leaf, added);
+        } else {
+            added[0] = true;
+            replacement = merge(existing, hashOf(existing), leaf, leaf.hash, shift + BITS);
+        }
+        Object[] children = node.children.clone();
+        children[index] = replacement;
+        return new Node(node.bitmap, children);
+    }
+
+    private static Collision putInCollision(Collision collision, Leaf<?> leaf, boolean[] added) {
+        Leaf<?>[] leaves = collision.leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i].key.equals(leaf.key)) {
+                Leaf<?>[] replaced = leaves.clone();
+                replaced[i] = leaf;
+                return new Collision(collision.hash, replaced);
+            }
+        }
+        added[0] = true;
+        Leaf<?>[] grown = java.util.Arrays.copyOf(leaves, leaves.length + 1);
+        grown[leaves.length] = leaf;
+        return new Collision(collision.hash, grown);
+    }
+
+    // A subtree holding a (Leaf or Collision) and b (a Leaf), whose hashes agree below shift
+    private static Object merge(Object a, int hashA, Leaf<?> b, int hashB, int shift) {
+        if (hashA == hashB) {
+            return new Collision(hashA, new Leaf<?>[] {(Leaf<?>) a, b}); // a is a Leaf: equal-hash Collisions are handled by put
+        }
+        int bitA = bit(hashA, shift);
+        int bitB = bit(hashB, shift);
+        if (bitA == bitB) {
+            return new Node(bitA, new Object[] {merge(a, hashA, b, hashB, shift + BITS)});
+        }
+        return new Node(bitA | bitB, Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[] {a, b} : new Object[] {b, a}); // Bit 31 is negative
+    }
+
+    private static int hashOf(Object leafOrCollision) {
+        return leafOrCollision instanceof Leaf ? ((Leaf<?>) leafOrCollision).hash : ((Collision) leafOrCollision).hash;
+    }
+
+    // Returns the node without the key: possibly a lone Leaf or Collision that the parent can hold directly, or null if empty
+    private static Object remove(Node node, String key, int hash, int shift, boolean[] removed) {
+        int bit = bit(hash, shift);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object existing = node.children[index];
+        Object replacement;
+        if (existing instanceof Node) {
+            replacement = remove((Node) existing, key, hash, shift + BITS, removed);
+        } else if (existing instanceof Leaf) {
+            if (!((Leaf<?>) existing).key.equals(key)) {
+                return node;
+            }
+            removed[0] = true;
+            replacement = null;
+        } else {
+            replacement = removeFromCollision((Collision) existing, key, removed);
+        }
+        if (!removed[0]) {
+            return node;
+        }
+        if (replacement != null) {
+            if (node.children.length == 1 && !(replacement instanceof Node)) {
+                return replacement; // Only child left: the parent can hold it directly
+            }
+            Object[] children = node.children.clone();
+            children[index] = replacement;
+            return new Node(node.bitmap, children);
+        }
+        if (node.children.length == 1) {
+            return null;
+        }
+        if (node.children.length == 2 && !(node.children[1 - index] instanceof Node)) {
+            return node.children[1 - index];
+        }
+        Object[] children = new Object[node.children.length - 1];
+        System.arraycopy(node.children, 0, children, 0, index);
+        System.arraycopy(node.children, index + 1, children, index, children.length - index);
+        return new Node(node.bitmap & ~bit, children);
+    }
+
+    private static Object removeFromCollision(Collision collision, String key, boolean[] removed) {
+        Leaf<?>[] leaves = collision.leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i].key.equals(key)) {
+                removed[0] = true;
+                if (leaves.length == 2) {
+                    return leaves[1 - i];
+                }
+                Leaf<?>[] shrunk = new Leaf<?>[leaves.length - 1];
+                System.arraycopy(leaves, 0, shrunk, 0, i);
+                System.arraycopy(leaves, i + 1, shrunk, i, shrunk.length - i);
+                return new Collision(collision.hash, shrunk);
+            }
+        }
+        return collision;
+    }
+
+    // The root is always a Node; a lone Leaf or Collision left at the top gets one around it
+    private static Node wrap(Object child, int shift) {
+        if (child == null) {
+            return EMPTY_ROOT;
+        }
+        return new Node(bit(hashOf(child), shift), new Object[] {child});
+    }
+
+    // Depth-first walk over the leaves; the trie is at most 7 levels deep
+    private static final class Walker<V> implements Iterator<Map.Entry<String, V>> {
+        private final Object[][] stack = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth;
+        private Leaf<?>[] collision;
+        private int collisionPosition;
+        private Leaf<V> next;
+
+        Walker(Node root) {
+            stack[0] = root.children;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            if (collision != null) {
+                if (collisionPosition < collision.length) {
+                    next = (Leaf<V>) collision[collisionPosition++];
+                    return;
+                }
+                collision = null;
+            }
+            while (depth >= 0) {
+                Object[] children = stack[depth];
+                if (positions[depth] == children.length) {
+                    depth--;
+                    continue;
+                }
+                Object child = children[positions[depth]++];
+                if (child instanceof Node) {
+                    depth++;
+                    stack[depth] = ((Node) child).children;
+                    positions[depth] = 0;
+                } else if (child instanceof Leaf) {
+                    next = (Leaf<V>) child;
+                    return;
+                } else {
+                    collision = ((Collision) child).leaves;
+                    collisionPosition = 1;
+                    next = (Leaf<V>) collision[0];
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Leaf<V> result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * The HTTP server underneath the handlers. Handlers are plain {@link HttpHandler}s working on an
+ * {@link com.sun.net.httpserver.HttpExchange}, so the same handler objects run unchanged on either engine:
+ * <ul>
+ *     <li>"jdk" - the JDK's built-in {@code com.sun.net.httpserver.HttpServer} (default)</li>
+ *     <li>"nio" - {@link NioHttpEngine}, a selector-based engine with pooled direct buffers, keep-alive and pipelining</li>
+ * </ul>
+ * chosen with {@code jscratch.http.engine}.
+ */
+public interface HttpEngine {
+
+    /** Routes requests whose path starts with {@code path} to {@code handler}; the longest matching path wins. */
+    void createContext(String path, HttpHandler handler);
+
+    /** Where handlers run. Null means a single thread, like the JDK server's dispatcher. Call before {@link #start()}. */
+    void setExecutor(Executor executor);
+
+    void start() throws IOException;
+
+    /** Stops accepting connections, and closes the open ones after at most {@code delaySeconds}. */
+    void stop(int delaySeconds);
+
+    String getName();
+
+    static HttpEngine create(String name, InetSocketAddress address, int backlog) throws IOException {
+        switch (name) {
+            case "jdk":
+                return new Jdk(HttpServer.create(address, backlog));
+            case "nio":
+                return NioHttpEngine.fromSystemProperties(address, backlog);
+            default:
+                throw new IllegalArgumentException("Unknown HTTP engine '" + name + "' (expected jdk or nio)");
+        }
+    }
+
+    /** The JDK's {@code com.sun.net.httpserver} server. */
+    final class Jdk implements HttpEngine {
+        private final HttpServer server;
+
+        Jdk(HttpServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public void createContext(String path, HttpHandler handler) {
+            server.createContext(path, handler);
+        }
+
+        @Override
+        public void setExecutor(Executor executor) {
+            server.setExecutor(executor);
+        }
+
+        @Override
+        public void start() {
+            server.start();
+        }
+
+        @Override
+        public void stop(int delaySeconds) {
+            server.stop(delaySeconds);
+        }
+
+        @Override
+        public String getName() {
+            return "jdk";
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.example;
+
+import org.json.JSONObject;
+
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled block input: either a literal, parsed once when the program is compiled, or a reporter.
+ * Variable reporters have their name and scope resolved up front so only the lookup itself happens per
+ * run; sensing reporters ({@code TOUCHING}, {@code DISTANCE_TO}) ask the project's {@link SpatialIndex}.
+ */
+public abstract class InputNode {
+
+    // Its own category, like BlockNode, so it can be sampled separately (jscratch.log.sample)
+    private static final Logger LOGGER = Logger.getLogger(InputNode.class.getName());
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("-?\\d+(\\.\\d+)?");
+
+    /** Evaluates the input. Lookup problems are reported to the output and yield Scratch's default, 0. */
+    public abstract Object evaluate(ExecutionContext ctx);
+
+    /**
+     * Evaluates the input as a number, for blocks that only need a number: numeric strings are parsed,
+     * and anything that is not a number gives NaN. Inputs that can avoid boxing override this.
+     */
+    public double evaluateNumber(ExecutionContext ctx) {
+        return toNumber(evaluate(ctx));
+    }
+
+    static double toNumber(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** Compiles {@code inputs[inputKey]} into an input node. A missing input evaluates to null. */
+    public static InputNode compile(JSONObject inputs, String inputKey) {
+        Object rawValue = inputs.opt(inputKey);
+
+        if (rawValue instanceof JSONObject) {
+            JSONObject reporter = (JSONObject) rawValue;
+            switch (reporter.optString("reporterType")) {
+                case "VARIABLE":
+                    return new VariableInput(reporter.optString("name"), reporter.optString("scope", "global"));
+                case "TOUCHING":
+                    return new TouchingInput(reporter.optString("sprite", null));
+                case "DISTANCE_TO":
+                    return new DistanceToInput(reporter.optString("sprite", null));
+                default:
+                    break; // Unknown reporters fall through to a literal, as before
+            }
+        }
+        return new LiteralInput(parseLiteral(rawValue));
+    }
+
+    static Object parseLiteral(Object rawValue) {
+        if (rawValue instanceof String) {
+            String valueStr = (String) rawValue;
+            if (NUMBER_LITERAL.matcher(valueStr).matches()) {
+                try {
+                    double doubleVal = Double.parseDouble(valueStr);
+                    if (doubleVal == (long) doubleVal) return (long) doubleVal;
+                    return doubleVal;
+                } catch (NumberFormatException nfe) { /* Fall through to return as string */ }
+            } else if (valueStr.equalsIgnoreCase("true")) {
+                return true;
+            } else if (valueStr.equalsIgnoreCase("false")) {
+                return false;
+            }
+            return valueStr; // Return as string if no other parsing fits
+        } else if (rawValue instanceof Number || rawValue instanceof Boolean) {
+            return rawValue; // Already parsed by JSONObject
+        } else if (rawValue == null || JSONObject.NULL.equals(rawValue)) {
+            return null; // Or a suitable default like "" or 0
+        }
+
+        // Default: return as string if rawValue is not a recognized type (e.g. an unknown reporter object)
+        return rawValue.toString();
+    }
+
+    static final class LiteralInput extends InputNode {
+        private final Object value;
+        private final double number; // Parsed once, so numeric use of a literal costs nothing per run
+
+        LiteralInput(Object value) {
+            this.value = value;
+            this.number = toNumber(value);
+        }
+
+        @Override
+        public Object evaluate(ExecutionContext ctx) {
+            return value;
+        }
+
+        @Override
+        public double evaluateNumber(ExecutionContext ctx) {
+            return number;
+        }
+    }
+
+    // The script's own sprite and the project's index for a sensing reporter, or null after reporting why not
+    private static SpatialIndex sensingIndex(ExecutionContext ctx, String reporter, String targetSpriteId) {
+        if (targetSpriteId == null || targetSpriteId.isEmpty()) {
+            ctx.getOutput().append(String.format("  Error: No sprite given for %s.\n", reporter));
+            return null;
+        }
+        if (ctx.getSpatialIndex() == null) {
+            ctx.getOutput().append(String.format("  Error: %s is not available here.\n", reporter));
+            return null;
+        }
+        if (ctx.getTargetSprite() == null) {
+            LOGGER.warning("Target sprite '" + ctx.getTargetSpriteId() + "' not found for " + reporter + ".");
+            ctx.getOutput().append(String.format("  Error: Sprite '%s' not found for %s.\n", ctx.getTargetSpriteId(), reporter));
+            return null;
+        }
+        return ctx.getSpatialIndex();
+    }
+
+    /** "touching (sprite)?": true if the script's sprite overlaps that sprite or one of its clones. */
+    static final class TouchingInput extends InputNode {
+        private final String targetSpriteId;
+
+        TouchingInput(String targetSpriteId) {
+            this.targetSpriteId = targetSpriteId;
+        }
+
+        @Override
+        public Object evaluate(ExecutionContext ctx) {
+            SpatialIndex index = sensingIndex(ctx, "TOUCHING", targetSpriteId);
+            return index != null && index.touching(ctx.getTargetSprite(), targetSpriteId);
+        }
+    }
+
+    /** "distance to (sprite)": from the script's sprite to the nearest of that sprite and its clones. */
+    static final class DistanceToInput extends InputNode {
+        private final String targetSpriteId;
+
+        DistanceToInput(String targetSpriteId) {
+            this.targetSpriteId = targetSpriteId;
+        }
+
+        @Override
+        public double evaluateNumber(ExecutionContext ctx) {
+            SpatialIndex index = sensingIndex(ctx, "DISTANCE_TO", targetSpriteId);
+            if (index == null) {
+                return 0;
+            }
+            double distance = index.distanceToNearest(ctx.getTargetSprite(), targetSpriteId);
+            return Double.isNaN(distance) ? 10000 : distance; // Scratch reports 10000 for a sprite that is not there
+        }
+
+        @Override
+        public Object evaluate(ExecutionContext ctx) {
+            return evaluateNumber(ctx);
+        }
+    }
+
+    private static VariableStore localsOf(Sprite sprite) {
+        return sprite != null ? sprite.getLocalVariables() : null;
+    }
+
+    static final class VariableInput extends InputNode {
+        private final String varName;
+        private final String varScope;
+        private final boolean global;
+        private final VariableStore.Ref variable; // Remembers its slot per store; see VariableStore
+
+        VariableInput(String varName, String varScope) {
+            this.varName = varName;
+            this.varScope = varScope;
+            this.global = "global".equals(varScope);
+            this.variable = new VariableStore.Ref(varName);
+        }
+
+        @Override
+        public double evaluateNumber(ExecutionContext ctx) {
+            VariableStore store = global ? ctx.getGlobals() : localsOf(ctx.getTargetSprite());
+            if (store != null) {
+                int slot = variable.existingSlotIn(store);
+                if (slot >= 0 && store.isNumber(slot)) {
+                    return store.getDouble(slot);
+                }
+            }
+            return super.evaluateNumber(ctx); // Non-numeric values, and the not-found error paths
+        }
+
+        @Override
+        public Object evaluate(ExecutionContext ctx) {
+            Object varValue = null;
+            boolean found = false;
+
+            if (global) {
+                int slot = variable.existingSlotIn(ctx.getGlobals());
+                if (slot >= 0 && ctx.getGlobals().contains(slot)) {
+                    varValue = ctx.getGlobals().get(slot);
+                    found = true;
+                }
+            } else { // "local"
+                Sprite sprite = ctx.getTargetSprite();
+                if (sprite != null) {
+                    // O(1) slot lookup in the sprite's own store; a variable set to null still counts as found
+                    int slot = variable.existingSlotIn(sprite.getLocalVariables());
+                    if (slot >= 0 && sprite.getLocalVariables().contains(slot)) {
+                        varValue = sprite.getLocalVariables().get(slot);
+                        found = true;
+                    }
+                } else {
+                    LOGGER.warning("resolveInputValue: Target sprite '" + ctx.getTargetSpriteId() + "' not found for local variable '" + varName + "'.");
+                    ctx.getOutput().append(String.format("  Error: Sprite '%s' not found for local variable '%s'.\n", ctx.getTargetSpriteId(), varName));
+                    return 0; // Default value for unresolved local variable from missing sprite
+                }
+            }
+
+            if (found) {
+                if (!ctx.isQuiet()) {
+                    Object resolved = varValue;
+                    LOGGER.fine(() -> String.format("Resolved variable '%s' (scope: %s) to value: %s", varName, varScope, resolved));
+                }
+                return varValue; // Could be null if variable exists but has null value
+            } else {
+                LOGGER.warning(String.format("resolveInputValue: Variable '%s' (scope: %s) not found.", varName, varScope));
+                ctx.getOutput().append(String.format("  Error: Variable '%s' (scope: %s) not found.\n", varName, varScope));
+                return 0; // Default value for unfound variables (Scratch-like behavior)
+            }
+        }
+    }
+}
@@ -2,7 +2,20 @@ package com.example;
 
 import org.python.util.PythonInterpreter;
 import org.python.core.PyException; // Explicit import for PyException
-import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JythonExecutor {
 
@@ -10,15 +23,21 @@ public class JythonExecutor {
         public final String stdout;
         public final String stderr;
         public final Exception exception; // To capture Python exceptions like syntax errors
+        public final boolean timedOut; // True if the script was stopped for exceeding its time budget
 
         public ExecutionResult(String stdout, String stderr, Exception exception) {
+            this(stdout, stderr, exception, false);
+        }
+
+        public ExecutionResult(String stdout, String stderr, Exception exception, boolean timedOut) {
             this.stdout = (stdout == null) ? "" : stdout;
             this.stderr = (stderr == null) ? "" : stderr;
             this.exception = exception;
+            this.timedOut = timedOut;
         }
 
         public boolean hasError() {
-            return !stderr.isEmpty() || exception != null;
+            return !stderr.isEmpty() || exception != null || timedOut;
         }
 
         @Override
@@ -31,7 +50,9 @@ public class JythonExecutor {
             if (!stderr.isEmpty()) {
                 sb.append("\nSTDERR:\n").append(stderr);
             }
-            if (exception != null) {
+            if (timedOut) {
+                sb.append("\nTIMED OUT: ").append(exception != null ? exception.getMessage() : "time budget exceeded");
+            } else if (exception != null) {
                 // For PyException, e.g., syntax errors, toString() is often descriptive.
                 // For other Java exceptions, getMessage() might be null, so toString() is safer.
                 sb.append("\nEXECUTION EXCEPTION:\n").append(exception.toString());
@@ -40,49 +61,282 @@ public class JythonExecutor {
         }
     }
 
+    // Reported at /metrics. Outcomes: ok, error (Python or Java exception), timeout, rejected (workers busy).
+    private static final Metrics.Histogram EXECUTION_TIME = Metrics.histogram("jscratch_jython_execution_seconds",
+            "Time a Python block took, from submission (including any wait for a worker or interpreter) to its result.");
+    private static final Metrics.Counter OK = jythonCounter("ok");
+    private static final Metrics.Counter ERRORS = jythonCounter("error");
+    private static final Metrics.Counter TIMEOUTS = jythonCounter("timeout");
+    private static final Metrics.Counter REJECTED = jythonCounter("rejected");
+
+    private static Metrics.Counter jythonCounter(String result) {
+        return Metrics.counter("jscratch_jython_executions_total", "Python blocks run, by outcome.", "result", result);
+    }
+
+    private final PythonInterpreterPool interpreterPool;
+    private final CompiledCodeCache codeCache;
+    // Scripts run here rather than on the HTTP thread, so a runaway script can be timed out and stopped.
+    // The queue is bounded and overflow is rejected, so a burst of slow scripts fails fast instead of piling up.
+    private final ThreadPoolExecutor workers;
+    private final long defaultTimeoutMillis;
+
     public JythonExecutor() {
-        // Optional: Initialize PythonInterpreter properties if needed globally.
-        // Using this static method can help avoid some startup issues on certain platforms or with classloaders.
-        // However, it sets system-wide properties, which might not always be desirable.
-        // For now, we'll rely on the default initialization within the PythonInterpreter constructor.
-        // PythonInterpreter.initialize(System.getProperties(), System.getProperties(), new String[0]);
+        this(PythonInterpreterPool.Config.fromSystemProperties());
+    }
+
+    private JythonExecutor(PythonInterpreterPool.Config poolConfig) {
+        // Interpreter startup dominates PYTHON_BLOCK latency, so executions borrow pre-warmed
+        // interpreters from a pool instead of constructing one per call.
+        // Compiled snippets are cached as well, since the same code tends to run many times.
+        // By default there is one worker per interpreter, so workers never wait on the pool.
+        this(new PythonInterpreterPool(poolConfig),
+             CompiledCodeCache.fromSystemProperties(),
+             Integer.getInteger("jscratch.jython.workers", poolConfig.maxSize),
+             Integer.getInteger("jscratch.jython.queueDepth", 8),
+             Long.getLong("jscratch.jython.timeoutMs", 5000L));
+    }
+
+    public JythonExecutor(PythonInterpreterPool interpreterPool, CompiledCodeCache codeCache,
+                          int workerCount, int queueDepth, long defaultTimeoutMillis) {
+        this.interpreterPool = interpreterPool;
+        this.codeCache = codeCache;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueDepth)), new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * When each phase of one Python run happened, as {@code System.nanoTime()} values (0 if the run never
+     * got there), and what the compile and run phases allocated on the worker (-1 if unknown).
+     * Written by the worker, read by the caller once the run is over.
+     */
+    public static final class Phases {
+        volatile long submitted;
+        volatile long started;         // A worker picked the script up
+        volatile long compileStarted;  // An interpreter was borrowed
+        volatile long compiled;
+        volatile long finished;
+        volatile long compileAllocatedBytes = -1;
+        volatile long runAllocatedBytes = -1;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "python-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true); // Don't keep the JVM alive for a stuck script
+            return thread;
+        }
+    }
+
+    public CompiledCodeCache getCodeCache() {
+        return codeCache;
+    }
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
     }
 
     public ExecutionResult executeScript(String pythonCode) {
-        StringWriter stdoutCapture = new StringWriter();
-        StringWriter stderrCapture = new StringWriter();
-        PythonInterpreter interpreter = null; // Declare outside try to access in finally
+        return executeScript(pythonCode, defaultTimeoutMillis);
+    }
+
+    /** Runs the script and returns its (size-capped) stdout in the result. */
+    public ExecutionResult executeScript(String pythonCode, long timeoutMillis) {
+        ProgramOutput stdoutCapture = ProgramOutput.buffered(ProgramOutput.MAX_BLOCK_BYTES);
+        ProgramOutput.BlockWriter stdoutWriter = stdoutCapture.blockWriter("", ProgramOutput.MAX_BLOCK_BYTES);
+        ExecutionResult result = executeScript(pythonCode, timeoutMillis, stdoutWriter);
+        stdoutWriter.finish();
+        return new ExecutionResult(stdoutCapture.toString(), result.stderr, result.exception, result.timedOut);
+    }
+
+    /**
+     * Runs the script on the Python worker pool and waits at most {@code timeoutMillis} for it.
+     * Whatever the script prints goes straight to {@code stdout} as it is printed (the result's stdout
+     * is empty); stderr is captured, capped at {@link ProgramOutput#MAX_BLOCK_BYTES}.
+     * A script that runs over is asked to stop (see {@link ExecutionGuard}) and reported as timed out.
+     * The script may still write a little to {@code stdout} while it is stopping, so callers that
+     * care should detach the writer once this returns.
+     */
+    public ExecutionResult executeScript(String pythonCode, long timeoutMillis, Writer stdout) {
+        return executeScript(pythonCode, timeoutMillis, stdout, Collections.emptyMap());
+    }
+
+    /**
+     * Same as {@link #executeScript(String, long, Writer)}, with {@code bindings} visible to the script
+     * as global names. Maps are bound as live views, e.g. binding the project's variable map lets
+     * {@code global_vars['score'] += 1} update the server-side value directly.
+     */
+    public ExecutionResult executeScript(String pythonCode, long timeoutMillis, Writer stdout, Map<String, ?> bindings) {
+        return executeScript(pythonCode, timeoutMillis, stdout, bindings, null);
+    }
+
+    /**
+     * Same as {@link #executeScript(String, long, Writer, Map)}, also noting in {@code phases} (if not null)
+     * when each phase of the run happened, for the {@link Profiler}.
+     */
+    public ExecutionResult executeScript(String pythonCode, long timeoutMillis, Writer stdout, Map<String, ?> bindings, Phases phases) {
+        long started = System.nanoTime();
+        if (phases != null) {
+            phases.submitted = started;
+        }
+        ExecutionResult result = submitAndWait(pythonCode, timeoutMillis, stdout, bindings, phases);
+        EXECUTION_TIME.recordSince(started);
+        if (result.timedOut) {
+            TIMEOUTS.increment();
+        } else if (result.exception instanceof RejectedExecutionException) {
+            REJECTED.increment();
+        } else if (result.exception != null) {
+            ERRORS.increment();
+        } else {
+            OK.increment();
+        }
+        return result;
+    }
+
+    private ExecutionResult submitAndWait(String pythonCode, long timeoutMillis, Writer stdout, Map<String, ?> bindings, Phases phases) {
+        ProgramOutput stderrCapture = ProgramOutput.buffered(ProgramOutput.MAX_BLOCK_BYTES);
+        ProgramOutput.BlockWriter stderr = stderrCapture.blockWriter("", ProgramOutput.MAX_BLOCK_BYTES);
+        ExecutionGuard guard = new ExecutionGuard();
+
+        Future<ExecutionResult> future;
+        try {
+            future = workers.submit(() -> runScript(pythonCode, stdout, stderr, bindings, guard, phases));
+        } catch (RejectedExecutionException e) {
+            return new ExecutionResult("", "", new RejectedExecutionException("Python executor is busy, try again later."));
+        }
 
         try {
-            interpreter = new PythonInterpreter(); // Create a new interpreter for each execution for isolation
-            interpreter.setOut(stdoutCapture);
-            interpreter.setErr(stderrCapture);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            awaitOnSchedulerThread(future, deadline);
+            future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            stderr.finish();
+            return finished(stderrCapture, future.get());
+        } catch (TimeoutException e) {
+            guard.cancel();
+            future.cancel(true); // Also interrupts the worker, for scripts blocked in sleep() or I/O
+            stderr.finish();
+            return new ExecutionResult("", stderrCapture.toString(),
+                    new TimeoutException("Python block exceeded its " + timeoutMillis + " ms time budget and was stopped."), true);
+        } catch (InterruptedException e) {
+            guard.cancel();
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            stderr.finish();
+            return new ExecutionResult("", stderrCapture.toString(), e);
+        } catch (ExecutionException e) {
+            // runScript catches everything itself, so this only happens for Errors thrown by Jython
+            Throwable cause = e.getCause();
+            stderr.finish();
+            return new ExecutionResult("", stderrCapture.toString(), cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
 
-            // Attempt to execute the code
-            interpreter.exec(pythonCode);
+    /**
+     * When called from a {@link ScriptScheduler} worker, waits for the script as a managed block, so the
+     * fork-join pool can start a spare worker and keep the other sprites' scripts running meanwhile.
+     */
+    private static void awaitOnSchedulerThread(Future<?> future, long deadline) throws InterruptedException {
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+            return;
+        }
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                try {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    // Reported by the caller's own get()
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return future.isDone() || System.nanoTime() >= deadline;
+            }
+        });
+    }
+
+    private static ExecutionResult finished(ProgramOutput stderrCapture, ExecutionResult result) {
+        return new ExecutionResult("", stderrCapture.toString(), result.exception, result.timedOut);
+    }
+
+    private ExecutionResult runScript(String pythonCode, Writer stdout, Writer stderr, Map<String, ?> bindings, ExecutionGuard guard,
+                                      Phases phases) {
+        PythonInterpreterPool.PooledInterpreter pooled = null; // Declare outside try to access in finally
+        boolean reusable = false;
+        if (phases != null) {
+            phases.started = System.nanoTime();
+        }
+
+        try {
+            // Each borrow comes with a fresh namespace and our own writers, so scripts stay isolated
+            pooled = interpreterPool.borrow(stdout, stderr, bindings);
+            PythonInterpreter interpreter = pooled.get();
+
+            // Compile (or fetch the cached compilation of) the code, then run it.
+            // A cached syntax error is reported just like a fresh one, without parsing the source again.
+            long allocatedBefore = 0;
+            if (phases != null) {
+                allocatedBefore = Profiler.threadAllocatedBytes();
+                phases.compileStarted = System.nanoTime();
+            }
+            CompiledCodeCache.CompiledScript script = codeCache.getOrCompile(pythonCode, interpreter);
+            if (phases != null) {
+                phases.compiled = System.nanoTime();
+                long allocated = Profiler.threadAllocatedBytes();
+                phases.compileAllocatedBytes = allocatedBefore < 0 ? -1 : allocated - allocatedBefore;
+                allocatedBefore = allocated;
+            }
+            if (script.hasSyntaxError()) {
+                reusable = true;
+                return new ExecutionResult("", "", script.syntaxError);
+            }
+            if (guard.isCancelled()) { // Timed out while waiting in the queue or for an interpreter
+                reusable = true;
+                return new ExecutionResult("", "", null, true);
+            }
+            guard.install();
+            try {
+                interpreter.exec(script.code);
+            } finally {
+                guard.uninstall();
+                if (phases != null) {
+                    phases.runAllocatedBytes = allocatedBefore < 0 ? -1 : Profiler.threadAllocatedBytes() - allocatedBefore;
+                    phases.finished = System.nanoTime();
+                }
+            }
+            reusable = true;
 
             // If exec completes without throwing an exception, it's considered a "success" at this level
             // Actual Python runtime errors that don't throw PyException up to here (rare) would be in stderr.
-            return new ExecutionResult(stdoutCapture.toString(), stderrCapture.toString(), null);
+            return new ExecutionResult("", "", null);
 
         } catch (PyException e) {
             // This is the primary way Jython signals Python-level errors (syntax, runtime like NameError, TypeError)
             // The error message from Jython (e.g., e.toString()) is often very informative.
             // stderr might also contain output leading up to the error.
-            return new ExecutionResult(stdoutCapture.toString(), stderrCapture.toString(), e);
+            // The interpreter itself is still healthy after a Python-level error.
+            reusable = true;
+            return new ExecutionResult("", "", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ExecutionResult("", "", e);
         } catch (Exception e) {
-            // Catches other Java exceptions that might occur (e.g., during interpreter setup, unforeseen issues)
+            // Catches other Java exceptions that might occur (e.g., no interpreter available, unforeseen issues)
             // These are generally more severe or unexpected.
-            return new ExecutionResult(stdoutCapture.toString(), stderrCapture.toString(), e);
+            return new ExecutionResult("", "", e);
         } finally {
-            // Ensure the interpreter is closed to free up resources.
-            // PythonInterpreter.close() is available since Jython 2.7.0.
-            if (interpreter != null) {
-                try {
-                    interpreter.close();
-                } catch (Exception e) {
-                    // Log or handle the exception during close if necessary, though often just ignored
-                    System.err.println("Error closing PythonInterpreter: " + e.getMessage());
+            // Hand the interpreter back, or throw it away if we can't vouch for its state.
+            if (pooled != null) {
+                if (reusable) {
+                    interpreterPool.release(pooled);
+                } else {
+                    interpreterPool.discard(pooled);
                 }
             }
         }
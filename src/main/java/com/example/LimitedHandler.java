@@ -0,0 +1,160 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Caps how many requests one server context handles at once, so a burst of slow requests (long
+ * programs, Python blocks) cannot take every HTTP thread away from page loads and the other APIs.
+ *
+ * Up to {@code maxConcurrent} requests run at once. Up to {@code queueDepth} more wait, each for at
+ * most {@code jscratch.http.queueTimeoutMs}, for one of them to finish. Any other request is answered
+ * at once with {@code 503 Service Unavailable} and a {@code Retry-After} header instead of piling up.
+ * So is every request the HTTP executor had no room for (see {@link #runShedding}).
+ *
+ * Configuration (system properties, all optional; {@code <name>} is the context's name, see
+ * {@link SimpleHttpServer}):
+ * <ul>
+ *     <li>{@code jscratch.http.<name>.maxConcurrent} - requests handled at once</li>
+ *     <li>{@code jscratch.http.<name>.queueDepth} - requests allowed to wait for a slot</li>
+ *     <li>{@code jscratch.http.queueTimeoutMs} - how long a request waits for a slot at most (default 1000)</li>
+ *     <li>{@code jscratch.http.retryAfterSeconds} - the {@code Retry-After} sent with a rejection (default 1)</li>
+ * </ul>
+ */
+public class LimitedHandler implements HttpHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(LimitedHandler.class.getName());
+
+    private static final long QUEUE_TIMEOUT_MILLIS = Math.max(0, Long.getLong("jscratch.http.queueTimeoutMs", 1000L));
+    private static final String[] CODE_CLASSES = {"none", "1xx", "2xx", "3xx", "4xx", "5xx"};
+    static final String RETRY_AFTER_SECONDS = String.valueOf(Math.max(0, Integer.getInteger("jscratch.http.retryAfterSeconds", 1)));
+
+    // Set on a thread while it answers a request the HTTP executor's queue had no room for
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+
+    private final String name;
+    private final HttpHandler delegate;
+    private final int maxConcurrent;
+    private final int queueDepth;
+    private final Semaphore slots;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final Metrics.Histogram latency;
+    private final Metrics.Counter[] responses = new Metrics.Counter[CODE_CLASSES.length]; // By status class, see codeClass()
+
+    public LimitedHandler(String name, HttpHandler delegate, int maxConcurrent, int queueDepth) {
+        this.name = name;
+        this.delegate = delegate;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.queueDepth = Math.max(0, queueDepth);
+        this.slots = new Semaphore(this.maxConcurrent);
+        // Every context reports its traffic at /metrics under its name
+        this.latency = Metrics.histogram("jscratch_http_request_duration_seconds",
+                "Time from a request reaching its context (including any wait for a slot) until its handler returned.", "context", name);
+        for (int i = 0; i < CODE_CLASSES.length; i++) {
+            responses[i] = Metrics.counter("jscratch_http_requests_total",
+                    "Requests handled, by context and response status class (none: no response was sent).", "context", name, "code", CODE_CLASSES[i]);
+        }
+        Metrics.gauge("jscratch_http_active_requests", "Requests being handled now.", this::getActiveCount, "context", name);
+        Metrics.gauge("jscratch_http_waiting_requests", "Requests waiting for a slot now.", this::getWaitingCount, "context", name);
+        Metrics.counterFunction("jscratch_http_rejected_total", "Requests answered with 503 because the context was at its limit.",
+                this::getRejectedCount, "context", name);
+    }
+
+    /** A limit for context {@code name}, read from {@code jscratch.http.<name>.*} with the given defaults. */
+    public static LimitedHandler fromSystemProperties(String name, HttpHandler delegate, int defaultMaxConcurrent, int defaultQueueDepth) {
+        return new LimitedHandler(name, delegate,
+                Integer.getInteger("jscratch.http." + name + ".maxConcurrent", defaultMaxConcurrent),
+                Integer.getInteger("jscratch.http." + name + ".queueDepth", defaultQueueDepth));
+    }
+
+    /**
+     * Runs {@code exchange} (the server's task for one request) so that whichever context it reaches
+     * rejects it with a 503 without waiting for a slot. The HTTP executor does this with requests it has
+     * no room to queue, since only a handler can answer them.
+     */
+    static void runShedding(Runnable exchange) {
+        SHEDDING.set(Boolean.TRUE);
+        try {
+            exchange.run();
+        } finally {
+            SHEDDING.remove();
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange t) throws IOException {
+        long started = System.nanoTime();
+        if (SHEDDING.get() != null || !acquire()) {
+            rejected.increment();
+            try {
+                reject(t);
+            } finally {
+                record(t, started);
+            }
+            return;
+        }
+        try {
+            delegate.handle(t);
+        } finally {
+            slots.release();
+            record(t, started);
+        }
+    }
+
+    private void record(HttpExchange t, long started) {
+        latency.recordSince(started);
+        responses[codeClass(t.getResponseCode())].increment();
+    }
+
+    // Index into CODE_CLASSES: 1 for 1xx up to 5 for 5xx, 0 if no response has been sent
+    private static int codeClass(int code) {
+        return code >= 100 && code < 600 ? code / 100 : 0;
+    }
+
+    private boolean acquire() {
+        if (slots.tryAcquire()) {
+            return true; // The common case: below the limit, no waiting
+        }
+        if (waiting.incrementAndGet() > queueDepth) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            return slots.tryAcquire(QUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void reject(HttpExchange t) throws IOException {
+        byte[] body = ("Service Unavailable: Too many '" + name + "' requests, try again shortly.").getBytes(StandardCharsets.UTF_8);
+        t.getRequestBody().close(); // Unread; closing lets the connection be reused where possible
+        t.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        t.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+        t.sendResponseHeaders(503, body.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(body);
+        }
+        LOGGER.fine("Rejected " + t.getRequestMethod() + " " + t.getRequestURI().getPath() + ": '" + name + "' is at its limit");
+    }
+
+    public String getName() { return name; }
+    public int getMaxConcurrent() { return maxConcurrent; }
+    public int getQueueDepth() { return queueDepth; }
+    public int getActiveCount() { return maxConcurrent - slots.availablePermits(); }
+    public int getWaitingCount() { return Math.max(0, waiting.get()); }
+    public long getRejectedCount() { return rejected.sum(); }
+}
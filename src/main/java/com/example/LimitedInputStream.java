@@ -0,0 +1,82 @@
+package com.example;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes through at most {@code maxBytes} of the wrapped stream and fails once a reader tries to go
+ * past that, so a request body can be consumed incrementally without trusting its size.
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+    /** Thrown when the stream holds more than the allowed number of bytes. */
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(long maxBytes) {
+            super("Input exceeds the limit of " + maxBytes + " bytes");
+        }
+    }
+
+    private final long maxBytes;
+    private long remaining;
+    private boolean exceeded;
+
+    public LimitedInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+        this.remaining = maxBytes;
+    }
+
+    /**
+     * True once the limit was hit. Parsers such as JSONTokener wrap the I/O exception in their own,
+     * so callers check this flag rather than the exception type.
+     */
+    public boolean isLimitExceeded() {
+        return exceeded;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return checkEnd();
+        }
+        int b = super.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return checkEnd();
+        }
+        int n = super.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    // At the limit: fine if the underlying stream is at its end too, an error if there is more.
+    private int checkEnd() throws IOException {
+        if (super.read() < 0) {
+            return -1;
+        }
+        exceeded = true;
+        throw new LimitExceededException(maxBytes);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * A small thread-safe LRU cache bounded by an estimated memory weight rather than an entry count.
+ *
+ * Each value is weighed once when it is inserted; when the total weight goes over {@code maxWeight}
+ * the least recently used entries are evicted until it fits again. Hit, miss and eviction counts are
+ * kept so callers can report how well the cache is doing.
+ */
+public class LruCache<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    // accessOrder=true turns LinkedHashMap into an LRU list: get() moves the entry to the tail.
+    private final LinkedHashMap<K, Weighted<V>> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Weighted<V> {
+        final V value;
+        final long weight;
+
+        Weighted(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /** Returns the cached value, or null on a miss. Counts the lookup as a hit or a miss. */
+    public V get(K key) {
+        Weighted<V> entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /** Adds or replaces a value. Values heavier than the whole cache are not stored at all. */
+    public void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxWeight) {
+            return;
+        }
+        synchronized (this) {
+            Weighted<V> previous = entries.put(key, new Weighted<>(value, weight));
+            if (previous != null) {
+                totalWeight -= previous.weight;
+            }
+            totalWeight += weight;
+            Iterator<Map.Entry<K, Weighted<V>>> eldest = entries.entrySet().iterator();
+            while (totalWeight > maxWeight && eldest.hasNext()) {
+                Map.Entry<K, Weighted<V>> victim = eldest.next();
+                totalWeight -= victim.getValue().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    public long getMaxWeight() { return maxWeight; }
+    public long getHitCount() { return hits.get(); }
+    public long getMissCount() { return misses.get(); }
+    public long getEvictionCount() { return evictions.get(); }
+}
@@ -0,0 +1,238 @@
+package com.example;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The server's runtime numbers, served at {@code /metrics} in the Prometheus text format.
+ *
+ * Code that measures something registers its counter or histogram once (in a constructor or static
+ * field) and keeps the returned object; recording is then a {@link LongAdder} increment, with no lock,
+ * no map lookup and no allocation, so it is cheap enough for the block interpreter's inner loop.
+ * Gauges are read only when {@code /metrics} is scraped.
+ *
+ * Metrics with the same name but different labels (e.g. one histogram per block type) form one family
+ * and are listed together. Registering the same name and labels twice returns the existing metric.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.metrics.blockTimings} - time every block the interpreter runs (default true)</li>
+ * </ul>
+ */
+public final class Metrics {
+
+    /** Whether {@link ScriptThread} times each block; two {@code System.nanoTime()} calls per block. */
+    public static final boolean BLOCK_TIMINGS = Boolean.parseBoolean(System.getProperty("jscratch.metrics.blockTimings", "true"));
+
+    // Upper bounds of the histogram buckets, in seconds: from a microsecond (one block) to ten seconds (a long program)
+    private static final double[] BUCKET_SECONDS = {0.000001, 0.00001, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10};
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = Math.round(BUCKET_SECONDS[i] * 1e9);
+        }
+    }
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>(); // Guarded by itself; in registration order
+    private static final Map<String, Histogram> BLOCK_TIMERS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /** A count that only goes up. */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /** Durations in fixed buckets, plus their count and sum. */
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1]; // The last one is +Inf
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        /** Records the time since {@code startNanos}, a {@code System.nanoTime()} value. */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return register(name, help, "counter", labels, new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return register(name, help, "histogram", labels, new Histogram());
+    }
+
+    /** A value read at scrape time, e.g. a queue length or a map size. */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    /** A count kept elsewhere (e.g. by {@link LimitedHandler}), read at scrape time. */
+    public static void counterFunction(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "counter", labels, value);
+    }
+
+    /** The time histogram of blocks of {@code type}, shared by every node of that type. */
+    static Histogram blockTimer(String type) {
+        Histogram timer = BLOCK_TIMERS.get(type);
+        return timer != null ? timer : BLOCK_TIMERS.computeIfAbsent(type, t -> histogram("jscratch_block_duration_seconds",
+                "Time spent running one block, by block type (loops are not timed themselves, their bodies are).", "type", t));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T register(String name, String help, String type, String[] labels, T metric) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs: " + String.join(",", labels));
+        }
+        String labelText = formatLabels(labels);
+        synchronized (FAMILIES) {
+            Family family = FAMILIES.computeIfAbsent(name, n -> new Family(name, help, type));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+            }
+            Object existing = family.series.putIfAbsent(labelText, metric);
+            return existing != null ? (T) existing : metric;
+        }
+    }
+
+    /** All metrics in the Prometheus text exposition format (version 0.0.4). */
+    public static String scrape() {
+        List<Family> families;
+        synchronized (FAMILIES) {
+            families = new ArrayList<>(FAMILIES.size());
+            for (Family family : FAMILIES.values()) {
+                families.add(family.copy());
+            }
+        }
+        StringBuilder out = new StringBuilder(16 * 1024);
+        for (Family family : families) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                writeSeries(out, family.name, series.getKey(), series.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeSeries(StringBuilder out, String name, String labels, Object metric) {
+        if (metric instanceof Counter) {
+            sample(out, name, labels, "", ((Counter) metric).get());
+        } else if (metric instanceof Histogram) {
+            Histogram histogram = (Histogram) metric;
+            long cumulative = 0;
+            for (int i = 0; i < histogram.buckets.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                String le = i < BUCKET_SECONDS.length ? BigDecimal.valueOf(BUCKET_SECONDS[i]).stripTrailingZeros().toPlainString() : "+Inf";
+                sample(out, name + "_bucket", labels, "le=\"" + le + "\"", cumulative);
+            }
+            sample(out, name + "_sum", labels, "", histogram.sumNanos.sum() / 1e9);
+            sample(out, name + "_count", labels, "", cumulative);
+        } else {
+            double value;
+            try {
+                value = ((DoubleSupplier) metric).getAsDouble();
+            } catch (RuntimeException e) {
+                return; // A gauge that cannot be read right now is left out rather than failing the scrape
+            }
+            sample(out, name, labels, "", value);
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String extraLabel, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || !extraLabel.isEmpty()) {
+            out.append('{').append(labels);
+            if (!labels.isEmpty() && !extraLabel.isEmpty()) {
+                out.append(',');
+            }
+            out.append(extraLabel).append('}');
+        }
+        out.append(' ').append(formatNumber(value)).append('\n');
+    }
+
+    private static String formatNumber(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value); // Also "NaN"; never localized
+    }
+
+    // {"context", "execute", "code", "2xx"} -> context="execute",code="2xx"
+    private static String formatLabels(String[] labels) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return text.toString();
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new LinkedHashMap<>(); // Label text -> metric
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Family copy() {
+            Family copy = new Family(name, help, type);
+            copy.series.putAll(series);
+            return copy;
+        }
+    }
+}
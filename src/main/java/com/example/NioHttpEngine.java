@@ -0,0 +1,1138 @@
+package com.example;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HTTP/1.1 server on NIO selectors, as an alternative to the JDK's {@code HttpServer} (see
+ * {@link HttpEngine}). It runs the same {@link HttpHandler}s: each request is handed to its handler as
+ * an ordinary {@link HttpExchange}.
+ *
+ * A few selector threads do all socket I/O without blocking; handlers run on the executor and may block
+ * as they like. Request bodies flow from the selector to the handler through a small bounded buffer,
+ * and the selector stops reading a connection while that buffer is full, so a large upload never sits
+ * in memory whole. Responses are written through pooled direct buffers, straight to the socket when it
+ * can take them and through the selector when it cannot. A handler that writes faster than its client
+ * reads waits instead of queueing without bound.
+ *
+ * Connections are kept alive between requests. Pipelined requests are read as they arrive, and each
+ * one is answered after the one before it. An idle connection holds no buffer.
+ *
+ * Not supported: chunked request bodies (answered with 501), HTTPS and HTTP/2.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.http.nio.selectors} - selector threads (default 2)</li>
+ *     <li>{@code jscratch.http.nio.bufferBytes} - size of pooled buffers, and the largest accepted request head (default 16384)</li>
+ *     <li>{@code jscratch.http.nio.pooledBuffers} - buffers kept for reuse at most (default 1024)</li>
+ *     <li>{@code jscratch.http.nio.idleTimeoutMs} - idle time after which a kept-alive connection is closed (default 60000)</li>
+ * </ul>
+ */
+public class NioHttpEngine implements HttpEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(NioHttpEngine.class.getName());
+
+    private static final int BODY_BUFFER_BYTES = 64 * 1024;    // Request body read ahead of the handler, per request
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;    // Response bytes waiting for a slow client before the handler waits
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final long idleTimeoutNanos;
+    private final BufferPool buffers;
+    private final Map<String, HttpHandler> contexts = new ConcurrentHashMap<>();
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile Executor executor;
+    private ServerSocketChannel server;
+    private volatile String date = HTTP_DATE.format(Instant.now()); // Date header value, refreshed once a second by the first loop
+
+    public NioHttpEngine(InetSocketAddress address, int backlog, int selectors, int bufferBytes, int pooledBuffers, long idleTimeoutMillis)
+            throws IOException {
+        this.address = address;
+        this.backlog = backlog;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.buffers = new BufferPool(bufferBytes, pooledBuffers);
+        this.loops = new SelectorLoop[Math.max(1, selectors)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+    }
+
+    public static NioHttpEngine fromSystemProperties(InetSocketAddress address, int backlog) throws IOException {
+        return new NioHttpEngine(address, backlog,
+                Integer.getInteger("jscratch.http.nio.selectors", 2),
+                Math.max(1024, Integer.getInteger("jscratch.http.nio.bufferBytes", 16 * 1024)),
+                Integer.getInteger("jscratch.http.nio.pooledBuffers", 1024),
+                Long.getLong("jscratch.http.nio.idleTimeoutMs", 60_000L));
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler) {
+        contexts.put(path, handler);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (executor == null) {
+            // Handlers block, so they can never run on a selector thread; one thread matches the JDK server's dispatcher
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "http-handler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address, backlog);
+        server.configureBlocking(false);
+        loops[0].execute(() -> loops[0].listen());
+        for (SelectorLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Closing the server socket failed", e);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delaySeconds);
+        for (SelectorLoop loop : loops) {
+            loop.stopAt(deadline);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "nio";
+    }
+
+    public int getPooledBufferCount() {
+        return buffers.size();
+    }
+
+    /** The handler of the longest context path that the request path starts with, as in {@code HttpServer}. */
+    private Map.Entry<String, HttpHandler> contextFor(String path) {
+        Map.Entry<String, HttpHandler> best = null;
+        for (Map.Entry<String, HttpHandler> context : contexts.entrySet()) {
+            if (path.startsWith(context.getKey()) && (best == null || context.getKey().length() > best.getKey().length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    /** Direct buffers of one size, reused so that busy connections do not allocate per request. */
+    static final class BufferPool {
+        private final int bufferBytes;
+        private final int maxPooled;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferBytes, int maxPooled) {
+            this.bufferBytes = bufferBytes;
+            this.maxPooled = maxPooled;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferBytes);
+            }
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            if (pooled.incrementAndGet() <= maxPooled) {
+                free.add(buffer);
+            } else {
+                pooled.decrementAndGet(); // Enough pooled already; the GC frees this one
+            }
+        }
+
+        int size() {
+            return pooled.get();
+        }
+    }
+
+    /** One selector thread and the connections registered with it. */
+    private final class SelectorLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Set<Connection> connections = new HashSet<>(); // Loop thread only
+        private volatile long stopDeadline; // 0 while running
+        private long lastHousekeepingNanos = System.nanoTime();
+
+        SelectorLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "http-nio-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /** Runs {@code task} on this loop's thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void listen() {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Cannot accept connections", e);
+            }
+        }
+
+        void stopAt(long deadline) {
+            stopDeadline = deadline;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (stopDeadline == 0 || (!connections.isEmpty() && System.nanoTime() - stopDeadline < 0)) {
+                try {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((Connection) key.attachment()).ready(key);
+                        }
+                    }
+                    housekeeping();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "HTTP selector loop error: " + e.getMessage(), e); // Keep serving the other connections
+                }
+            }
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not register connection", e);
+                closeQuietly(channel);
+            }
+        }
+
+        private void housekeeping() {
+            long now = System.nanoTime();
+            if (now - lastHousekeepingNanos < TimeUnit.SECONDS.toNanos(1)) {
+                return;
+            }
+            lastHousekeepingNanos = now;
+            if (this == loops[0]) {
+                date = HTTP_DATE.format(Instant.now());
+            }
+            for (Connection connection : new ArrayList<>(connections)) {
+                if (connection.isIdle() && now - connection.lastActiveNanos > idleTimeoutNanos) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private static final class Outbound {
+        final ByteBuffer buffer;
+        final boolean pooled;
+
+        Outbound(ByteBuffer buffer, boolean pooled) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+    }
+
+    /**
+     * One client connection. Reading and request parsing happen on the loop thread only; the outbound
+     * queue is shared with handler threads and guarded by the connection's lock.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectorLoop loop;
+        final InetSocketAddress remoteAddress;
+        final InetSocketAddress localAddress;
+        SelectionKey key;
+
+        // Loop thread only
+        private ByteBuffer in;            // Pooled; holds [0, position) unparsed bytes. Null while there are none.
+        private Exchange exchange;        // The request being handled, or null between requests
+        private long bodyRemaining;       // Bytes of the current request's body not read from the socket yet
+        private long lastActiveNanos = System.nanoTime();
+
+        // Guarded by this
+        private final ArrayDeque<Outbound> out = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean writeInterest;
+        private volatile boolean closeWhenFlushed;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectorLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        boolean isIdle() {
+            synchronized (this) {
+                return exchange == null && out.isEmpty();
+            }
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (key.isWritable()) {
+                    flushQueued();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                LOGGER.fine("Connection from " + remoteAddress + " failed: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            if (in == null) {
+                in = buffers.acquire();
+            }
+            int read = channel.read(in);
+            if (read < 0) {
+                close(); // A handler still writing to it gets an IOException
+                return;
+            }
+            lastActiveNanos = System.nanoTime();
+            process();
+        }
+
+        // Parses and feeds whatever complete input there is, one request at a time
+        private void process() throws IOException {
+            while (!closed && in != null && in.position() > 0) {
+                if (exchange == null) {
+                    if (closeWhenFlushed) {
+                        break; // The last request on this connection has been answered
+                    }
+                    if (!parseRequest()) {
+                        break;
+                    }
+                } else if (bodyRemaining > 0) {
+                    if (!feedBody()) {
+                        break;
+                    }
+                } else {
+                    break; // A pipelined request: it waits until the current one is answered
+                }
+            }
+            if (in != null && in.position() == 0 && exchange == null) {
+                buffers.release(in); // Idle connections hold no buffer
+                in = null;
+            }
+            updateReadInterest();
+        }
+
+        private void updateReadInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            boolean bodyFull = exchange != null && bodyRemaining > 0 && exchange.body.isFull();
+            boolean wantRead = !bodyFull && (in == null || in.hasRemaining());
+            int ops = key.interestOps();
+            key.interestOps(wantRead ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+
+        private boolean parseRequest() throws IOException {
+            int end = headEnd();
+            if (end < 0) {
+                if (!in.hasRemaining()) {
+                    respondAndClose(431, "Request Header Fields Too Large");
+                }
+                return false;
+            }
+            byte[] head = new byte[end];
+            ByteBuffer view = in.duplicate();
+            view.flip();
+            view.get(head);
+            consume(end);
+
+            String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                respondAndClose(400, "Bad Request");
+                return false;
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    if (!lines[i].isEmpty()) {
+                        respondAndClose(400, "Bad Request");
+                        return false;
+                    }
+                    continue;
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            URI uri;
+            long contentLength;
+            try {
+                uri = new URI(requestLine[1]);
+                String length = headers.getFirst("Content-Length");
+                contentLength = length == null ? 0 : Long.parseLong(length.trim());
+            } catch (URISyntaxException | NumberFormatException e) {
+                respondAndClose(400, "Bad Request");
+                return false;
+            }
+            if (headers.containsKey("Transfer-Encoding") || contentLength < 0) {
+                respondAndClose(501, "Not Implemented"); // Chunked request bodies are not supported
+                return false;
+            }
+            boolean http11 = requestLine[2].equals("HTTP/1.1");
+            String connection = headers.getFirst("Connection");
+            boolean keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+
+            Map.Entry<String, HttpHandler> context = contextFor(uri.getPath() == null ? "/" : uri.getPath());
+            if (context == null) {
+                respondAndClose(404, "Not Found");
+                return false;
+            }
+            exchange = new Exchange(this, requestLine[0], uri, requestLine[2], headers, keepAlive, new Context(context.getKey(), context.getValue()));
+            bodyRemaining = contentLength;
+            if (contentLength == 0) {
+                exchange.body.end(false);
+            } else if ("100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                enqueue(ByteBuffer.wrap(CONTINUE), false);
+            }
+            Exchange dispatched = exchange;
+            try {
+                executor.execute(dispatched::run);
+            } catch (RejectedExecutionException e) {
+                exchange = null;
+                respondAndClose(503, "Service Unavailable", "Retry-After: " + LimitedHandler.RETRY_AFTER_SECONDS + "\r\n");
+                return false;
+            }
+            return true;
+        }
+
+        // Index just past the blank line ending the request head, or -1 if it has not all arrived
+        private int headEnd() {
+            for (int i = 3; i < in.position(); i++) {
+                if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean feedBody() {
+            int available = (int) Math.min(in.position(), bodyRemaining);
+            int accepted = exchange.body.offer(in, available);
+            if (accepted == 0) {
+                return false; // The handler has not caught up; reading resumes when it does
+            }
+            consume(accepted);
+            bodyRemaining -= accepted;
+            if (bodyRemaining == 0) {
+                exchange.body.end(false);
+                completeIfDone();
+            }
+            return true;
+        }
+
+        private void consume(int count) {
+            in.flip();
+            in.position(count);
+            in.compact();
+        }
+
+        /** Loop thread: the current handler's response is complete. */
+        void responseFinished(Exchange finished) {
+            if (finished != exchange || closed) {
+                return;
+            }
+            finished.responseDone = true;
+            finished.body.discard(); // Whatever the handler left unread is skipped
+            completeIfDone();
+            try {
+                process(); // Unread body bytes may be sitting in the buffer
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void completeIfDone() {
+            if (exchange == null || !exchange.responseDone || bodyRemaining > 0) {
+                return;
+            }
+            boolean keepAlive = exchange.keepAlive;
+            exchange = null;
+            lastActiveNanos = System.nanoTime();
+            if (!keepAlive) {
+                closeWhenFlushed();
+            }
+        }
+
+        /** Loop thread: the handler drained its body buffer, so reading can go on. */
+        void resumeReading() {
+            if (closed) {
+                return;
+            }
+            try {
+                process();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void respondAndClose(int code, String reason) throws IOException {
+            respondAndClose(code, reason, "");
+        }
+
+        // extraHeaders: complete header lines, each ending in CRLF
+        private void respondAndClose(int code, String reason, String extraHeaders) throws IOException {
+            byte[] body = reason.getBytes(StandardCharsets.ISO_8859_1);
+            String head = "HTTP/1.1 " + code + " " + reason + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+                    + "\r\n" + extraHeaders + "Connection: close\r\n\r\n";
+            enqueue(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), false);
+            enqueue(ByteBuffer.wrap(body), false);
+            closeWhenFlushed();
+            if (in != null) {
+                in.clear(); // Nothing after a malformed request can be trusted
+            }
+        }
+
+        /**
+         * Queues bytes for the client, writing them at once if the socket can take them. A handler thread
+         * that gets too far ahead of a slow client waits here.
+         */
+        void enqueue(ByteBuffer buffer, boolean pooled) throws IOException {
+            synchronized (this) {
+                if (!loop.inLoop()) {
+                    long waitUntil = System.nanoTime() + idleTimeoutNanos;
+                    while (queuedBytes > MAX_QUEUED_BYTES && !closed) {
+                        long left = waitUntil - System.nanoTime();
+                        if (left <= 0) {
+                            closed(); // The client stopped reading
+                            break;
+                        }
+                        try {
+                            wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while writing the response");
+                        }
+                    }
+                }
+                if (closed) {
+                    if (pooled) {
+                        buffers.release(buffer);
+                    }
+                    throw new IOException("Connection closed");
+                }
+                if (out.isEmpty()) {
+                    channel.write(buffer); // Usually the socket takes it all, and the selector is never involved
+                }
+                if (!buffer.hasRemaining()) {
+                    if (pooled) {
+                        buffers.release(buffer);
+                    }
+                    return;
+                }
+                out.add(new Outbound(buffer, pooled));
+                queuedBytes += buffer.remaining();
+                if (!writeInterest) {
+                    writeInterest = true;
+                    loop.execute(this::enableWrite);
+                }
+            }
+        }
+
+        private void enableWrite() {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private synchronized void flushQueued() throws IOException {
+            while (!out.isEmpty()) {
+                Outbound next = out.peek();
+                queuedBytes -= channel.write(next.buffer);
+                if (next.buffer.hasRemaining()) {
+                    break; // The socket is full again
+                }
+                out.poll();
+                if (next.pooled) {
+                    buffers.release(next.buffer);
+                }
+            }
+            if (out.isEmpty()) {
+                writeInterest = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeWhenFlushed) {
+                    close();
+                }
+            }
+            notifyAll(); // Handler threads waiting for room
+        }
+
+        void closeWhenFlushed() {
+            boolean closeNow;
+            synchronized (this) {
+                closeWhenFlushed = true;
+                closeNow = out.isEmpty();
+            }
+            if (closeNow) {
+                closeFromAnyThread();
+            }
+        }
+
+        void closeFromAnyThread() {
+            if (loop.inLoop()) {
+                close();
+            } else {
+                loop.execute(this::close);
+            }
+        }
+
+        /** Loop thread: closes the connection and recycles its buffers. */
+        void close() {
+            synchronized (this) {
+                if (closed && !channel.isOpen()) {
+                    return;
+                }
+                closed();
+            }
+            key.cancel();
+            closeQuietly(channel);
+            loop.connections.remove(this);
+            if (in != null) {
+                buffers.release(in);
+                in = null;
+            }
+            if (exchange != null) {
+                exchange.body.end(true);
+                exchange = null;
+            }
+        }
+
+        // Caller holds the lock. Marks the connection closed and frees queued output; waiting handlers give up.
+        private void closed() {
+            closed = true;
+            for (Outbound queued : out) {
+                if (queued.pooled) {
+                    buffers.release(queued.buffer);
+                }
+            }
+            out.clear();
+            queuedBytes = 0;
+            notifyAll();
+            if (!loop.inLoop()) {
+                loop.execute(this::close);
+            }
+        }
+    }
+
+    /** The request body as the handler reads it, fed by the loop thread through a bounded buffer. */
+    private static final class RequestBody extends InputStream {
+        private final Connection connection;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>(); // Guarded by this, like the fields below
+        private int offset; // Into the first chunk
+        private int buffered;
+        private boolean ended;
+        private boolean truncated;
+        private boolean discarding;
+
+        RequestBody(Connection connection) {
+            this.connection = connection;
+        }
+
+        /** Loop thread: takes up to {@code max} bytes from the start of {@code in}; returns how many it took. */
+        synchronized int offer(ByteBuffer in, int max) {
+            if (discarding) {
+                return max;
+            }
+            int count = Math.min(max, BODY_BUFFER_BYTES - buffered);
+            if (count <= 0) {
+                return 0;
+            }
+            byte[] chunk = new byte[count];
+            ByteBuffer view = in.duplicate();
+            view.flip();
+            view.get(chunk);
+            chunks.add(chunk);
+            buffered += count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized boolean isFull() {
+            return !discarding && buffered >= BODY_BUFFER_BYTES;
+        }
+
+        synchronized void end(boolean connectionLost) {
+            if (!ended) {
+                ended = true;
+                truncated = connectionLost;
+                notifyAll();
+            }
+        }
+
+        /** From now on the body is skipped rather than buffered. */
+        synchronized void discard() {
+            discarding = true;
+            chunks.clear();
+            buffered = 0;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            boolean wasFull;
+            int count;
+            synchronized (this) {
+                while (buffered == 0 && !ended && !discarding) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading the request body");
+                    }
+                }
+                if (buffered == 0) {
+                    if (truncated) {
+                        throw new IOException("Connection closed before the request body was complete");
+                    }
+                    return -1;
+                }
+                wasFull = buffered >= BODY_BUFFER_BYTES;
+                count = 0;
+                while (count < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peek();
+                    int n = Math.min(len - count, chunk.length - offset);
+                    System.arraycopy(chunk, offset, target, off + count, n);
+                    count += n;
+                    offset += n;
+                    if (offset == chunk.length) {
+                        chunks.poll();
+                        offset = 0;
+                    }
+                }
+                buffered -= count;
+            }
+            if (wasFull) {
+                connection.loop.execute(connection::resumeReading);
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffered;
+        }
+
+        @Override
+        public void close() {
+            discard();
+            connection.loop.execute(connection::resumeReading);
+        }
+    }
+
+    /** The response body: fixed-length, chunked, or (for HTTP/1.0 clients) ended by closing the connection. */
+    private final class ResponseBody extends OutputStream {
+        private final Exchange exchange;
+        private long expected = -1;      // Content-Length, or -1 if chunked or close-delimited
+        private boolean chunked;
+        private long written;
+        private ByteBuffer buffer;       // Pooled, acquired on first write
+        private boolean closed;
+
+        ResponseBody(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void begin(long contentLength, boolean chunked) {
+            this.expected = contentLength;
+            this.chunked = chunked;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Response body is closed");
+            }
+            if (!exchange.headersSent) {
+                throw new IOException("sendResponseHeaders() has not been called");
+            }
+            if (expected >= 0 && written + len > expected) {
+                throw new IOException("More bytes than the " + expected + " announced in Content-Length");
+            }
+            written += len;
+            while (len > 0) {
+                if (buffer == null) {
+                    buffer = buffers.acquire();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(bytes, off, n);
+                off += n;
+                len -= n;
+                if (!buffer.hasRemaining()) {
+                    send();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!closed) {
+                send();
+            }
+        }
+
+        private void send() throws IOException {
+            if (buffer == null || buffer.position() == 0) {
+                return;
+            }
+            ByteBuffer full = buffer;
+            buffer = null;
+            full.flip();
+            Connection connection = exchange.connection;
+            if (chunked) {
+                connection.enqueue(ByteBuffer.wrap((Integer.toHexString(full.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)), false);
+                connection.enqueue(full, true);
+                connection.enqueue(ByteBuffer.wrap(CRLF), false);
+            } else {
+                connection.enqueue(full, true);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (!exchange.headersSent) {
+                    closed = true;
+                    exchange.connection.closeFromAnyThread(); // Nothing was answered; the JDK server also just closes
+                    return;
+                }
+                try {
+                    send();
+                    if (chunked) {
+                        exchange.connection.enqueue(ByteBuffer.wrap(LAST_CHUNK), false);
+                    }
+                } finally {
+                    closed = true;
+                    if (buffer != null) {
+                        buffers.release(buffer);
+                        buffer = null;
+                    }
+                }
+                if (expected >= 0 && written < expected) {
+                    exchange.keepAlive = false; // The client is still waiting for bytes that will not come
+                }
+            }
+            exchange.finish();
+        }
+    }
+
+    private final class Context extends HttpContext {
+        private final String path;
+        private final HttpHandler handler;
+
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override public HttpHandler getHandler() { return handler; }
+        @Override public void setHandler(HttpHandler handler) { throw new UnsupportedOperationException("Use NioHttpEngine.createContext"); }
+        @Override public String getPath() { return path; }
+        @Override public HttpServer getServer() { return null; } // Not a JDK server
+        @Override public Map<String, Object> getAttributes() { return Collections.emptyMap(); }
+        @Override public List<Filter> getFilters() { return Collections.emptyList(); }
+        @Override public Authenticator setAuthenticator(Authenticator auth) { throw new UnsupportedOperationException(); }
+        @Override public Authenticator getAuthenticator() { return null; }
+    }
+
+    /** One request and its response, as the handlers see it. */
+    private final class Exchange extends HttpExchange {
+        final Connection connection;
+        final RequestBody body;
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final Context context;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final ResponseBody responseBody;
+        private InputStream in;
+        private OutputStream out;
+        volatile boolean keepAlive;
+        volatile boolean headersSent;
+        volatile boolean responseDone; // Loop thread
+        private volatile int responseCode = -1;
+        private boolean finished;
+
+        Exchange(Connection connection, String method, URI uri, String protocol, Headers requestHeaders, boolean keepAlive, Context context) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.keepAlive = keepAlive;
+            this.context = context;
+            this.body = new RequestBody(connection);
+            this.responseBody = new ResponseBody(this);
+            this.in = body;
+            this.out = responseBody;
+        }
+
+        void run() {
+            try {
+                context.getHandler().handle(this);
+            } catch (Throwable e) {
+                LOGGER.log(Level.WARNING, "Handler for " + method + " " + uri.getPath() + " failed: " + e, e);
+                if (!headersSent) {
+                    try {
+                        keepAlive = false;
+                        sendResponseHeaders(500, -1);
+                    } catch (IOException ignored) {
+                        // The connection is gone
+                    }
+                } else {
+                    connection.closeFromAnyThread(); // Mid-response: the framing can no longer be trusted
+                }
+            }
+        }
+
+        // Called once the response is complete: the next request on the connection may start
+        void finish() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            connection.loop.execute(() -> connection.responseFinished(this));
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long responseLength) throws IOException {
+            if (headersSent) {
+                throw new IOException("Response headers already sent");
+            }
+            boolean noBody = responseLength < 0 || method.equalsIgnoreCase("HEAD") || code == 204 || code == 304 || code < 200;
+            boolean http11 = protocol.equals("HTTP/1.1");
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(code).append(' ').append(reasonPhrase(code)).append("\r\n");
+            head.append("Date: ").append(date).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                String name = header.getKey();
+                boolean framing = name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")
+                        || (name.equalsIgnoreCase("Content-Length") && !noBody); // A HEAD answer may state the length it would have
+                if (framing) {
+                    continue; // Framing is decided here
+                }
+                for (String value : header.getValue()) {
+                    head.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+            boolean chunked = false;
+            if (noBody) {
+                if (code >= 200 && code != 204 && code != 304 && !responseHeaders.containsKey("Content-Length")) {
+                    head.append("Content-Length: ").append(responseLength > 0 ? responseLength : 0).append("\r\n");
+                }
+            } else if (responseLength > 0) {
+                head.append("Content-Length: ").append(responseLength).append("\r\n");
+            } else if (http11) {
+                head.append("Transfer-Encoding: chunked\r\n");
+                chunked = true;
+            } else {
+                keepAlive = false; // An HTTP/1.0 client learns where the body ends when the connection closes
+            }
+            head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n").append("\r\n");
+
+            responseCode = code;
+            headersSent = true;
+            responseBody.begin(noBody ? 0 : responseLength > 0 ? responseLength : -1, chunked);
+            connection.enqueue(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)), false);
+            if (noBody) {
+                responseBody.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                body.close();
+                out.close();
+            } catch (IOException e) {
+                LOGGER.fine("Closing exchange failed: " + e.getMessage());
+            }
+        }
+
+        @Override public Headers getRequestHeaders() { return requestHeaders; }
+        @Override public Headers getResponseHeaders() { return responseHeaders; }
+        @Override public URI getRequestURI() { return uri; }
+        @Override public String getRequestMethod() { return method; }
+        @Override public HttpContext getHttpContext() { return context; }
+        @Override public InputStream getRequestBody() { return in; }
+        @Override public OutputStream getResponseBody() { return out; }
+        @Override public InetSocketAddress getRemoteAddress() { return connection.remoteAddress; }
+        @Override public int getResponseCode() { return responseCode; }
+        @Override public InetSocketAddress getLocalAddress() { return connection.localAddress; }
+        @Override public String getProtocol() { return protocol; }
+        @Override public synchronized Object getAttribute(String name) { return attributes.get(name); }
+        @Override public synchronized void setAttribute(String name, Object value) { attributes.put(name, value); }
+        @Override public HttpPrincipal getPrincipal() { return null; }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) {
+                in = i;
+            }
+            if (o != null) {
+                out = o;
+            }
+        }
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 408: return "Request Timeout";
+            case 409: return "Conflict";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Status " + code;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Closing connection failed", e);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A profile of one program run, requested with {@code ?profile=true} on {@code /api/execute_program}
+ * and returned as Chrome trace-event JSON (open it in {@code chrome://tracing} or ui.perfetto.dev).
+ *
+ * Each script records into its own {@link Lane}, shown as one thread of the trace. Every block becomes a
+ * complete ("X") event with its nanosecond timing. A loop's event spans its iterations, so the blocks it
+ * ran show up nested under it. A PYTHON_BLOCK also gets child events for waiting for a worker, borrowing
+ * an interpreter, compiling and running.
+ *
+ * Allocation estimates come from the JVM's per-thread allocation counter. The profiler's own allocations
+ * are subtracted. They are missing where the JVM does not support the counter, and for a loop that
+ * yielded to other scripts and resumed on another thread.
+ *
+ * A script without a lane pays one null check per block for this feature (see {@link ScriptThread}).
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.profile.maxEvents} - trace events kept per request; later ones only count toward the summary (default 100000)</li>
+ * </ul>
+ */
+public class Profiler {
+
+    public static final int MAX_EVENTS = Math.max(0, Integer.getInteger("jscratch.profile.maxEvents", 100_000));
+
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+    private final long originNanos = System.nanoTime();
+    private final List<Lane> lanes = new ArrayList<>(); // Guarded by this
+    private final AtomicInteger eventsLeft = new AtomicInteger(MAX_EVENTS);
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+                if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                    return counter;
+                }
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // Not a HotSpot-style JVM: profiles just have no allocation numbers
+        }
+        return null;
+    }
+
+    /** Bytes the current thread has allocated so far, or -1 if the JVM cannot tell. */
+    static long threadAllocatedBytes() {
+        return ALLOCATIONS != null ? ALLOCATIONS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /** A new lane (trace thread) for one script. */
+    public synchronized Lane lane(String name) {
+        Lane lane = new Lane(lanes.size() + 1, name);
+        lanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * The trace, once every script has finished. {@code output} is the program's usual text output,
+     * included under {@code otherData} so one response carries both.
+     */
+    public synchronized JSONObject toTrace(String output) {
+        JSONArray events = new JSONArray();
+        events.put(metadata("process_name", 0, "jscratch program"));
+        Map<String, long[]> totals = new TreeMap<>(); // Event name -> {count, nanos, allocated bytes}
+        long dropped = 0;
+        for (Lane lane : lanes) {
+            events.put(metadata("thread_name", lane.tid, lane.name));
+            for (int i = 0; i < lane.count; i++) {
+                events.put(lane.event(i));
+            }
+            dropped += lane.dropped;
+            for (Map.Entry<String, long[]> total : lane.totals.entrySet()) {
+                long[] sum = totals.computeIfAbsent(total.getKey(), k -> new long[3]);
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += total.getValue()[i];
+                }
+            }
+        }
+        JSONObject summary = new JSONObject();
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            JSONObject entry = new JSONObject();
+            entry.put("count", total.getValue()[0]);
+            entry.put("totalNanos", total.getValue()[1]);
+            if (ALLOCATIONS != null) {
+                entry.put("allocatedBytes", total.getValue()[2]);
+            }
+            summary.put(total.getKey(), entry);
+        }
+        JSONObject otherData = new JSONObject();
+        otherData.put("output", output);
+        otherData.put("summary", summary); // Loops include their bodies, like their trace events
+        otherData.put("droppedEvents", dropped);
+        otherData.put("allocationTracking", ALLOCATIONS != null);
+
+        JSONObject trace = new JSONObject();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ns");
+        trace.put("otherData", otherData);
+        return trace;
+    }
+
+    private static JSONObject metadata(String kind, int tid, String name) {
+        JSONObject event = new JSONObject();
+        event.put("name", kind);
+        event.put("ph", "M");
+        event.put("pid", 1);
+        event.put("tid", tid);
+        event.put("args", new JSONObject().put("name", name));
+        return event;
+    }
+
+    /**
+     * The events of one script. Only that script's thread records into it, one slice at a time, so it
+     * needs no locking. Events are kept in growable parallel arrays rather than as objects.
+     */
+    public final class Lane {
+        private final int tid;
+        private final String name;
+        private String[] names = new String[256];
+        private String[] categories = new String[256];
+        private long[] starts = new long[256];
+        private long[] ends = new long[256];
+        private long[] allocated = new long[256];   // -1 if unknown
+        private long[] iterations = new long[256];  // Loops only; -1 for other events
+        private int count;
+        private long dropped;
+        private long overheadBytes; // Allocated by the profiler itself, left out of every estimate
+        private final Map<String, long[]> totals = new LinkedHashMap<>();
+
+        private Lane(int tid, String name) {
+            this.tid = tid;
+            this.name = name;
+        }
+
+        /** The current thread's allocation counter without the profiler's own allocations, or -1. */
+        public long allocatedBytes() {
+            long bytes = threadAllocatedBytes();
+            return bytes < 0 ? -1 : bytes - overheadBytes;
+        }
+
+        /** Records a block that started at {@code startNanos}, with {@link #allocatedBytes()} then, and has just ended. */
+        void block(BlockNode block, long startNanos, long startAllocated) {
+            long end = System.nanoTime();
+            long bytes = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+            if (Metrics.BLOCK_TIMINGS) {
+                block.timer.record(end - startNanos); // A profiled run still counts toward /metrics
+            }
+            record(block.getType(), "block", startNanos, end, bytes, -1);
+        }
+
+        /** Records a loop that has just ended. Its allocations are only known if it ended on the thread it started on. */
+        void loop(BlockNode loop, long startNanos, long startAllocated, Thread startThread, long iterationCount) {
+            long end = System.nanoTime();
+            long bytes = startAllocated < 0 || startThread != Thread.currentThread() ? -1 : allocatedBytes() - startAllocated;
+            record(loop.getType(), "loop", startNanos, end, bytes, iterationCount);
+        }
+
+        /** Records the phases of a Python block that ran on a worker thread. */
+        void python(JythonExecutor.Phases phases) {
+            if (phases == null) {
+                return;
+            }
+            recordPhase("PYTHON_BLOCK wait for worker", phases.submitted, phases.started, -1);
+            recordPhase("PYTHON_BLOCK borrow interpreter", phases.started, phases.compileStarted, -1);
+            recordPhase("PYTHON_BLOCK compile", phases.compileStarted, phases.compiled, phases.compileAllocatedBytes);
+            recordPhase("PYTHON_BLOCK run", phases.compiled, phases.finished, phases.runAllocatedBytes);
+        }
+
+        private void recordPhase(String phase, long start, long end, long bytes) {
+            if (start != 0 && end != 0) { // 0: the phase was never reached (rejected, timed out, failed early)
+                record(phase, "python", start, end, bytes, -1);
+            }
+        }
+
+        private void record(String eventName, String category, long start, long end, long bytes, long iterationCount) {
+            long before = threadAllocatedBytes();
+            long[] total = totals.computeIfAbsent(eventName, k -> new long[3]);
+            total[0]++;
+            total[1] += end - start;
+            total[2] += Math.max(0, bytes);
+            if (eventsLeft.get() > 0 && eventsLeft.getAndDecrement() > 0) {
+                if (count == names.length) {
+                    grow();
+                }
+                names[count] = eventName;
+                categories[count] = category;
+                starts[count] = start;
+                ends[count] = end;
+                allocated[count] = bytes;
+                iterations[count] = iterationCount;
+                count++;
+            } else {
+                dropped++;
+            }
+            if (before >= 0) {
+                overheadBytes += threadAllocatedBytes() - before;
+            }
+        }
+
+        private void grow() {
+            int size = names.length * 2;
+            names = Arrays.copyOf(names, size);
+            categories = Arrays.copyOf(categories, size);
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            allocated = Arrays.copyOf(allocated, size);
+            iterations = Arrays.copyOf(iterations, size);
+        }
+
+        private JSONObject event(int i) {
+            JSONObject event = new JSONObject();
+            event.put("name", names[i]);
+            event.put("cat", categories[i]);
+            event.put("ph", "X");
+            event.put("pid", 1);
+            event.put("tid", tid);
+            event.put("ts", (starts[i] - originNanos) / 1000.0); // Trace timestamps are in microseconds
+            event.put("dur", (ends[i] - starts[i]) / 1000.0);
+            JSONObject args = new JSONObject();
+            if (allocated[i] >= 0) {
+                args.put("allocatedBytes", allocated[i]);
+            }
+            if (iterations[i] >= 0) {
+                args.put("iterations", iterations[i]);
+            }
+            event.put("args", args);
+            return event;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles JSON block programs into {@link CompiledProgram}s and caches them by a hash of the request
+ * body, so re-running the same program (every green-flag click) skips JSON parsing and block dispatch.
+ *
+ * The cache is bounded by an estimate of the compiled size ({@code jscratch.programCache.maxBytes},
+ * default 16 MB), derived from the length of the JSON the program was compiled from.
+ *
+ * Two body formats are accepted: a plain array of blocks (one script for the default sprite), or
+ * {@code {"scripts": [{"spriteId": "sprite1", "blocks": [...]}, ...]}} for one script per sprite.
+ */
+public class ProgramCompiler {
+
+    // Compiled nodes are smaller than their JSON, but keep boxed literals and strings; err on the large side.
+    private static final long BYTES_PER_BODY_CHAR = 2;
+
+    private static final class CacheEntry {
+        final CompiledProgram program;
+        final long estimatedBytes;
+
+        CacheEntry(CompiledProgram program, int bodyLength) {
+            this.program = program;
+            this.estimatedBytes = 256 + bodyLength * BYTES_PER_BODY_CHAR;
+        }
+    }
+
+    private final LruCache<String, CacheEntry> cache;
+
+    public ProgramCompiler(long maxCacheBytes) {
+        this.cache = new LruCache<>(maxCacheBytes, entry -> entry.estimatedBytes);
+    }
+
+    public static ProgramCompiler fromSystemProperties() {
+        return new ProgramCompiler(Long.getLong("jscratch.programCache.maxBytes", 16L * 1024 * 1024));
+    }
+
+    /** Returns the compiled form of the JSON program in {@code requestBody}, compiling it on a cache miss. */
+    public CompiledProgram compile(byte[] requestBody) throws JSONException {
+        String key = ContentHash.sha256Hex(requestBody);
+        CacheEntry entry = cache.get(key);
+        if (entry == null) {
+            entry = new CacheEntry(compile(new JSONTokener(new String(requestBody, StandardCharsets.UTF_8))), requestBody.length);
+            cache.put(key, entry);
+        }
+        return entry.program;
+    }
+
+    /** Reads one program (array or scripts object) from {@code tokener} and compiles it. */
+    public static CompiledProgram compile(JSONTokener tokener) throws JSONException {
+        Object program = tokener.nextValue();
+        if (program instanceof JSONArray) {
+            return compile((JSONArray) program);
+        }
+        if (program instanceof JSONObject) {
+            return compile((JSONObject) program);
+        }
+        throw tokener.syntaxError("A JSON block program must be an array of blocks or an object with \"scripts\"");
+    }
+
+    public static CompiledProgram compile(JSONArray program) throws JSONException {
+        return CompiledProgram.singleScript(compileBlocks(program));
+    }
+
+    public static CompiledProgram compile(JSONObject program) throws JSONException {
+        JSONArray scriptsJson = program.getJSONArray("scripts");
+        List<CompiledProgram.Script> scripts = new ArrayList<>(scriptsJson.length());
+        for (int i = 0; i < scriptsJson.length(); i++) {
+            JSONObject script = scriptsJson.getJSONObject(i);
+            scripts.add(new CompiledProgram.Script(script.optString("spriteId", null), compileBlocks(script.getJSONArray("blocks"))));
+        }
+        return new CompiledProgram(scripts);
+    }
+
+    private static List<BlockNode> compileBlocks(JSONArray blocksJson) throws JSONException {
+        List<BlockNode> blocks = new ArrayList<>(blocksJson.length());
+        for (int i = 0; i < blocksJson.length(); i++) {
+            blocks.add(compileBlock(blocksJson.getJSONObject(i)));
+        }
+        return blocks;
+    }
+
+    public static BlockNode compileBlock(JSONObject block) throws JSONException {
+        String blockType = block.optString("type", "UNKNOWN_BLOCK"); // Default to UNKNOWN_BLOCK if type is missing
+        JSONObject inputs = block.optJSONObject("inputs");
+        if (inputs == null) inputs = new JSONObject(); // Ensure inputs is never null for optString/optInt calls
+
+        switch (blockType) {
+            case "PYTHON_BLOCK":
+                return new BlockNode.PythonBlock(inputs.optString("CODE", ""));
+            case "CHANGE_VARIABLE_BLOCK":
+                return new BlockNode.ChangeVariableBlock(inputs.optString("VARIABLE_NAME", null),
+                        inputs.optString("VARIABLE_SCOPE", "global"), InputNode.compile(inputs, "VALUE"));
+            case "SET_VARIABLE_BLOCK":
+                return new BlockNode.SetVariableBlock(inputs.optString("VARIABLE_NAME", null),
+                        inputs.optString("VARIABLE_SCOPE", "global"), InputNode.compile(inputs, "VALUE"));
+            case "SWITCH_COSTUME_BLOCK": {
+                String costumeId = inputs.optString("COSTUME_ID", null); // Assuming direct costume ID for now
+                return new BlockNode.SwitchCostumeBlock(costumeId, inputs.optString("COSTUME_NAME", costumeId));
+            }
+            case "SAY_BLOCK":
+                return new BlockNode.SayBlock(InputNode.compile(inputs, "TEXT"));
+            case "LOOP_BLOCK": {
+                JSONArray children = block.optJSONArray("children");
+                List<BlockNode> body = children != null ? compileBlocks(children) : new ArrayList<>();
+                return new BlockNode.LoopBlock(InputNode.compile(inputs, "COUNT"), body.toArray(new BlockNode[0]));
+            }
+            case "GOTO_XY_BLOCK":
+                return new BlockNode.GotoXYBlock(InputNode.compile(inputs, "X"), InputNode.compile(inputs, "Y"));
+            case "CREATE_CLONE_BLOCK": {
+                String spriteId = inputs.optString("SPRITE_ID", "");
+                return new BlockNode.CreateCloneBlock(spriteId.isEmpty() || spriteId.equals("_myself_") ? null : spriteId);
+            }
+            case "DELETE_CLONE_BLOCK":
+                return new BlockNode.DeleteCloneBlock();
+            default:
+                return new BlockNode.UnknownBlock(blockType);
+        }
+    }
+
+    public long getHitCount() { return cache.getHitCount(); }
+    public long getMissCount() { return cache.getMissCount(); }
+    public long getEvictionCount() { return cache.getEvictionCount(); }
+    public int getCachedProgramCount() { return cache.size(); }
+}
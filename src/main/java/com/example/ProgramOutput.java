@@ -0,0 +1,347 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The text produced by one /api/execute_program request, capped at a fixed number of bytes.
+ *
+ * In buffered mode the text is collected and sent in one response at the end, like before. In
+ * streaming mode it is written to the HTTP response (chunked) as it is produced, so a chatty Python
+ * block never has to be held in memory; the 200 headers go out with the first byte of output, so
+ * errors found before any output can still be answered with a proper status code.
+ *
+ * Once the limit is reached a truncation marker is written and everything after it is dropped.
+ * All methods are synchronized because Python output arrives from a worker thread.
+ *
+ * The buffered outputs of a multi-script request can also draw on one {@link SharedLimit}, so that
+ * together they stay within the request's limit while any one script may use what the others leave.
+ */
+public class ProgramOutput {
+
+    /** Limit for the whole response of one request ({@code jscratch.output.maxRequestBytes}, default 1 MB). */
+    public static final long MAX_REQUEST_BYTES = Long.getLong("jscratch.output.maxRequestBytes", 1024L * 1024);
+    /** Limit for the output of a single block ({@code jscratch.output.maxBlockBytes}, default 256 KB). */
+    public static final long MAX_BLOCK_BYTES = Long.getLong("jscratch.output.maxBlockBytes", 256L * 1024);
+
+    /** Bytes that several outputs may hold between them; each takes what it writes as it writes it. */
+    public static final class SharedLimit {
+        private final long maxBytes;
+        private final AtomicLong left;
+
+        public SharedLimit(long maxBytes) {
+            this.maxBytes = Math.max(0, maxBytes);
+            this.left = new AtomicLong(this.maxBytes);
+        }
+
+        // Takes up to wanted bytes and returns how many it got
+        long take(long wanted) {
+            while (true) {
+                long available = left.get();
+                long taken = Math.min(available, wanted);
+                if (taken <= 0 || left.compareAndSet(available, available - taken)) {
+                    return Math.max(0, taken);
+                }
+            }
+        }
+
+        void giveBack(long unused) {
+            if (unused > 0) {
+                left.addAndGet(unused);
+            }
+        }
+    }
+
+    private final long maxBytes;
+    private final SharedLimit sharedLimit; // Null unless the output shares a limit with others
+    private long bytesWritten;
+    private boolean truncated;
+
+    private final StringBuilder buffer;     // Buffered mode
+    private final HttpExchange exchange;    // Streaming mode
+    private Writer stream;                  // Streaming mode, created when the headers are sent
+
+    private ProgramOutput(long maxBytes, SharedLimit sharedLimit, StringBuilder buffer, HttpExchange exchange) {
+        this.maxBytes = maxBytes;
+        this.sharedLimit = sharedLimit;
+        this.buffer = buffer;
+        this.exchange = exchange;
+    }
+
+    public static ProgramOutput buffered(long maxBytes) {
+        return new ProgramOutput(maxBytes, null, new StringBuilder(), null);
+    }
+
+    /** A buffered output that also stops when {@code sharedLimit} is used up by it and the others sharing it. */
+    public static ProgramOutput buffered(SharedLimit sharedLimit) {
+        return new ProgramOutput(sharedLimit.maxBytes, sharedLimit, new StringBuilder(), null);
+    }
+
+    public static ProgramOutput streaming(HttpExchange exchange, long maxBytes) {
+        return new ProgramOutput(maxBytes, null, null, exchange);
+    }
+
+    public boolean isStreaming() {
+        return exchange != null;
+    }
+
+    /** True once anything has been sent to the client, i.e. the response status can no longer change. */
+    public synchronized boolean isCommitted() {
+        return stream != null;
+    }
+
+    /** True once the byte limit has been hit; callers can skip building text that would be dropped anyway. */
+    public synchronized boolean isFull() {
+        return truncated;
+    }
+
+    public ProgramOutput append(Object value) {
+        return append(String.valueOf(value));
+    }
+
+    public ProgramOutput append(int value) {
+        return append(Integer.toString(value));
+    }
+
+    public ProgramOutput append(char c) {
+        return append(String.valueOf(c));
+    }
+
+    public synchronized ProgramOutput append(String text) {
+        if (truncated || text.isEmpty()) {
+            return this;
+        }
+        long size = utf8Length(text, text.length());
+        long allowed = Math.min(size, maxBytes - bytesWritten);
+        if (sharedLimit != null) {
+            allowed = sharedLimit.take(allowed);
+        }
+        if (allowed == size) {
+            write(text);
+            bytesWritten += size;
+            return this;
+        }
+        // Keep as much of the text as fits, without splitting a surrogate pair, then mark the cut.
+        int end = fittingChars(text, 0, text.length(), allowed);
+        long fitting = utf8Length(text, end);
+        if (sharedLimit != null) {
+            sharedLimit.giveBack(allowed - fitting); // Part of a character that did not fit
+        }
+        write(text.substring(0, end));
+        bytesWritten += fitting;
+        write("\n[Output truncated: the program's output exceeded " + maxBytes + " bytes]\n");
+        truncated = true;
+        return this;
+    }
+
+    /** Pushes streamed output to the client now (no-op in buffered mode). */
+    public synchronized void flush() {
+        if (stream != null) {
+            try {
+                stream.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Finishes a streamed response. The buffered text is sent by the handler itself. */
+    public synchronized void close() throws IOException {
+        if (exchange == null) {
+            return;
+        }
+        startStream(); // An empty program still needs its headers
+        stream.close();
+    }
+
+    /**
+     * Returns the text buffered so far and starts over with an empty buffer and a fresh byte limit,
+     * for output that is handed out piece by piece (e.g. once per stage tick). Buffered mode only.
+     */
+    public synchronized String drain() {
+        if (buffer == null) {
+            throw new IllegalStateException("Streamed output cannot be drained");
+        }
+        String text = buffer.toString();
+        buffer.setLength(0);
+        bytesWritten = 0;
+        truncated = false;
+        return text;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return buffer != null ? buffer.toString() : "";
+    }
+
+    /**
+     * A writer for one block's text: every line gets {@code indent} in front of it, and at most
+     * {@code maxBytes} of it are kept. Call {@link BlockWriter#finish()} when the block is done; writes
+     * after that (e.g. from a Python script that outlived its time budget) are ignored.
+     */
+    public BlockWriter blockWriter(String indent, long maxBytes) {
+        return new BlockWriter(indent, maxBytes);
+    }
+
+    public class BlockWriter extends Writer {
+        private final String indent;
+        private final long maxBytes;
+        private long blockBytes;
+        private boolean atLineStart = true;
+        private boolean finished;
+        private boolean blockTruncated;
+
+        private BlockWriter(String indent, long maxBytes) {
+            this.indent = indent;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            synchronized (ProgramOutput.this) {
+                if (finished || blockTruncated) {
+                    return;
+                }
+                long size = utf8Length(cbuf, off, len);
+                if (blockBytes + size > maxBytes) {
+                    // Keep the characters that fit whole; a surrogate pair is kept or cut together
+                    len = fittingChars(CharBuffer.wrap(cbuf, off, len), 0, len, Math.max(0, maxBytes - blockBytes));
+                    writeIndented(cbuf, off, len);
+                    blockTruncated = true;
+                    endLine();
+                    ProgramOutput.this.append(indent).append("[Output truncated: this block's output exceeded " + maxBytes + " bytes]\n");
+                    atLineStart = true;
+                    return;
+                }
+                blockBytes += size;
+                writeIndented(cbuf, off, len);
+            }
+        }
+
+        private void writeIndented(char[] cbuf, int off, int len) {
+            int lineStart = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                if (cbuf[i] == '\n') {
+                    if (atLineStart) {
+                        ProgramOutput.this.append(indent);
+                    }
+                    ProgramOutput.this.append(new String(cbuf, lineStart, i + 1 - lineStart));
+                    lineStart = i + 1;
+                    atLineStart = true;
+                }
+            }
+            if (lineStart < end) {
+                if (atLineStart) {
+                    ProgramOutput.this.append(indent);
+                }
+                ProgramOutput.this.append(new String(cbuf, lineStart, end - lineStart));
+                atLineStart = false;
+            }
+        }
+
+        private void endLine() {
+            if (!atLineStart) {
+                ProgramOutput.this.append("\n");
+                atLineStart = true;
+            }
+        }
+
+        /** Terminates the last line and detaches the writer from the output. */
+        public void finish() {
+            synchronized (ProgramOutput.this) {
+                if (!finished) {
+                    endLine();
+                    finished = true;
+                }
+            }
+        }
+
+        public boolean isEmpty() {
+            synchronized (ProgramOutput.this) {
+                return blockBytes == 0;
+            }
+        }
+
+        @Override
+        public void flush() {
+            ProgramOutput.this.flush();
+        }
+
+        @Override
+        public void close() {
+            finish();
+        }
+    }
+
+    private void write(String text) {
+        if (buffer != null) {
+            buffer.append(text);
+            return;
+        }
+        try {
+            startStream();
+            stream.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void startStream() throws IOException {
+        if (stream == null) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0); // 0 = chunked, length unknown
+            stream = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192);
+        }
+    }
+
+    /**
+     * How many chars of {@code text[start, end)}, from {@code start}, encode to at most {@code maxBytes}
+     * of UTF-8, never ending between the two halves of a surrogate pair.
+     */
+    static int fittingChars(CharSequence text, int start, int end, long maxBytes) {
+        int i = start;
+        long bytes = 0;
+        while (i < end) {
+            boolean pair = Character.isHighSurrogate(text.charAt(i)) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1));
+            int charBytes = pair ? 4 : utf8Length(text.charAt(i));
+            if (bytes + charBytes > maxBytes) {
+                break;
+            }
+            bytes += charBytes;
+            i += pair ? 2 : 1;
+        }
+        return i - start;
+    }
+
+    static long utf8Length(CharSequence text, int length) {
+        long bytes = 0;
+        for (int i = 0; i < length; i++) {
+            bytes += utf8Length(text.charAt(i));
+        }
+        return bytes;
+    }
+
+    private static long utf8Length(char[] cbuf, int off, int len) {
+        long bytes = 0;
+        for (int i = off; i < off + len; i++) {
+            bytes += utf8Length(cbuf[i]);
+        }
+        return bytes;
+    }
+
+    private static int utf8Length(char c) {
+        if (c < 0x80) return 1;
+        if (c < 0x800) return 2;
+        if (Character.isSurrogate(c)) return 2; // A pair encodes to 4 bytes
+        return 3;
+    }
+}
@@ -0,0 +1,693 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Makes one project's state survive restarts: a write-ahead log of published changes plus periodic
+ * compact snapshots, both in the project's own directory.
+ *
+ * Every version published by {@link ProjectState} is turned into one log record holding the sprites
+ * that changed (in full), the sprites that were removed and the global variables that changed. Records
+ * are written by a shared pool of writer threads. Whatever has queued up for a project is written in
+ * one go and made durable with a single {@code fsync} (group commit), so a burst of publishes costs one
+ * sync, not one each. {@link #awaitDurable} lets a request wait until its version is on disk.
+ *
+ * After {@code snapshotEveryRecords} records, the writer saves the whole project as a binary snapshot
+ * and starts a new log segment, deleting the old ones. At startup the snapshot is read through a
+ * memory-mapped buffer and only the log records after it are replayed. A record torn by a crash
+ * (short, or failing its CRC) ends the replay and is cut off. Sprite clones are left out of both:
+ * like Scratch, a loaded project starts without any.
+ *
+ * Files: {@code snapshot.bin} and {@code wal-<first version>.log}.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.persist.enabled} - persist project state at all (default true)</li>
+ *     <li>{@code jscratch.persist.dir} - directory holding one subdirectory per project (default "data")</li>
+ *     <li>{@code jscratch.persist.writerThreads} - threads writing logs, shared by all projects (default 2)</li>
+ *     <li>{@code jscratch.persist.snapshotEveryRecords} - log records between snapshots (default 1000)</li>
+ *     <li>{@code jscratch.persist.commitTimeoutMs} - how long a request waits for its changes to be durable (default 2000)</li>
+ * </ul>
+ */
+public class ProjectPersistence implements ProjectState.PublishListener {
+
+    private static final Logger LOGGER = Logger.getLogger(ProjectPersistence.class.getName());
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jscratch.persist.enabled", "true"));
+    public static final Path DATA_DIR = Path.of(System.getProperty("jscratch.persist.dir", "data"));
+    private static final int SNAPSHOT_EVERY_RECORDS = Integer.getInteger("jscratch.persist.snapshotEveryRecords", 1000);
+    public static final long COMMIT_TIMEOUT_MILLIS = Long.getLong("jscratch.persist.commitTimeoutMs", 2000L);
+
+    private static final int SNAPSHOT_MAGIC = 0x4a534353; // "JSCS"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    // Value tags of the binary encoding
+    private static final byte NULL = 0, DOUBLE = 1, LONG = 2, STRING = 3, TRUE = 4, FALSE = 5;
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            Math.max(1, Integer.getInteger("jscratch.persist.writerThreads", 2)), new WriterThreadFactory());
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "wal-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private final Path dir;
+    private final ConcurrentLinkedQueue<ProjectSnapshot[]> pending = new ConcurrentLinkedQueue<>(); // {previous, next}
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Object durableMonitor = new Object();
+    private volatile long durableVersion;
+    private volatile boolean failed;
+    private boolean restored;
+
+    // Guarded by this: drains of one project never overlap, and close() waits for a running drain
+    private FileChannel wal;
+    private int recordsSinceSnapshot;
+
+    private ProjectPersistence(Path dir, long durableVersion) {
+        this.dir = dir;
+        this.durableVersion = durableVersion;
+    }
+
+    /**
+     * Loads the project stored in {@code dir} into {@code state} (if there is one) and starts logging
+     * every version {@code state} publishes from then on. See {@link #isRestored()}.
+     */
+    public static ProjectPersistence open(Path dir, ProjectState state) throws IOException {
+        Files.createDirectories(dir);
+        long started = System.nanoTime();
+        Restored restored = Restored.load(dir);
+        boolean found = restored.version > 0;
+        if (found) {
+            state.restore(restored.version, restored.buildSprites(), restored.globals);
+            LOGGER.info("Restored project from " + dir + " at version " + restored.version + " (" + restored.replayedRecords
+                    + " log record(s) replayed) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        }
+        ProjectPersistence persistence = new ProjectPersistence(dir, state.snapshot().getVersion());
+        persistence.restored = found;
+        persistence.recordsSinceSnapshot = restored.replayedRecords;
+        state.addPublishListener(persistence);
+        return persistence;
+    }
+
+    /** True if {@link #open} found stored state and loaded it, i.e. this is not a new project. */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    public long getDurableVersion() {
+        return durableVersion;
+    }
+
+    // Called with ProjectState's publish lock held, so records are queued in version order
+    @Override
+    public void published(ProjectSnapshot previous, ProjectSnapshot next) {
+        pending.add(new ProjectSnapshot[] {previous, next});
+        if (drainScheduled.compareAndSet(false, true)) {
+            WRITERS.execute(this::drain);
+        }
+    }
+
+    /**
+     * Waits until {@code version} (and everything before it) is on disk, or the timeout expires.
+     * Returns false on timeout or if the log could not be written.
+     */
+    public boolean awaitDurable(long version, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (durableMonitor) {
+            while (durableVersion < version && !failed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                durableMonitor.wait(remaining);
+            }
+        }
+        return !failed;
+    }
+
+    // Group commit: write every queued record, then one fsync for all of them
+    private synchronized void drain() {
+        try {
+            ProjectSnapshot latest = writePending();
+            if (latest != null && recordsSinceSnapshot >= SNAPSHOT_EVERY_RECORDS) {
+                writeSnapshot(latest);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            drainScheduled.set(false);
+            // A publish that arrived after the last poll but before the flag was cleared still needs a drain
+            if (!pending.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+                WRITERS.execute(this::drain);
+            }
+        }
+    }
+
+    /**
+     * Stops logging {@code state} and leaves the project on disk in its compact form: whatever is still
+     * queued is written, then the whole project is saved as a snapshot and the log segments are deleted.
+     * Used when a project is evicted from memory; {@link #open} loads it again. Nothing must publish to
+     * {@code state} meanwhile.
+     *
+     * @throws IOException if the project could not be saved; the caller should keep it in memory
+     */
+    public synchronized void close(ProjectState state) throws IOException {
+        if (failed) {
+            throw new IOException("The log of " + dir + " could not be written earlier");
+        }
+        state.removePublishListener(this);
+        try {
+            writePending();
+            ProjectSnapshot latest = state.snapshot();
+            if (recordsSinceSnapshot > 0 || !Files.exists(dir.resolve(SNAPSHOT_FILE))) {
+                writeSnapshot(latest);
+            } else if (wal != null) {
+                wal.close();
+                wal = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    // Writes and syncs every queued record; returns the latest version written, or null if there was none
+    private ProjectSnapshot writePending() throws IOException {
+        ProjectSnapshot latest = null;
+        ProjectSnapshot[] change;
+        while ((change = pending.poll()) != null) {
+            if (wal == null) {
+                openLog(change[1].getVersion());
+            }
+            writeRecord(change[0], change[1]);
+            latest = change[1];
+        }
+        if (latest != null) {
+            wal.force(false);
+            markDurable(latest.getVersion());
+        }
+        return latest;
+    }
+
+    private void fail(Exception e) {
+        LOGGER.log(Level.SEVERE, "Could not write project log in " + dir + "; changes are no longer persisted", e);
+        failed = true;
+        synchronized (durableMonitor) {
+            durableMonitor.notifyAll();
+        }
+    }
+
+    private void markDurable(long version) {
+        synchronized (durableMonitor) {
+            durableVersion = version;
+            durableMonitor.notifyAll();
+        }
+    }
+
+    private void openLog(long firstVersion) throws IOException {
+        wal = FileChannel.open(dir.resolve("wal-" + firstVersion + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /** One record: int length, int CRC-32 of the payload, payload. */
+    private void writeRecord(ProjectSnapshot previous, ProjectSnapshot next) throws IOException {
+        Encoder payload = new Encoder();
+        payload.writeLong(next.getVersion());
+
+        // Records are queued for consecutive versions, so next knows which sprites changed; clones are never saved
+        Collection<String> ids = next.changedSpriteIdsSince(previous);
+        if (ids == null) {
+            Set<String> all = new HashSet<>(previous.getSprites().keySet());
+            all.addAll(next.getSprites().keySet());
+            ids = all;
+        }
+        List<ProjectSnapshot.SpriteSnapshot> changedSprites = new ArrayList<>();
+        List<String> removedSprites = new ArrayList<>();
+        for (String id : ids) {
+            ProjectSnapshot.SpriteSnapshot before = previous.getSprite(id);
+            ProjectSnapshot.SpriteSnapshot after = next.getSprite(id);
+            if (after != null && after.cloneOf == null) {
+                if (before != after) { // Unchanged sprites are shared between versions
+                    changedSprites.add(after);
+                }
+            } else if (before != null && before.cloneOf == null) {
+                removedSprites.add(id);
+            }
+        }
+        payload.writeInt(changedSprites.size());
+        for (ProjectSnapshot.SpriteSnapshot sprite : changedSprites) {
+            payload.writeSprite(sprite);
+        }
+        payload.writeInt(removedSprites.size());
+        for (String id : removedSprites) {
+            payload.writeString(id);
+        }
+
+        Map<String, Object> changedGlobals = new LinkedHashMap<>();
+        List<String> removedGlobals = new ArrayList<>();
+        if (previous.getGlobals() != next.getGlobals()) {
+            for (Map.Entry<String, Object> entry : next.getGlobals().entrySet()) {
+                Object before = previous.getGlobals().get(entry.getKey());
+                if (!previous.getGlobals().containsKey(entry.getKey()) || !Objects.equals(before, entry.getValue())) {
+                    changedGlobals.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (String name : previous.getGlobals().keySet()) {
+                if (!next.getGlobals().containsKey(name)) {
+                    removedGlobals.add(name);
+                }
+            }
+        }
+        payload.writeVariables(changedGlobals);
+        payload.writeInt(removedGlobals.size());
+        for (String name : removedGlobals) {
+            payload.writeString(name);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.size());
+        record.putInt(payload.size()).putInt(payload.crc()).put(payload.buffer(), 0, payload.size()).flip();
+        while (record.hasRemaining()) {
+            wal.write(record);
+        }
+        recordsSinceSnapshot++;
+    }
+
+    /** Saves the whole project, then starts a fresh log segment and deletes the ones the snapshot covers. */
+    private void writeSnapshot(ProjectSnapshot snapshot) throws IOException {
+        Encoder out = new Encoder();
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(snapshot.getVersion());
+        out.writeVariables(snapshot.getGlobals());
+        List<ProjectSnapshot.SpriteSnapshot> saved = new ArrayList<>(snapshot.getSprites().size());
+        for (ProjectSnapshot.SpriteSnapshot sprite : snapshot.getSprites().values()) {
+            if (sprite.cloneOf == null) {
+                saved.add(sprite);
+            }
+        }
+        out.writeInt(saved.size());
+        for (ProjectSnapshot.SpriteSnapshot sprite : saved) {
+            out.writeSprite(sprite);
+        }
+        out.writeInt(out.crc());
+
+        Path temp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(out.buffer(), 0, out.size());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename is only durable once the directory is; until then a crash may bring back the old
+        // snapshot, which needs the log segments deleted below
+        syncDirectory(dir);
+
+        // Every record so far is in the snapshot; the next publish opens a new segment
+        if (wal != null) {
+            wal.close();
+            wal = null;
+        }
+        for (Path log : listLogs(dir).values()) {
+            Files.deleteIfExists(log);
+        }
+        recordsSinceSnapshot = 0;
+        LOGGER.info("Wrote snapshot of " + dir + " at version " + snapshot.getVersion() + " (" + out.size() + " bytes)");
+    }
+
+    private static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Windows cannot open a directory as a file; NTFS makes the rename durable without it
+        }
+    }
+
+    /** Log segments by the first version they hold, oldest first. */
+    private static TreeMap<Long, Path> listLogs(Path dir) {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    logs.put(Long.parseLong(name.substring(4, name.length() - 4)), file);
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring unexpected file " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return logs;
+    }
+
+    /** State read back from disk: the snapshot plus every intact log record after it. */
+    private static final class Restored {
+        long version;
+        int replayedRecords;
+        final Map<String, Object> globals = new HashMap<>();
+        final Map<String, SpriteData> sprites = new LinkedHashMap<>();
+
+        static Restored load(Path dir) throws IOException {
+            Restored restored = new Restored();
+            Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshotFile)) {
+                restored.loadSnapshot(snapshotFile);
+            }
+            for (Path log : listLogs(dir).values()) {
+                restored.replay(log);
+            }
+            return restored;
+        }
+
+        // Decodes straight from a read-only mapping of the file: no read() copies, and the OS pages it in as needed
+        private void loadSnapshot(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int bodyLength = mapped.limit() - 4;
+                CRC32 crc = new CRC32();
+                ByteBuffer body = mapped.duplicate();
+                body.limit(bodyLength);
+                crc.update(body);
+                if (mapped.getInt(bodyLength) != (int) crc.getValue()) {
+                    throw new IOException("Snapshot " + file + " is corrupt (CRC mismatch)");
+                }
+                Decoder in = new Decoder(mapped);
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Snapshot " + file + " has an unknown format");
+                }
+                version = in.readLong();
+                globals.putAll(in.readVariables());
+                int spriteCount = in.readInt();
+                for (int i = 0; i < spriteCount; i++) {
+                    SpriteData sprite = in.readSprite();
+                    sprites.put(sprite.id, sprite);
+                }
+            }
+        }
+
+        private void replay(Path log) throws IOException {
+            long validBytes = 0;
+            long logSize = Files.size(log);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break; // Clean end of the log
+                    }
+                    // A length running past the end of the segment is a torn header, not a record to allocate for
+                    if (length < 0 || length > logSize - validBytes - 8) {
+                        break;
+                    }
+                    byte[] payload = readFully(in, length + 4);
+                    if (payload == null) {
+                        break; // Torn record
+                    }
+                    int storedCrc = ByteBuffer.wrap(payload, 0, 4).getInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(payload, 4, length);
+                    if ((int) crc.getValue() != storedCrc) {
+                        break; // Torn or corrupt record
+                    }
+                    apply(new Decoder(ByteBuffer.wrap(payload, 4, length).slice()));
+                    validBytes += 8 + length;
+                }
+            }
+            if (validBytes < logSize) {
+                LOGGER.warning("Cutting off " + (logSize - validBytes) + " byte(s) of incomplete log at the end of " + log);
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(validBytes);
+                }
+            }
+        }
+
+        private static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] bytes = in.readNBytes(length);
+            return bytes.length == length ? bytes : null;
+        }
+
+        private void apply(Decoder record) {
+            long recordVersion = record.readLong();
+            if (recordVersion <= version) {
+                return; // Already in the snapshot
+            }
+            int changed = record.readInt();
+            for (int i = 0; i < changed; i++) {
+                SpriteData sprite = record.readSprite();
+                sprites.put(sprite.id, sprite);
+            }
+            int removed = record.readInt();
+            for (int i = 0; i < removed; i++) {
+                sprites.remove(record.readString());
+            }
+            globals.putAll(record.readVariables());
+            int removedGlobals = record.readInt();
+            for (int i = 0; i < removedGlobals; i++) {
+                globals.remove(record.readString());
+            }
+            version = recordVersion;
+            replayedRecords++;
+        }
+
+        Map<String, Sprite> buildSprites() {
+            Map<String, Sprite> built = new LinkedHashMap<>();
+            for (SpriteData data : sprites.values()) {
+                Sprite sprite = new Sprite(data.id, data.name, data.x, data.y, data.currentCostumeId, data.costumes, data.sounds);
+                for (Map.Entry<String, Object> variable : data.variables.entrySet()) {
+                    sprite.setLocalVariable(variable.getKey(), variable.getValue());
+                }
+                built.put(data.id, sprite);
+            }
+            return built;
+        }
+    }
+
+    private static final class SpriteData {
+        String id;
+        String name;
+        double x;
+        double y;
+        String currentCostumeId;
+        List<Map<String, String>> costumes;
+        List<Map<String, String>> sounds;
+        Map<String, Object> variables;
+    }
+
+    /** Growable big-endian output buffer for the binary formats. */
+    private static final class Encoder {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        byte[] buffer() { return bytes; }
+        int size() { return size; }
+
+        int crc() {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, size);
+            return (int) crc.getValue();
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            ByteBuffer.wrap(bytes, size, 4).putInt(value);
+            size += 4;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            ByteBuffer.wrap(bytes, size, 8).putLong(value);
+            size += 8;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeInt(-1);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeByte(LONG);
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                writeByte(DOUBLE);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE : FALSE);
+            } else {
+                writeByte(STRING);
+                writeString(String.valueOf(value)); // Other objects (e.g. from Python) are kept as their text
+            }
+        }
+
+        void writeVariables(Map<String, Object> variables) {
+            writeInt(variables.size());
+            for (Map.Entry<String, Object> entry : variables.entrySet()) {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        void writeMetadataList(List<Map<String, String>> list) {
+            writeInt(list.size());
+            for (Map<String, String> entry : list) {
+                writeInt(entry.size());
+                for (Map.Entry<String, String> field : entry.entrySet()) {
+                    writeString(field.getKey());
+                    writeString(field.getValue());
+                }
+            }
+        }
+
+        void writeSprite(ProjectSnapshot.SpriteSnapshot sprite) {
+            writeString(sprite.id);
+            writeString(sprite.name);
+            writeLong(Double.doubleToLongBits(sprite.x));
+            writeLong(Double.doubleToLongBits(sprite.y));
+            writeString(sprite.currentCostumeId);
+            writeMetadataList(sprite.costumes);
+            writeMetadataList(sprite.sounds);
+            writeVariables(sprite.variables);
+        }
+    }
+
+    /** Reads what {@link Encoder} wrote, from any ByteBuffer (heap or memory-mapped). */
+    private static final class Decoder {
+        private final ByteBuffer in;
+
+        Decoder(ByteBuffer in) {
+            this.in = in;
+        }
+
+        int readInt() { return in.getInt(); }
+        long readLong() { return in.getLong(); }
+
+        String readString() {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] utf8 = new byte[length];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        Object readValue() {
+            byte tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case LONG: return in.getLong();
+                case DOUBLE: return Double.longBitsToDouble(in.getLong());
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case STRING: return readString();
+                default: throw new IllegalStateException("Unknown value tag " + tag);
+            }
+        }
+
+        Map<String, Object> readVariables() {
+            int count = in.getInt();
+            Map<String, Object> variables = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                variables.put(name, readValue());
+            }
+            return variables;
+        }
+
+        List<Map<String, String>> readMetadataList() {
+            int count = in.getInt();
+            List<Map<String, String>> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int fields = in.getInt();
+                Map<String, String> entry = new HashMap<>();
+                for (int j = 0; j < fields; j++) {
+                    String key = readString();
+                    entry.put(key, readString());
+                }
+                list.add(entry);
+            }
+            return list;
+        }
+
+        SpriteData readSprite() {
+            SpriteData sprite = new SpriteData();
+            sprite.id = readString();
+            sprite.name = readString();
+            sprite.x = Double.longBitsToDouble(in.getLong());
+            sprite.y = Double.longBitsToDouble(in.getLong());
+            sprite.currentCostumeId = readString();
+            sprite.costumes = readMetadataList();
+            sprite.sounds = readMetadataList();
+            sprite.variables = readVariables();
+            return sprite;
+        }
+    }
+}
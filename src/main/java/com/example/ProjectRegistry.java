@@ -0,0 +1,273 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps many independent projects (one per classroom, session or user) and only the busy ones in memory.
+ *
+ * Projects are spread over a fixed number of shards by id. A lookup of a project that is in memory takes
+ * no lock at all; loading a project from disk, or evicting one, locks only its shard, so a slow load
+ * never holds up projects in other shards.
+ *
+ * Every use of a project is bracketed by {@link #acquire} and {@link Project#release()}. A project that
+ * is not in use, has no live stages and no state stream subscribers can be evicted: it is saved in its
+ * compact on-disk form (see {@link ProjectPersistence#close}) and dropped from memory. The next
+ * {@link #acquire} loads it again. A sweeper evicts projects that were idle for {@code idleMs}, then,
+ * while more than {@code maxResident} projects are loaded or the heap is fuller than
+ * {@code heapLimitPercent}, the least recently used ones. Without persistence nothing is ever evicted,
+ * since it could not be loaded again.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.projects.shards} - number of shards, rounded up to a power of two (default 64)</li>
+ *     <li>{@code jscratch.projects.idleMs} - idle time after which a project is evicted (default 600000)</li>
+ *     <li>{@code jscratch.projects.maxResident} - projects kept in memory at most (default 10000)</li>
+ *     <li>{@code jscratch.projects.heapLimitPercent} - heap use above which idle projects are evicted early (default 80)</li>
+ *     <li>{@code jscratch.projects.sweepMs} - how often to look for projects to evict (default 10000)</li>
+ * </ul>
+ */
+public class ProjectRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(ProjectRegistry.class.getName());
+
+    public static final String DEFAULT_PROJECT_ID = "default";
+    private static final Pattern PROJECT_ID_PATTERN = Pattern.compile("^[a-zA-Z0-9_-]{1,64}$");
+
+    /** One loaded project. Obtained from {@link #acquire}; call {@link #release()} when done with it. */
+    public static class Project {
+        private final String id;
+        private final ProjectState state;
+        private final ProjectPersistence persistence; // Null if persistence is disabled
+        private final StateBroadcaster broadcaster;
+        // Current uses; -1 once the project is being evicted, after which it can no longer be acquired
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        Project(String id, ProjectState state, ProjectPersistence persistence) {
+            this.id = id;
+            this.state = state;
+            this.persistence = persistence;
+            this.broadcaster = new StateBroadcaster(state);
+        }
+
+        public String getId() { return id; }
+        public ProjectState getState() { return state; }
+        public ProjectPersistence getPersistence() { return persistence; }
+        public StateBroadcaster getBroadcaster() { return broadcaster; }
+
+        /** Takes one more use of an acquired project, e.g. for a stage that outlives the request. */
+        public void retain() {
+            if (!tryRetain()) {
+                throw new IllegalStateException("Project '" + id + "' was evicted");
+            }
+        }
+
+        /** Ends one use. The project may be evicted once it has no uses left. */
+        public void release() {
+            lastUsedNanos = System.nanoTime();
+            users.decrementAndGet();
+        }
+
+        private boolean tryRetain() {
+            int current;
+            do {
+                current = users.get();
+                if (current < 0) {
+                    return false;
+                }
+            } while (!users.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        private boolean isEvictable() {
+            return users.get() == 0 && broadcaster.getClientCount() == 0;
+        }
+    }
+
+    private static class Shard {
+        final Map<String, Project> projects = new ConcurrentHashMap<>(); // Written with the shard's lock held
+    }
+
+    private final Shard[] shards;
+    private final Path dataDir; // Null if persistence is disabled
+    private final Consumer<ProjectState> initializer;
+    private final long idleNanos;
+    private final int maxResident;
+    private final int heapLimitPercent;
+    private final AtomicInteger resident = new AtomicInteger();
+
+    /**
+     * @param dataDir     directory holding one subdirectory per project, or null to keep projects in memory only
+     * @param initializer sets up the state of a project that was never saved before
+     */
+    public ProjectRegistry(int shardCount, Path dataDir, Consumer<ProjectState> initializer,
+                           long idleMillis, int maxResident, int heapLimitPercent) {
+        int size = Integer.highestOneBit(Math.max(1, shardCount - 1) << 1);
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard();
+        }
+        this.dataDir = dataDir;
+        this.initializer = initializer;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.maxResident = Math.max(1, maxResident);
+        this.heapLimitPercent = heapLimitPercent;
+    }
+
+    public static ProjectRegistry fromSystemProperties(Consumer<ProjectState> initializer) {
+        ProjectRegistry registry = new ProjectRegistry(
+            Integer.getInteger("jscratch.projects.shards", 64),
+            ProjectPersistence.ENABLED ? ProjectPersistence.DATA_DIR : null,
+            initializer,
+            Long.getLong("jscratch.projects.idleMs", 600_000L),
+            Integer.getInteger("jscratch.projects.maxResident", 10_000),
+            Integer.getInteger("jscratch.projects.heapLimitPercent", 80));
+        if (registry.dataDir != null) {
+            long sweepMillis = Math.max(100, Long.getLong("jscratch.projects.sweepMs", 10_000L));
+            ScheduledThreadPoolExecutor sweeper = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "project-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(registry::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        }
+        return registry;
+    }
+
+    /** True if {@code id} can name a project (letters, digits, '_' and '-', at most 64 characters). */
+    public static boolean isValidId(String id) {
+        return id != null && PROJECT_ID_PATTERN.matcher(id).matches();
+    }
+
+    public int getResidentCount() {
+        return resident.get();
+    }
+
+    /**
+     * Calls {@code action} for each project in memory, without loading, locking or retaining any. The
+     * view is weakly consistent: projects loaded or evicted meanwhile may or may not be seen.
+     */
+    public void forEachResident(Consumer<Project> action) {
+        for (Shard shard : shards) {
+            shard.projects.values().forEach(action);
+        }
+    }
+
+    /**
+     * Returns project {@code id}, loading it from disk (or creating it) if it is not in memory, with one
+     * use taken. The caller must {@link Project#release()} it.
+     */
+    public Project acquire(String id) throws IOException {
+        if (!isValidId(id)) {
+            throw new IllegalArgumentException("Invalid project id: " + id);
+        }
+        Shard shard = shardOf(id);
+        Project project = shard.projects.get(id);
+        if (project != null && project.tryRetain()) {
+            return project; // The common case: no lock
+        }
+        synchronized (shard) {
+            project = shard.projects.get(id); // Evictions happen under this lock, so this one is not being evicted
+            if (project == null) {
+                project = load(id);
+                shard.projects.put(id, project);
+                resident.incrementAndGet();
+            }
+            project.retain();
+            return project;
+        }
+    }
+
+    private Project load(String id) throws IOException {
+        long started = System.nanoTime();
+        ProjectState state = new ProjectState();
+        ProjectPersistence persistence = dataDir == null ? null : ProjectPersistence.open(dataDir.resolve(id), state);
+        if (persistence == null || !persistence.isRestored()) {
+            initializer.accept(state);
+        }
+        state.publish();
+        LOGGER.info("Loaded project '" + id + "' in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        return new Project(id, state, persistence);
+    }
+
+    private Shard shardOf(String id) {
+        int hash = id.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    /** Evicts idle projects, then least recently used ones while over the resident or heap limit. */
+    void sweep() {
+        try {
+            long now = System.nanoTime();
+            List<Project> candidates = new ArrayList<>();
+            for (Shard shard : shards) {
+                for (Project project : shard.projects.values()) {
+                    if (project.isEvictable()) {
+                        candidates.add(project);
+                    }
+                }
+            }
+            candidates.sort(Comparator.comparingLong(project -> project.lastUsedNanos - now)); // Least recently used first
+
+            int evicted = 0;
+            boolean heapPressure = heapUsedPercent() > heapLimitPercent;
+            int pressureBudget = heapPressure ? Math.max(1, candidates.size() / 4) : 0; // Let the GC catch up before evicting more
+            for (Project project : candidates) {
+                boolean idle = now - project.lastUsedNanos >= idleNanos;
+                boolean overLimit = resident.get() > maxResident;
+                if (!idle && !overLimit && evicted >= pressureBudget) {
+                    break; // Sorted oldest first, so the rest are more recent still
+                }
+                if (evict(project)) {
+                    evicted++;
+                }
+            }
+            if (evicted > 0) {
+                LOGGER.info("Evicted " + evicted + " project(s) to disk" + (heapPressure ? " (heap over " + heapLimitPercent + "%)" : "")
+                        + ", " + resident.get() + " still loaded");
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Project sweep failed: " + e.getMessage(), e); // Must not cancel the periodic sweep
+        }
+    }
+
+    private boolean evict(Project project) {
+        Shard shard = shardOf(project.id);
+        synchronized (shard) {
+            if (project.broadcaster.getClientCount() > 0 || !project.users.compareAndSet(0, -1)) {
+                return false; // Picked up again since the sweep looked at it
+            }
+            try {
+                project.state.publish(); // Nothing may be left unpublished, or it would not be saved
+                project.persistence.close(project.state);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not save project '" + project.id + "', keeping it in memory", e);
+                project.users.set(0);
+                return false;
+            }
+            project.broadcaster.close();
+            shard.projects.remove(project.id);
+            resident.decrementAndGet();
+            return true;
+        }
+    }
+
+    private static int heapUsedPercent() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (int) (used * 100 / runtime.maxMemory());
+    }
+}
@@ -0,0 +1,87 @@
+package com.example;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One immutable version of the project model: every sprite plus the global variables, as they were
+ * when the version was published by {@link ProjectState#publish()}. Readers can hold on to a snapshot
+ * as long as they like; it never changes underneath them, and nothing has to be copied or locked.
+ *
+ * Consecutive versions share the parts that did not change: the sprites are a {@link HashTrie}, so
+ * publishing after a program that moved one sprite copies that sprite and a few trie nodes, not the
+ * map of every sprite. Each version also records which sprite ids changed since the version it was
+ * built from, so deltas and log records need not look at the others.
+ */
+public class ProjectSnapshot {
+
+    /** An immutable copy of one sprite's state. */
+    public static class SpriteSnapshot {
+        public final String id;
+        public final String name;
+        public final double x;
+        public final double y;
+        public final String currentCostumeId;
+        public final List<Map<String, String>> costumes;
+        public final List<Map<String, String>> sounds;
+        public final Map<String, Object> variables;
+        public final String cloneOf; // Null unless the sprite is a clone
+        final long revision; // Sprite.getRevision() when copied
+
+        SpriteSnapshot(Sprite sprite, long revision, Map<String, Object> variables) {
+            this.id = sprite.getId();
+            this.name = sprite.getName();
+            this.x = sprite.getX();
+            this.y = sprite.getY();
+            this.currentCostumeId = sprite.getCurrentCostumeId();
+            this.costumes = sprite.getCostumes(); // Immutable CostumeTable list, shared rather than copied
+            this.sounds = sprite.getSounds(); // Unmodifiable and replaced on change, so shared too
+            this.variables = variables; // Already an immutable VariableStore snapshot
+            this.cloneOf = sprite.getCloneOf();
+            this.revision = revision;
+        }
+    }
+
+    private final long version;
+    private final long publishedAtMillis;
+    private final HashTrie<SpriteSnapshot> sprites;
+    private final Map<String, Object> globals;
+    // Identifies this version; a version built from it holds the same object in basedOn. A plain token
+    // rather than the previous snapshot itself, so versions never keep older ones alive.
+    private final Object identity = new Object();
+    private final Object basedOn;
+    private final Set<String> changedSpriteIds; // Added, changed or removed since basedOn; null if not known
+
+    ProjectSnapshot(long version, HashTrie<SpriteSnapshot> sprites, Map<String, Object> globals) {
+        this(version, sprites, globals, null, null);
+    }
+
+    ProjectSnapshot(long version, HashTrie<SpriteSnapshot> sprites, Map<String, Object> globals,
+                    ProjectSnapshot previous, Set<String> changedSpriteIds) {
+        this.version = version;
+        this.publishedAtMillis = System.currentTimeMillis();
+        this.sprites = sprites;
+        this.globals = globals;
+        this.basedOn = previous != null ? previous.identity : null;
+        this.changedSpriteIds = previous != null ? changedSpriteIds : null;
+    }
+
+    /** Increases by one with every published change; version 0 is the empty project. */
+    public long getVersion() { return version; }
+    public long getPublishedAtMillis() { return publishedAtMillis; }
+    public Map<String, SpriteSnapshot> getSprites() { return sprites; } // Immutable
+    HashTrie<SpriteSnapshot> spriteTrie() { return sprites; }
+    public SpriteSnapshot getSprite(String id) { return sprites.get(id); }
+    public Map<String, Object> getGlobals() { return globals; }
+
+    /**
+     * The ids of the sprites added, changed or removed since {@code previous}, if this version was built
+     * directly from it; null otherwise (then every sprite has to be compared). See also
+     * {@link ProjectState#changedSpriteIds}, which spans several versions.
+     */
+    public Collection<String> changedSpriteIdsSince(ProjectSnapshot previous) {
+        return previous != null && basedOn == previous.identity ? changedSpriteIds : null;
+    }
+}
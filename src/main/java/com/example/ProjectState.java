@@ -0,0 +1,255 @@
+package com.example;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The state of one project: the live, mutable model that running programs work on, and a series of
+ * immutable {@link ProjectSnapshot versions} of it for everybody else.
+ *
+ * Programs read and write the live sprites and variables directly (they must see their own writes).
+ * When a program or stage tick is done, {@link #publish()} copies whatever changed into a new
+ * snapshot and swaps it in atomically. Sprites report their own changes (see {@link #spriteChanged}),
+ * so a publish only looks at the sprites that changed, however many the project has. Readers call {@link #snapshot()} and get a consistent version
+ * without locking: a single volatile read, however many readers there are.
+ *
+ * The last {@code jscratch.state.historyVersions} versions (default 256) stay reachable through
+ * {@link #snapshotAt(long)}, so clients that are a few versions behind can be sent just the difference.
+ */
+public class ProjectState {
+
+    /** Told about every published version, in order, while the publisher still holds the publish lock. Must be quick. */
+    public interface PublishListener {
+        void published(ProjectSnapshot previous, ProjectSnapshot next);
+    }
+
+    private final Map<String, Sprite> sprites = new ConcurrentHashMap<>();
+    private final List<PublishListener> listeners = new CopyOnWriteArrayList<>();
+    private final VariableStore globals = new VariableStore();
+    private final SpatialIndex spatialIndex = new SpatialIndex(sprites);
+    private final ClonePool clones = new ClonePool(this, ClonePool.MAX_PER_PROJECT);
+    // Ids of sprites added, removed or changed since the last publish, which drains it
+    private final Set<String> dirtySprites = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<ProjectSnapshot> current =
+            new AtomicReference<>(new ProjectSnapshot(0, HashTrie.empty(), Collections.emptyMap()));
+    // Recent versions, at index version % length. Slots are overwritten in place, so a reader checks the version it got.
+    private final AtomicReferenceArray<ProjectSnapshot> history =
+            new AtomicReferenceArray<>(Math.max(1, Integer.getInteger("jscratch.state.historyVersions", 256)));
+
+    /**
+     * The live sprites, for running programs. Readers should use {@link #snapshot()}. Add and remove
+     * sprites with {@link #addSprite} and {@link #removeSprite}, which keep the spatial index in step.
+     */
+    public Map<String, Sprite> getSprites() {
+        return sprites;
+    }
+
+    /** Adds a sprite, replacing any sprite with the same id. */
+    public void addSprite(Sprite sprite) {
+        Sprite replaced = sprites.put(sprite.getId(), sprite);
+        if (replaced != null && replaced != sprite) {
+            spatialIndex.remove(replaced);
+            replaced.attach(null);
+        }
+        spatialIndex.add(sprite);
+        sprite.attach(this);
+        dirtySprites.add(sprite.getId());
+    }
+
+    /** Removes {@code sprite} if it is still the project's sprite with its id. Returns false otherwise. */
+    public boolean removeSprite(Sprite sprite) {
+        if (!sprites.remove(sprite.getId(), sprite)) {
+            return false;
+        }
+        spatialIndex.remove(sprite);
+        sprite.attach(null);
+        dirtySprites.add(sprite.getId());
+        return true;
+    }
+
+    /** Called by a sprite of this project the first time it changes after a publish. */
+    void spriteChanged(String id) {
+        dirtySprites.add(id);
+    }
+
+    /** The grid of sprite positions that sensing reporters query. */
+    public SpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /** The live global variables, for running programs. Readers should use {@link #snapshot()}. */
+    public VariableStore getGlobals() {
+        return globals;
+    }
+
+    /** Makes and deletes the project's sprite clones, which live in {@link #getSprites()} with the other sprites. */
+    public ClonePool getClones() {
+        return clones;
+    }
+
+    public void addPublishListener(PublishListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removePublishListener(PublishListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Replaces the live state with restored data (e.g. loaded from disk) and makes it the current
+     * version, numbered {@code version}. Listeners are not told: the data came from them.
+     */
+    public synchronized void restore(long version, Map<String, Sprite> restoredSprites, Map<String, Object> restoredGlobals) {
+        spatialIndex.clear();
+        for (Sprite sprite : sprites.values()) {
+            sprite.attach(null);
+        }
+        sprites.clear();
+        for (Sprite sprite : restoredSprites.values()) {
+            addSprite(sprite);
+        }
+        clones.reset(); // Clones are never saved, so none were restored
+        for (Map.Entry<String, Object> entry : globals.asMap().entrySet()) {
+            globals.remove(globals.slotOf(entry.getKey()));
+        }
+        for (Map.Entry<String, Object> entry : restoredGlobals.entrySet()) {
+            globals.set(globals.slotOf(entry.getKey()), entry.getValue());
+        }
+        ProjectSnapshot restored = buildSnapshot(version, null);
+        for (int i = 0; i < history.length(); i++) {
+            history.set(i, null); // Older versions of some other timeline
+        }
+        remember(restored);
+        current.set(restored);
+    }
+
+    /** The latest published version. Never null, never changes after it is returned. */
+    public ProjectSnapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * The ids of the sprites that differ between {@code from} and {@code to}, a later version of this
+     * project, gathered from the versions in between; null if any of them is no longer in the history
+     * (then every sprite has to be compared).
+     */
+    public Collection<String> changedSpriteIds(ProjectSnapshot from, ProjectSnapshot to) {
+        if (from == null) {
+            return null;
+        }
+        Set<String> union = null;
+        for (ProjectSnapshot later = to; later != from; ) {
+            if (later.getVersion() <= from.getVersion()) {
+                return null; // from is not an earlier version of to (e.g. from before a restore)
+            }
+            ProjectSnapshot earlier = later.getVersion() - 1 == from.getVersion() ? from : snapshotAt(later.getVersion() - 1);
+            Collection<String> step = later.changedSpriteIdsSince(earlier);
+            if (step == null) {
+                return null;
+            }
+            if (later == to && earlier == from) {
+                return step; // The usual case, one version apart: nothing to gather
+            }
+            if (union == null) {
+                union = new HashSet<>();
+            }
+            union.addAll(step);
+            if (union.size() >= to.getSprites().size()) {
+                return null; // No cheaper than comparing every sprite
+            }
+            later = earlier;
+        }
+        return union != null ? union : Collections.emptySet();
+    }
+
+    /**
+     * Version {@code version} if it is still in the history (or is the latest), else null.
+     * Like {@link #snapshot()}, this never locks.
+     */
+    public ProjectSnapshot snapshotAt(long version) {
+        ProjectSnapshot latest = current.get();
+        if (version == latest.getVersion()) {
+            return latest;
+        }
+        if (version < 0 || version > latest.getVersion()) {
+            return null;
+        }
+        ProjectSnapshot snapshot = history.get((int) (version % history.length()));
+        return snapshot != null && snapshot.getVersion() == version ? snapshot : null;
+    }
+
+    /**
+     * Publishes the current live state as a new version if anything changed since the last one, and
+     * returns the latest version. Unchanged sprites and globals are shared with the previous version.
+     * Publishers are serialized with each other, never with readers.
+     */
+    public synchronized ProjectSnapshot publish() {
+        ProjectSnapshot previous = current.get();
+        ProjectSnapshot next = buildSnapshot(previous.getVersion() + 1, previous);
+        if (next == null) {
+            return previous;
+        }
+        remember(next);
+        current.set(next);
+        for (PublishListener listener : listeners) {
+            listener.published(previous, next);
+        }
+        return next;
+    }
+
+    private void remember(ProjectSnapshot snapshot) {
+        history.set((int) (snapshot.getVersion() % history.length()), snapshot);
+    }
+
+    // Returns null if nothing changed since previous. With a previous version, only the sprites that
+    // reported a change are looked at, and the new version's sprite trie is the previous one with those
+    // replaced; without one (restore), every sprite is copied.
+    private ProjectSnapshot buildSnapshot(long version, ProjectSnapshot previous) {
+        if (previous == null) {
+            dirtySprites.clear();
+            HashTrie<ProjectSnapshot.SpriteSnapshot> all = HashTrie.empty();
+            for (Sprite sprite : sprites.values()) {
+                sprite.clearChanged();
+                all = all.with(sprite.getId(), new ProjectSnapshot.SpriteSnapshot(sprite, sprite.getRevision(), sprite.getAllLocalVariables()));
+            }
+            return new ProjectSnapshot(version, all, globals.snapshot());
+        }
+
+        HashTrie<ProjectSnapshot.SpriteSnapshot> spriteSnapshots = previous.spriteTrie();
+        Set<String> changedIds = new HashSet<>();
+        for (Iterator<String> dirty = dirtySprites.iterator(); dirty.hasNext(); ) {
+            String id = dirty.next();
+            dirty.remove(); // Before reading the sprite: a change from here on marks it again for the next publish
+            Sprite sprite = sprites.get(id);
+            ProjectSnapshot.SpriteSnapshot before = previous.getSprite(id);
+            if (sprite == null) {
+                if (before != null) {
+                    spriteSnapshots = spriteSnapshots.without(id);
+                    changedIds.add(id);
+                }
+                continue;
+            }
+            sprite.clearChanged();
+            long revision = sprite.getRevision(); // Read before copying: a write during the copy shows up next time
+            Map<String, Object> variables = sprite.getAllLocalVariables(); // Same instance until the next write
+            if (before == null || before.revision != revision || before.variables != variables) {
+                spriteSnapshots = spriteSnapshots.with(id, new ProjectSnapshot.SpriteSnapshot(sprite, revision, variables));
+                changedIds.add(id);
+            }
+        }
+        Map<String, Object> globalSnapshot = globals.snapshot(); // Same instance until the next write
+        if (changedIds.isEmpty() && globalSnapshot == previous.getGlobals()) {
+            return null;
+        }
+        return new ProjectSnapshot(version, spriteSnapshots, globalSnapshot, previous, Collections.unmodifiableSet(changedIds));
+    }
+}
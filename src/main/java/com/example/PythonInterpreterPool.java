@@ -0,0 +1,191 @@
+package com.example;
+
+import org.python.core.PyString;
+import org.python.core.PyStringMap;
+import org.python.core.PySystemState;
+import org.python.util.PythonInterpreter;
+
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of pre-warmed {@link PythonInterpreter} instances.
+ *
+ * Creating a PythonInterpreter is by far the most expensive part of running a PYTHON_BLOCK, so the
+ * pool keeps a few of them alive between executions. Every borrow hands out an interpreter with a
+ * brand-new namespace (locals/globals dictionary) and the caller's own stdout/stderr writers, which
+ * is exactly the isolation a freshly constructed interpreter gives us: nothing a script defines is
+ * visible to the next script. Each interpreter also has its own {@link PySystemState}, so the
+ * {@code sys.stdout} a borrow installs is seen only by that interpreter's script, not by Python blocks
+ * of other requests running at the same time. Interpreters are closed and replaced after {@code maxUses} executions,
+ * or immediately if an execution left them in an unknown state.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.jython.pool.min} - interpreters created up front (default 1)</li>
+ *     <li>{@code jscratch.jython.pool.max} - interpreters alive at most (default 4)</li>
+ *     <li>{@code jscratch.jython.pool.borrowTimeoutMs} - how long a borrow waits for a free interpreter (default 5000)</li>
+ *     <li>{@code jscratch.jython.pool.maxUses} - executions before an interpreter is recycled (default 100)</li>
+ * </ul>
+ */
+public class PythonInterpreterPool {
+
+    private static final Logger LOGGER = Logger.getLogger(PythonInterpreterPool.class.getName());
+
+    public static class Config {
+        public final int minSize;
+        public final int maxSize;
+        public final long borrowTimeoutMillis;
+        public final int maxUses;
+
+        public Config(int minSize, int maxSize, long borrowTimeoutMillis, int maxUses) {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("Pool max size must be at least 1, was " + maxSize);
+            }
+            this.maxSize = maxSize;
+            this.minSize = Math.max(0, Math.min(minSize, maxSize));
+            this.borrowTimeoutMillis = Math.max(0, borrowTimeoutMillis);
+            this.maxUses = Math.max(1, maxUses);
+        }
+
+        public static Config fromSystemProperties() {
+            return new Config(
+                Integer.getInteger("jscratch.jython.pool.min", 1),
+                Integer.getInteger("jscratch.jython.pool.max", 4),
+                Long.getLong("jscratch.jython.pool.borrowTimeoutMs", 5000L),
+                Integer.getInteger("jscratch.jython.pool.maxUses", 100)
+            );
+        }
+    }
+
+    /**
+     * An interpreter checked out of the pool. Callers must hand it back through {@link #release}
+     * (or {@link #discard} if the execution failed in a way that may have corrupted it).
+     */
+    public static class PooledInterpreter {
+        private final PythonInterpreter interpreter;
+        private int uses;
+
+        private PooledInterpreter(PythonInterpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        public PythonInterpreter get() {
+            return interpreter;
+        }
+    }
+
+    private final Config config;
+    private final LinkedBlockingDeque<PooledInterpreter> idle = new LinkedBlockingDeque<>();
+    // One permit per interpreter that may be alive (idle or borrowed), so the pool never exceeds maxSize.
+    private final Semaphore permits;
+
+    public PythonInterpreterPool(Config config) {
+        this.config = config;
+        this.permits = new Semaphore(config.maxSize, true);
+        for (int i = 0; i < config.minSize; i++) {
+            try {
+                idle.offer(newInterpreter());
+            } catch (Exception e) {
+                // Not fatal: borrow() creates interpreters on demand.
+                LOGGER.log(Level.WARNING, "Failed to pre-warm PythonInterpreter " + (i + 1) + "/" + config.minSize, e);
+                break;
+            }
+        }
+        LOGGER.info("PythonInterpreterPool ready with " + idle.size() + " pre-warmed interpreter(s), max " + config.maxSize);
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Checks out an interpreter, waiting up to the configured borrow timeout for one to become free.
+     * The returned interpreter has a fresh namespace and writes its output to the given writers.
+     */
+    public PooledInterpreter borrow(Writer stdout, Writer stderr) throws InterruptedException, TimeoutException {
+        return borrow(stdout, stderr, Collections.emptyMap());
+    }
+
+    /**
+     * Like {@link #borrow(Writer, Writer)}, with {@code bindings} defined as names in the fresh namespace.
+     * Bound Java objects are not copied: a bound {@code java.util.Map} is seen by the script as a
+     * live mapping, so reads and writes go straight to the Java side.
+     */
+    public PooledInterpreter borrow(Writer stdout, Writer stderr, Map<String, ?> bindings) throws InterruptedException, TimeoutException {
+        if (!permits.tryAcquire(config.borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("No Python interpreter became available within " + config.borrowTimeoutMillis + " ms");
+        }
+        PooledInterpreter pooled = idle.pollFirst();
+        try {
+            if (pooled == null) {
+                pooled = newInterpreter();
+            }
+            resetNamespace(pooled.interpreter);
+            for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+                pooled.interpreter.set(binding.getKey(), binding.getValue());
+            }
+            pooled.interpreter.setOut(stdout); // Rebinds sys.stdout of this interpreter's own system state only
+            pooled.interpreter.setErr(stderr);
+            pooled.uses++;
+            return pooled;
+        } catch (RuntimeException e) {
+            if (pooled != null) {
+                closeQuietly(pooled);
+            }
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** Returns a healthy interpreter to the pool, recycling it once it has reached its use limit. */
+    public void release(PooledInterpreter pooled) {
+        if (pooled.uses >= config.maxUses) {
+            closeQuietly(pooled);
+        } else {
+            // Drop the script's namespace now rather than at the next borrow, so its objects can be collected.
+            resetNamespace(pooled.interpreter);
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+    }
+
+    /** Closes an interpreter that must not be reused (e.g. its execution failed outside of Python). */
+    public void discard(PooledInterpreter pooled) {
+        closeQuietly(pooled);
+        permits.release();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    // new PythonInterpreter() would use the process-wide Py.getSystemState(), whose sys.stdout every
+    // interpreter's setOut() replaces, so concurrent scripts could print into each other's output.
+    private static PooledInterpreter newInterpreter() {
+        return new PooledInterpreter(new PythonInterpreter(null, new PySystemState()));
+    }
+
+    private static void resetNamespace(PythonInterpreter interpreter) {
+        PyStringMap namespace = new PyStringMap();
+        // A new PythonInterpreter runs scripts as __main__; keep that true for reused ones.
+        namespace.__setitem__("__name__", new PyString("__main__"));
+        interpreter.setLocals(namespace);
+    }
+
+    private static void closeQuietly(PooledInterpreter pooled) {
+        try {
+            pooled.interpreter.close();
+            pooled.interpreter.getSystemState().close(); // Ours alone, see newInterpreter()
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error closing pooled PythonInterpreter", e);
+        }
+    }
+}
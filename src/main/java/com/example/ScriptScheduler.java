@@ -0,0 +1,97 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many {@link ScriptThread}s at the same time as cooperative green threads, the way Scratch runs
+ * one script per sprite.
+ *
+ * Each script runs on a shared fork-join pool for one time slice (about {@code sliceInstructions}
+ * instructions) and then yields at the end of a loop iteration, as Scratch scripts do; the pool picks
+ * it up again after the scripts already waiting. The pool runs in async (FIFO) mode, so slices are
+ * handed out in roughly round-robin order, and idle workers steal from busy ones, so a project with
+ * hundreds of sprites keeps every core busy.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.scheduler.parallelism} - worker threads (default: number of CPUs)</li>
+ *     <li>{@code jscratch.scheduler.sliceInstructions} - instructions a script runs before it yields (default 1000)</li>
+ * </ul>
+ */
+public class ScriptScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptScheduler.class.getName());
+
+    private final ForkJoinPool pool;
+    private final long sliceInstructions;
+
+    public ScriptScheduler(int parallelism, long sliceInstructions) {
+        this.sliceInstructions = Math.max(1, sliceInstructions);
+        this.pool = new ForkJoinPool(Math.max(1, parallelism), new WorkerThreadFactory(), null, true);
+    }
+
+    public static ScriptScheduler fromSystemProperties() {
+        return new ScriptScheduler(
+            Integer.getInteger("jscratch.scheduler.parallelism", Runtime.getRuntime().availableProcessors()),
+            Long.getLong("jscratch.scheduler.sliceInstructions", 1000L));
+    }
+
+    private static class WorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("script-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    public long getSliceInstructions() {
+        return sliceInstructions;
+    }
+
+    /** Runs all scripts to completion, interleaved, and returns once the last one has finished. */
+    public void runAll(List<ScriptThread> scripts) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(scripts.size());
+        for (ScriptThread script : scripts) {
+            pool.execute(new Slice(script, done));
+        }
+        done.await();
+    }
+
+    /** One script's next time slice; re-submits itself until the script has finished. */
+    private class Slice implements Runnable {
+        private final ScriptThread script;
+        private final CountDownLatch done;
+
+        Slice(ScriptThread script, CountDownLatch done) {
+            this.script = script;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            boolean finished;
+            try {
+                finished = script.runSlice(sliceInstructions);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Script for sprite '" + script.getContext().getTargetSpriteId() + "' failed: " + e.getMessage(), e);
+                script.fail(e);
+                finished = true;
+            }
+            if (finished) {
+                done.countDown();
+            } else {
+                pool.execute(this); // Yield: go to the back of this worker's queue
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.example;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs a compiled script (a list of {@link BlockNode}s) for one sprite.
+ *
+ * Control blocks are executed with an explicit frame stack instead of recursion: entering a
+ * LOOP_BLOCK pushes a frame over its children, and each iteration just rewinds that frame, so the
+ * inner loop allocates nothing per iteration. Blocks inside a loop run quietly (no per-block
+ * narration in the output or the log); errors and the program's own output (SAY, Python) still show.
+ *
+ * Every executed block and every loop iteration costs one instruction. When the context's instruction
+ * budget runs out the script is stopped with an error, so one huge loop can't monopolize a worker.
+ *
+ * If the context has a {@link Profiler.Lane} every block and every loop is recorded in it; otherwise
+ * profiling costs one null check per block.
+ */
+public class ScriptThread {
+
+    /** Instructions one request may execute ({@code jscratch.program.maxInstructions}, default 10 million). */
+    public static final long DEFAULT_INSTRUCTION_BUDGET = Long.getLong("jscratch.program.maxInstructions", 10_000_000L);
+
+    private static final class Frame {
+        final BlockNode[] body;
+        final Frame parent;
+        int pc;
+        long iterationsLeft;
+
+        // Only set while profiling: the loop this frame runs, and when it started
+        BlockNode loop;
+        long iterations;
+        long startNanos;
+        long startAllocated;
+        Thread startThread;
+
+        Frame(BlockNode[] body, Frame parent, long iterations) {
+            this.body = body;
+            this.parent = parent;
+            this.iterationsLeft = iterations - 1; // The first pass starts right away
+        }
+    }
+
+    private final ExecutionContext ctx;
+    private final Iterator<BlockNode> topLevel; // May be compiling blocks as they are read from the request
+    private int topLevelCount;  // Top-level blocks started so far
+    private Frame frame;        // Innermost running loop body, or null between top-level blocks
+    private boolean finished;
+
+    public ScriptThread(List<BlockNode> blocks, ExecutionContext ctx) {
+        this(blocks.iterator(), ctx);
+    }
+
+    public ScriptThread(Iterator<BlockNode> blocks, ExecutionContext ctx) {
+        this.topLevel = blocks;
+        this.ctx = ctx;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public ExecutionContext getContext() {
+        return ctx;
+    }
+
+    /** Top-level blocks started so far, whether or not they finished. */
+    public int getStartedBlockCount() {
+        return topLevelCount;
+    }
+
+    /** Runs the whole script, or until the instruction budget is used up. */
+    public void run() {
+        while (!runSlice(Long.MAX_VALUE)) {
+            // No one else to yield to
+        }
+    }
+
+    /**
+     * Runs until the script finishes or, at the end of a loop iteration, until about {@code sliceInstructions}
+     * instructions have been executed in this slice. Like Scratch, a script only yields at loop boundaries;
+     * the scheduler then lets other scripts run before calling this again.
+     *
+     * @return true once the script has finished
+     */
+    public boolean runSlice(long sliceInstructions) {
+        ProgramOutput out = ctx.getOutput();
+        long sliceEnd = ctx.getInstructionsExecuted() + sliceInstructions;
+        if (sliceEnd < 0) {
+            sliceEnd = Long.MAX_VALUE; // Overflow: unlimited slice
+        }
+        while (!finished) {
+            if (frame == null) {
+                if (!topLevel.hasNext()) {
+                    finished = true;
+                    ctx.returnUnusedInstructions(); // Left for the request's other scripts
+                    break;
+                }
+                BlockNode block = topLevel.next();
+                out.append("Block ").append(++topLevelCount).append(" (").append(block.getType()).append("):\n");
+                ctx.setQuiet(false);
+                if (!execute(block, null) && !finished) {
+                    endTopLevelBlock();
+                }
+                continue;
+            }
+
+            // Inside a loop body
+            if (frame.pc < frame.body.length) {
+                execute(frame.body[frame.pc++], frame);
+            } else if (frame.iterationsLeft > 0) {
+                if (!ctx.consumeInstruction()) {
+                    stopOverBudget();
+                    break;
+                }
+                frame.iterationsLeft--;
+                frame.pc = 0;
+                if (ctx.getInstructionsExecuted() >= sliceEnd) {
+                    return false; // Yield at the loop boundary
+                }
+            } else {
+                if (frame.loop != null) {
+                    endLoop(frame);
+                }
+                frame = frame.parent;
+                if (frame == null) {
+                    endTopLevelBlock();
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Ends the script because of an unexpected failure, reporting it in the script's output. */
+    public void fail(RuntimeException e) {
+        finished = true;
+        endOpenLoops();
+        ctx.getOutput().append("  Error: Script stopped by an unexpected server error: ").append(String.valueOf(e.getMessage())).append("\n\n");
+    }
+
+    /** Executes one block; returns true if it started a loop, i.e. pushed a frame that is now running. */
+    private boolean execute(BlockNode block, Frame current) {
+        if (!ctx.consumeInstruction()) {
+            stopOverBudget();
+            return false;
+        }
+        Profiler.Lane profile = ctx.getProfiler();
+        if (block instanceof BlockNode.LoopBlock) {
+            BlockNode.LoopBlock loop = (BlockNode.LoopBlock) block;
+            long started = profile != null ? System.nanoTime() : 0;
+            long allocated = profile != null ? profile.allocatedBytes() : 0;
+            long iterations = loop.enter(ctx);
+            if (iterations > 0 && loop.getBody().length > 0) {
+                frame = new Frame(loop.getBody(), current, iterations);
+                if (profile != null) {
+                    frame.loop = loop;
+                    frame.iterations = iterations;
+                    frame.startNanos = started;
+                    frame.startAllocated = allocated;
+                    frame.startThread = Thread.currentThread();
+                }
+                ctx.setQuiet(true);
+                return true;
+            }
+            if (profile != null) {
+                profile.loop(loop, started, allocated, Thread.currentThread(), Math.max(0, iterations));
+            }
+            return false;
+        }
+        if (profile != null) {
+            long started = System.nanoTime();
+            long allocated = profile.allocatedBytes();
+            block.execute(ctx);
+            profile.block(block, started, allocated);
+        } else if (Metrics.BLOCK_TIMINGS) {
+            long started = System.nanoTime();
+            block.execute(ctx);
+            block.timer.recordSince(started);
+        } else {
+            block.execute(ctx);
+        }
+        return false;
+    }
+
+    private void endLoop(Frame loopFrame) {
+        Profiler.Lane profile = ctx.getProfiler();
+        if (profile != null) {
+            profile.loop(loopFrame.loop, loopFrame.startNanos, loopFrame.startAllocated, loopFrame.startThread, loopFrame.iterations);
+        }
+    }
+
+    /** Drops the frame stack, closing the profile events of the loops that were still running. */
+    private void endOpenLoops() {
+        for (Frame open = frame; open != null; open = open.parent) {
+            if (open.loop != null) {
+                endLoop(open);
+            }
+        }
+        frame = null;
+    }
+
+    private void endTopLevelBlock() {
+        ProgramOutput out = ctx.getOutput();
+        out.append("\n"); // Add a blank line after each block's output section
+        out.flush(); // Streaming mode: push this block's output to the client
+    }
+
+    private void stopOverBudget() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        endOpenLoops();
+        ProgramOutput out = ctx.getOutput();
+        out.append("  Error: Instruction budget of ").append(ctx.getInstructionBudget())
+           .append(" exceeded; program stopped.\n\n");
+        out.flush();
+        BlockNode.LOGGER.warning("Program stopped after exceeding its instruction budget of " + ctx.getInstructionBudget());
+    }
+}
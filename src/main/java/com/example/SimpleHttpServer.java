@@ -2,37 +2,50 @@ package com.example;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 import java.util.regex.Pattern;
-import java.net.URLConnection;
-import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.UUID;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.Reader;
 
 // JSON library imports
 import org.json.JSONArray;
-import org.json.JSONObject;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 // Additional imports for Sprite management
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
 import java.util.ArrayList; // Used in setupDefaultState
 
 public class SimpleHttpServer {
@@ -43,22 +56,36 @@ public class SimpleHttpServer {
     private static final File WEBAPP_DIR = new File(WEBAPP_DIR_NAME); // File object for webapp directory
     private static final Logger LOGGER = Logger.getLogger(SimpleHttpServer.class.getName());
     private static final JythonExecutor jythonExecutor = new JythonExecutor(); // Initialize JythonExecutor
-    private static final Map<String, Sprite> projectSprites = new ConcurrentHashMap<>(); // For storing sprites
-    private static final Map<String, Object> projectGlobalVariables = new ConcurrentHashMap<>(); // For global variables
+    private static final ProgramCompiler programCompiler = ProgramCompiler.fromSystemProperties(); // Compiles and caches block programs
+    private static final ScriptScheduler scriptScheduler = ScriptScheduler.fromSystemProperties(); // Runs per-sprite scripts concurrently
+    private static final StageEngine stageEngine = StageEngine.fromSystemProperties(); // Runs programs as live stages at a fixed tick rate
+    private static final AssetStore assetStore = AssetStore.fromSystemProperties(); // Costume and sound files, by content hash
+    private static final String DEFAULT_SPRITE_ID = "sprite1";
+    // Largest accepted /api/execute_program body, and the size up to which a body is buffered (and its compiled form cached)
+    private static final long MAX_PROGRAM_BODY_BYTES = Long.getLong("jscratch.program.maxBodyBytes", 64L * 1024 * 1024);
+    private static final int CACHEABLE_PROGRAM_BYTES = Integer.getInteger("jscratch.program.cacheableBodyBytes", 256 * 1024);
+    private static final int HTTP_PORT = Integer.getInteger("jscratch.http.port", 8000);
+    private static final int HTTP_BACKLOG = Integer.getInteger("jscratch.http.backlog", 0);
+    private static final int HTTP_THREADS = Integer.getInteger("jscratch.http.threads", 128);
+    private static final int HTTP_QUEUE_SIZE = Integer.getInteger("jscratch.http.queueSize", 512);
+    private static final String HTTP_ENGINE = System.getProperty("jscratch.http.engine", "jdk");
+    // Every project's live model, loaded on demand and evicted to disk when idle; see projectIdOf() for how requests pick one
+    private static final ProjectRegistry projectRegistry = ProjectRegistry.fromSystemProperties(SimpleHttpServer::setupDefaultState);
+    private static final String PROJECT_ID_HEADER = "X-Project-Id";
+    private static final String PROJECT_ID_ATTRIBUTE = "jscratch.projectId"; // Set by ProjectRouteHandler
+    private static final String API_PATH_ATTRIBUTE = "jscratch.apiPath";     // Set by ProjectRouteHandler
     // Allow alphanumeric characters, underscore, hyphen, and dot.
     private static final Pattern ALLOWED_SCRIPT_NAME_PATTERN = Pattern.compile("^[a-zA-Z0-9_.-]+$");
 
 
+    // Parent of every com.example logger; held here because LogManager only keeps loggers weakly
+    private static final Logger PACKAGE_LOGGER = Logger.getLogger("com.example");
+
     static {
         try {
-            // Configure logger
-            FileHandler fileHandler = new FileHandler("server.log", true); // Append to log, true for append
-            SimpleFormatter formatter = new SimpleFormatter();
-            fileHandler.setFormatter(formatter);
-            LOGGER.addHandler(fileHandler);
-            LOGGER.setLevel(Level.INFO);
-            // Prevent logging to console by default, unless console handler is added explicitly
-            LOGGER.setUseParentHandlers(false);
+            // Every class logs through one asynchronous handler: request threads only queue records, a background
+            // thread formats them and appends them to server.log (see AsyncLogHandler for sampling and rotation).
+            AsyncLogHandler.install(PACKAGE_LOGGER, AsyncLogHandler.fromSystemProperties());
         } catch (IOException e) {
             // Log to console if file logger fails
             LOGGER.log(Level.SEVERE, "Failed to initialize file logger. Logging to console.", e);
@@ -66,7 +93,10 @@ public class SimpleHttpServer {
     }
 
     public static void main(String[] args) throws IOException {
-        setupDefaultState(); // Initialize with a default sprite
+        // Load the default project up front (snapshot plus log tail, or a new default sprite); others load on first use
+        ProjectRegistry.Project defaultProject = projectRegistry.acquire(ProjectRegistry.DEFAULT_PROJECT_ID);
+        Set<String> defaultSpriteIds = defaultProject.getState().getSprites().keySet();
+        defaultProject.release();
 
         // Check for scripts directory
         if (!SCRIPTS_DIR.exists() || !SCRIPTS_DIR.isDirectory()) {
@@ -89,19 +119,80 @@ public class SimpleHttpServer {
             }
         }
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
+        // "jdk" (the built-in HttpServer) or "nio" (NioHttpEngine); both run the same handlers. Backlog 0 means the system default.
+        HttpEngine server = HttpEngine.create(HTTP_ENGINE, new InetSocketAddress(HTTP_PORT), HTTP_BACKLOG);
+        // Each context has its own concurrency limit, so slow programs cannot starve page loads (see LimitedHandler).
+        // /api/projects/<id>/... is routed to the same limited handlers, so a limit covers both ways of naming a project.
+        HttpHandler executeProgramHandler = LimitedHandler.fromSystemProperties("execute", new ExecuteProgramHandler(), 16, 32);
+        HttpHandler stageHandler = LimitedHandler.fromSystemProperties("stages", new StageHandler(), 32, 64);
+        HttpHandler stateHandler = LimitedHandler.fromSystemProperties("state", new StateHandler(), 64, 128);
+        HttpHandler assetHandler = LimitedHandler.fromSystemProperties("assets", new AssetHandler(), 16, 32);
         // Order of context registration matters for overlapping paths. Most specific first.
-        server.createContext("/run/", new RunScriptHandler());
-        server.createContext("/api/execute_program", new ExecuteProgramHandler()); // New handler
-        server.createContext("/", new StaticFileHandler(WEBAPP_DIR_NAME)); // Static file handler for root
-
-        server.setExecutor(null); // Creates a default executor
+        server.createContext("/run/", LimitedHandler.fromSystemProperties("run", new RunScriptHandler(), 4, 8));
+        server.createContext("/api/execute_program", executeProgramHandler);
+        server.createContext("/api/stages", stageHandler);
+        server.createContext("/api/state", stateHandler);
+        server.createContext("/api/assets", assetHandler);
+        server.createContext("/api/projects/", new ProjectRouteHandler(executeProgramHandler, stageHandler, stateHandler, assetHandler));
+        server.createContext("/metrics", LimitedHandler.fromSystemProperties("metrics", new MetricsHandler(), 4, 8));
+        server.createContext("/", LimitedHandler.fromSystemProperties("static", new StaticFileHandler(WEBAPP_DIR_NAME), 64, 128));
+
+        registerStateMetrics();
+        server.setExecutor(createHttpExecutor());
         server.start();
-        LOGGER.info("Server started on port 8000. Scripts: " + SCRIPTS_DIR.getAbsolutePath() + ", Webapp: " + WEBAPP_DIR.getAbsolutePath());
-        LOGGER.info("Default sprites initialized: " + projectSprites.keySet());
+        LOGGER.info("Server started on port " + HTTP_PORT + " (" + server.getName() + " engine). Scripts: " + SCRIPTS_DIR.getAbsolutePath() + ", Webapp: " + WEBAPP_DIR.getAbsolutePath());
+        LOGGER.info("Default project loaded with sprites: " + defaultSpriteIds);
     }
 
-    private static void setupDefaultState() {
+    /**
+     * The executor that runs the HTTP handlers, per {@code jscratch.http.executor}: "virtual" (a virtual
+     * thread per request, on Java 21 and later), "pool" (a pool of {@code jscratch.http.threads} platform
+     * threads) or "dispatcher" (null: everything on the server's one dispatcher thread, as before).
+     *
+     * The pool queues at most {@code jscratch.http.queueSize} requests. Only a handler can answer a request,
+     * so one that finds the queue full is handed to a single overflow thread, where every context rejects
+     * it with a 503 and {@code Retry-After} at once (see {@link LimitedHandler#runShedding}). If even the
+     * overflow thread is backed up, the server's own thread does that, which slows accepting new requests.
+     */
+    private static Executor createHttpExecutor() {
+        String mode = System.getProperty("jscratch.http.executor", "pool");
+        if (mode.equals("dispatcher")) {
+            LOGGER.info("HTTP requests are handled on the dispatcher thread, one at a time.");
+            return null;
+        }
+        if (mode.equals("virtual")) {
+            try {
+                // Looked up reflectively so the server still builds and runs on JDKs without virtual threads
+                Executor executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOGGER.info("HTTP requests are handled on virtual threads.");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warning("Virtual threads are not available on Java " + System.getProperty("java.version")
+                        + ", using a thread pool for HTTP requests instead.");
+            }
+        } else if (!mode.equals("pool")) {
+            LOGGER.warning("Unknown jscratch.http.executor '" + mode + "', using a thread pool for HTTP requests.");
+        }
+        int threads = Math.max(1, HTTP_THREADS);
+        AtomicInteger counter = new AtomicInteger();
+        int queueSize = Math.max(1, HTTP_QUEUE_SIZE);
+        ThreadPoolExecutor overflow = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "http-overflow");
+            thread.setDaemon(true);
+            return thread;
+        }, (task, executor) -> task.run()); // Tasks are already wrapped in runShedding
+        overflow.allowCoreThreadTimeOut(true);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "http-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (exchange, executor) -> overflow.execute(() -> LimitedHandler.runShedding(exchange)));
+        pool.allowCoreThreadTimeOut(true); // An idle server keeps no threads around
+        LOGGER.info("HTTP requests are handled by a pool of " + threads + " threads, with up to " + queueSize + " requests queued.");
+        return pool;
+    }
+
+    private static void setupDefaultState(ProjectState project) {
         // For now, costumes and sounds are metadata lists. Actual data is client-side.
         // Create a default costume metadata entry
         Map<String, String> defaultCostumeMeta = new HashMap<>();
@@ -122,12 +213,12 @@ public class SimpleHttpServer {
             defaultCostumesList,        // costumes list
             new ArrayList<>()           // empty sounds list
         );
-        projectSprites.put(defaultSprite.getId(), defaultSprite);
+        project.addSprite(defaultSprite);
         LOGGER.info("Default sprite '" + defaultSprite.getName() + "' created with ID '" + defaultSprite.getId() + "'.");
 
         // Pre-populate example variables
-        projectGlobalVariables.put("global_score", 0);
-        projectGlobalVariables.put("global_message", "Hello Everyone!");
+        project.getGlobals().set(project.getGlobals().slotOf("global_score"), 0);
+        project.getGlobals().set(project.getGlobals().slotOf("global_message"), "Hello Everyone!");
 
         if (defaultSprite != null) { // Should not be null here
             defaultSprite.setLocalVariable("my_sprite_var", 100);
@@ -141,7 +232,71 @@ public class SimpleHttpServer {
     // If a specific "Hello, World!" for / is still needed separate from static files,
     // it would require more complex logic in StaticFileHandler or a different path.
 
+    /** Gauges over the projects in memory, read whenever /metrics is scraped. */
+    private static void registerStateMetrics() {
+        Metrics.gauge("jscratch_projects_resident", "Projects loaded in memory.", projectRegistry::getResidentCount);
+        Metrics.gauge("jscratch_sprites", "Sprites of all projects in memory, clones included.",
+                () -> sumOverProjects(state -> state.getSprites().size()));
+        Metrics.gauge("jscratch_clones", "Live sprite clones of all projects in memory.",
+                () -> sumOverProjects(state -> state.getClones().getLiveCount()));
+        Metrics.gauge("jscratch_variables", "Variables set in all projects in memory.",
+                () -> sumOverProjects(state -> state.getGlobals().asMap().size()), "scope", "global");
+        Metrics.gauge("jscratch_variables", "Variables set in all projects in memory.",
+                () -> sumOverProjects(state -> {
+                    long locals = 0;
+                    for (Sprite sprite : state.getSprites().values()) {
+                        locals += sprite.getLocalVariables().asMap().size();
+                    }
+                    return locals;
+                }), "scope", "local");
+        Metrics.gauge("jscratch_variable_names", "Distinct variable names interned into storage slots by all projects in memory.",
+                () -> sumOverProjects(state -> {
+                    long names = state.getGlobals().getNameCount();
+                    for (Sprite sprite : state.getSprites().values()) {
+                        if (!sprite.isClone()) { // Clones share their original's name table
+                            names += sprite.getLocalVariables().getNameCount();
+                        }
+                    }
+                    return names;
+                }));
+    }
+
+    private static long sumOverProjects(ToLongFunction<ProjectState> size) {
+        long[] total = {0};
+        projectRegistry.forEachResident(project -> total[0] += size.applyAsLong(project.getState()));
+        return total[0];
+    }
+
+    /** GET /metrics: every registered metric in the Prometheus text format (see {@link Metrics}). */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String requestPath = t.getRequestURI().getPath();
+            if (!"GET".equals(t.getRequestMethod())) {
+                sendResponse(t, 405, "Method Not Allowed. Only GET is supported.", requestPath, "Metrics");
+                return;
+            }
+            byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            t.sendResponseHeaders(200, body.length);
+            try (OutputStream os = t.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
     static class RunScriptHandler implements HttpHandler {
+        // Script processes, reported at /metrics: how long they ran, and how they ended (ok, failed: non-zero exit, error: not started or lost)
+        private static final Metrics.Histogram PROCESS_TIME = Metrics.histogram("jscratch_run_process_duration_seconds",
+                "Time from starting a /run/ script process until it exited.");
+        private static final Metrics.Counter PROCESSES_OK = processCounter("ok");
+        private static final Metrics.Counter PROCESSES_FAILED = processCounter("failed");
+        private static final Metrics.Counter PROCESS_ERRORS = processCounter("error");
+
+        private static Metrics.Counter processCounter(String result) {
+            return Metrics.counter("jscratch_run_processes_total", "Script processes spawned for /run/, by outcome.", "result", result);
+        }
+
         @Override
         public void handle(HttpExchange t) throws IOException {
             String requestPath = t.getRequestURI().getPath();
@@ -150,7 +305,7 @@ public class SimpleHttpServer {
                 sendResponse(t, 400, "Bad Request: Invalid path for RunScriptHandler.", requestPath, null);
                 return;
             }
-            LOGGER.info("RunScriptHandler received request for: " + requestPath + " from " + t.getRemoteAddress());
+            LOGGER.fine(() -> "RunScriptHandler received request for: " + requestPath + " from " + t.getRemoteAddress());
 
             String scriptName = requestPath.substring("/run/".length());
 
@@ -212,11 +367,13 @@ public class SimpleHttpServer {
                 LOGGER.info("Script '" + scriptFile.getName() + "' set to executable for request " + requestPath);
             }
 
+            boolean exited = false;
             try {
                 ProcessBuilder pb = new ProcessBuilder(scriptFile.getAbsolutePath()); // Safe: path is treated as single arg
                 pb.directory(SCRIPTS_DIR);
 
-                LOGGER.info("Executing script: " + scriptFile.getAbsolutePath() + " for request " + requestPath + " from " + t.getRemoteAddress());
+                LOGGER.fine(() -> "Executing script: " + scriptFile.getAbsolutePath() + " for request " + requestPath + " from " + t.getRemoteAddress());
+                long spawned = System.nanoTime();
                 Process process = pb.start();
 
                 StringBuilder output = new StringBuilder();
@@ -236,11 +393,15 @@ public class SimpleHttpServer {
                 }
 
                 int exitCode = process.waitFor();
+                exited = true;
+                PROCESS_TIME.recordSince(spawned);
+                (exitCode == 0 ? PROCESSES_OK : PROCESSES_FAILED).increment();
                 String trimmedOutput = output.toString().trim();
                 String trimmedErrorOutput = errorOutput.toString().trim();
 
                 if (exitCode == 0) {
-                    LOGGER.info("Script '" + scriptName + "' executed successfully (exit " + exitCode + ") for " + requestPath + ". Output: " + trimmedOutput);
+                    // The output goes to the client; only its size is logged
+                    LOGGER.fine(() -> "Script '" + scriptName + "' executed successfully for " + requestPath + " (" + trimmedOutput.length() + " chars of output)");
                     sendResponse(t, 200, output.toString(), requestPath, scriptName);
                 } else {
                     LOGGER.warning("Script '" + scriptName + "' execution failed (exit " + exitCode + ") for " + requestPath +
@@ -251,6 +412,9 @@ public class SimpleHttpServer {
                 }
 
             } catch (IOException | InterruptedException e) {
+                if (!exited) {
+                    PROCESS_ERRORS.increment(); // Not a failure to send the response, which is counted per context
+                }
                 LOGGER.log(Level.SEVERE, "Error executing script '" + scriptName + "' for request " + requestPath, e);
                 sendResponse(t, 500, "Internal Server Error: " + e.getMessage(), requestPath, scriptName);
             }
@@ -258,417 +422,828 @@ public class SimpleHttpServer {
     }
 
     static class StaticFileHandler implements HttpHandler {
-        private final String webappRoot;
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+        private final StaticFileCache cache;
 
-        public StaticFileHandler(String webappRoot) {
-            this.webappRoot = webappRoot;
+        public StaticFileHandler(String webappRoot) throws IOException {
+            this.cache = StaticFileCache.fromSystemProperties(Paths.get(webappRoot));
         }
 
         @Override
         public void handle(HttpExchange t) throws IOException {
             String requestPath = t.getRequestURI().getPath();
-            LOGGER.info("StaticFileHandler received request for: " + requestPath + " from " + t.getRemoteAddress());
+            LOGGER.fine(() -> "StaticFileHandler received request for: " + requestPath + " from " + t.getRemoteAddress());
 
-            // Sanitize and normalize path
-            String requestedFile = requestPath;
-            if (requestedFile.equals("/") || requestedFile.isEmpty()) {
-                requestedFile = "/index.html";
+            StaticFileCache.Entry entry;
+            try {
+                entry = cache.get(requestPath); // "/" and directories resolve to their index.html
+            } catch (SecurityException e) {
+                // Basic security: prevent directory traversal, including through symbolic links
+                LOGGER.warning("Directory traversal attempt for static file: " + requestPath + " from " + t.getRemoteAddress());
+                sendResponse(t, 403, "Forbidden: Access denied.", requestPath, requestPath);
+                return;
+            }
+            if (entry == null) {
+                LOGGER.warning("Static file not found for " + requestPath);
+                sendResponse(t, 404, "Not Found: " + requestPath, requestPath, requestPath);
+                return;
             }
 
-            // Basic security: prevent directory traversal.
-            // Normalize the path and ensure it doesn't try to escape the webappRoot.
-            Path filePath = Paths.get(this.webappRoot, requestedFile).normalize();
-            File file = filePath.toFile();
+            boolean gzip = entry.hasGzip() && acceptsGzip(t.getRequestHeaders().getFirst("Accept-Encoding"));
+            String etag = entry.etag(gzip);
+            String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(entry.getLastModifiedMillis()));
+            t.getResponseHeaders().set("ETag", etag);
+            t.getResponseHeaders().set("Last-Modified", lastModified);
+            t.getResponseHeaders().set("Cache-Control", "no-cache"); // Revalidate every time: file names are not versioned
+            if (entry.hasGzip()) {
+                t.getResponseHeaders().set("Vary", "Accept-Encoding");
+            }
+            if (isNotModified(t, entry, etag)) {
+                t.sendResponseHeaders(304, -1);
+                t.close();
+                return;
+            }
 
-            // Check if the normalized path is still within the webappRoot directory
-            File webappRootDir = new File(this.webappRoot);
-            if (!file.getCanonicalPath().startsWith(webappRootDir.getCanonicalPath())) {
-                LOGGER.warning("Directory traversal attempt for static file: " + requestedFile + " (resolved to " + file.getCanonicalPath() + ") from " + t.getRemoteAddress());
-                sendResponse(t, 403, "Forbidden: Access denied.", requestPath, requestedFile);
+            t.getResponseHeaders().set("Content-Type", entry.getContentType());
+            if (gzip) {
+                t.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            if (t.getRequestMethod().equalsIgnoreCase("HEAD")) {
+                t.sendResponseHeaders(200, -1);
+                t.close();
                 return;
             }
+            t.sendResponseHeaders(200, entry.length(gzip));
+            try (OutputStream os = t.getResponseBody()) {
+                entry.writeTo(os, gzip);
+            }
+            LOGGER.fine(() -> "Served static file " + requestPath + " as " + entry.getContentType() + (gzip ? " (gzip)" : ""));
+        }
 
-            if (file.isDirectory()) {
-                // If it's a directory, try to serve index.html from within it
-                filePath = Paths.get(this.webappRoot, requestedFile, "index.html").normalize();
-                file = filePath.toFile();
-                 if (!file.getCanonicalPath().startsWith(webappRootDir.getCanonicalPath())) { // Re-check after appending index.html
-                    LOGGER.warning("Directory traversal attempt for static file (dir index): " + requestedFile + " from " + t.getRemoteAddress());
-                    sendResponse(t, 403, "Forbidden: Access denied.", requestPath, requestedFile);
-                    return;
+        // If-None-Match wins over If-Modified-Since, as in RFC 9110
+        private static boolean isNotModified(HttpExchange t, StaticFileCache.Entry entry, String etag) {
+            String ifNoneMatch = t.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String candidate : ifNoneMatch.split(",")) {
+                    String tag = candidate.trim();
+                    if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                        return true;
+                    }
                 }
+                return false;
             }
+            String ifModifiedSince = t.getRequestHeaders().getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim())).toEpochMilli();
+                    return entry.getLastModifiedMillis() / 1000 <= since / 1000; // HTTP dates have whole seconds
+                } catch (DateTimeException e) {
+                    return false; // Unparseable: send the file
+                }
+            }
+            return false;
+        }
 
-            if (file.exists() && file.isFile()) {
-                String contentType = guessContentType(file.getName());
-                t.getResponseHeaders().set("Content-Type", contentType);
-                t.sendResponseHeaders(200, file.length());
-                try (OutputStream os = t.getResponseBody();
-                     java.nio.file.Files.copy(file.toPath(), os)) {
-                    // Content is streamed
+        private static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
                 }
-                LOGGER.info("Served static file: " + file.getPath() + " as " + contentType + " for " + requestPath);
-            } else {
-                LOGGER.warning("Static file not found: " + file.getPath() + " for " + requestPath);
-                sendResponse(t, 404, "Not Found: " + requestedFile, requestPath, requestedFile);
-            }
-        }
-
-        private String guessContentType(String fileName) {
-            String lcFileName = fileName.toLowerCase();
-            if (lcFileName.endsWith(".html") || lcFileName.endsWith(".htm")) {
-                return "text/html; charset=utf-8";
-            } else if (lcFileName.endsWith(".css")) {
-                return "text/css; charset=utf-8";
-            } else if (lcFileName.endsWith(".js")) {
-                return "application/javascript; charset=utf-8";
-            } else if (lcFileName.endsWith(".png")) {
-                return "image/png";
-            } else if (lcFileName.endsWith(".jpg") || lcFileName.endsWith(".jpeg")) {
-                return "image/jpeg";
-            } else if (lcFileName.endsWith(".gif")) {
-                return "image/gif";
-            } else if (lcFileName.endsWith(".ico")) {
-                return "image/x-icon";
-            }
-            // Fallback to URLConnection's guess or a default
-            String guessed = URLConnection.guessContentTypeFromName(fileName);
-            return (guessed != null) ? guessed : "application/octet-stream";
+            }
+            return false;
         }
     }
 
     static class ExecuteProgramHandler implements HttpHandler {
 
-        // Helper method to resolve input values, which might be literals or variable reporters
-        private Object resolveInputValue(JSONObject parentInputs, String inputKey, String targetSpriteId, StringBuilder aggregatedOutput) {
-            Object rawValue = parentInputs.opt(inputKey);
-
-            if (rawValue instanceof JSONObject) {
-                JSONObject reporter = (JSONObject) rawValue;
-                if ("VARIABLE".equals(reporter.optString("reporterType"))) {
-                    String varName = reporter.optString("name");
-                    String varScope = reporter.optString("scope", "global");
-                    Object varValue = null;
-                    boolean found = false;
-
-                    if ("global".equals(varScope)) {
-                        if (projectGlobalVariables.containsKey(varName)) {
-                            varValue = projectGlobalVariables.get(varName);
-                            found = true;
-                        }
-                    } else { // "local"
-                        Sprite sprite = projectSprites.get(targetSpriteId);
-                        if (sprite != null) {
-                            // Check local directly, assuming localVariables map exists and is up-to-date
-                            varValue = sprite.getLocalVariable(varName);
-                            if (sprite.getAllLocalVariables().containsKey(varName)) { // Check if key exists even if value is null
-                                found = true;
-                            }
-                        } else {
-                            LOGGER.warning("resolveInputValue: Target sprite '" + targetSpriteId + "' not found for local variable '" + varName + "'.");
-                            aggregatedOutput.append(String.format("  Error: Sprite '%s' not found for local variable '%s'.\n", targetSpriteId, varName));
-                            return 0; // Default value for unresolved local variable from missing sprite
-                        }
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String requestPath = t.getRequestURI().getPath();
+            LOGGER.fine(() -> "ExecuteProgramHandler received request for: " + requestPath + " from " + t.getRemoteAddress());
+
+            if (!"POST".equals(t.getRequestMethod())) {
+                LOGGER.warning("Invalid method for " + requestPath + ": " + t.getRequestMethod());
+                sendResponse(t, 405, "Method Not Allowed. Only POST is supported.", requestPath, "ExecuteProgram");
+                return;
+            }
+
+            long declaredLength = parseContentLength(t.getRequestHeaders().getFirst("Content-Length"));
+            if (declaredLength > MAX_PROGRAM_BODY_BYTES) {
+                LOGGER.warning("Rejected program of " + declaredLength + " bytes for " + requestPath + " (limit " + MAX_PROGRAM_BODY_BYTES + ")");
+                sendResponse(t, 413, "Payload Too Large: Programs are limited to " + MAX_PROGRAM_BODY_BYTES + " bytes.", requestPath, "ExecuteProgram");
+                return;
+            }
+
+            ProjectRegistry.Project project = acquireProject(t, "ExecuteProgram");
+            if (project == null) {
+                return;
+            }
+            try {
+                execute(t, project);
+            } finally {
+                project.release();
+            }
+        }
+
+        private static void execute(HttpExchange t, ProjectRegistry.Project project) throws IOException {
+            String requestPath = t.getRequestURI().getPath();
+            ProjectState projectState = project.getState();
+            // Output is capped per request; with ?stream=true it is also sent to the client as it is produced
+            // instead of being collected first. With ?profile=true the output is collected and sent back inside
+            // a trace of the run (see Profiler), so that one cannot stream.
+            Profiler profiler = hasQueryFlag(t, "profile") ? new Profiler() : null;
+            ProgramOutput aggregatedOutput = profiler == null && hasQueryFlag(t, "stream")
+                    ? ProgramOutput.streaming(t, ProgramOutput.MAX_REQUEST_BYTES)
+                    : ProgramOutput.buffered(ProgramOutput.MAX_REQUEST_BYTES);
+
+            // Read the JSON request body. Bodies up to CACHEABLE_PROGRAM_BYTES are read whole, so their compiled
+            // form can be cached by hash. A larger block array is parsed, compiled and run one block at a time
+            // straight from the stream, so memory stays bounded however big the program is. The multi-script form
+            // has to be parsed whole, so it is not accepted above CACHEABLE_PROGRAM_BYTES.
+            LimitedInputStream body = new LimitedInputStream(t.getRequestBody(), MAX_PROGRAM_BODY_BYTES);
+            ScriptThread streamed = null; // Set for a program run as it is parsed, where an error can come after blocks ran
+            try (InputStream is = body) {
+                byte[] head = is.readNBytes(CACHEABLE_PROGRAM_BYTES + 1);
+                if (head.length <= CACHEABLE_PROGRAM_BYTES) {
+                    if (isBlank(head)) {
+                        LOGGER.warning("Empty request body received for " + requestPath);
+                        sendResponse(t, 400, "Bad Request: Request body cannot be empty.", requestPath, "ExecuteProgram");
+                        return;
                     }
+                    LOGGER.fine(() -> "Received program of " + head.length + " bytes for " + requestPath);
+                    // Compiled programs are cached by body hash, so a re-run of the same program skips parsing entirely
+                    CompiledProgram program = programCompiler.compile(head);
+                    if (program.size() > CompiledProgram.MAX_SCRIPTS) {
+                        LOGGER.warning("Rejected program of " + program.size() + " scripts for " + requestPath);
+                        sendResponse(t, 413, "Payload Too Large: Programs are limited to " + CompiledProgram.MAX_SCRIPTS + " scripts.", requestPath, "ExecuteProgram");
+                        return;
+                    }
+                    runScripts(program, projectState, aggregatedOutput, profiler);
+                } else {
+                    if (firstNonBlank(head) == '{') {
+                        // Per-sprite scripts have to be known up front to run side by side, so this form would have
+                        // to be parsed into one JSON tree; keep it to the size that is read whole anyway
+                        LOGGER.warning("Rejected multi-script program over " + CACHEABLE_PROGRAM_BYTES + " bytes for " + requestPath);
+                        sendResponse(t, 413, "Payload Too Large: Multi-script programs are limited to " + CACHEABLE_PROGRAM_BYTES
+                                + " bytes; send larger programs as a plain block array.", requestPath, "ExecuteProgram");
+                        return;
+                    }
+                    LOGGER.fine(() -> "Received large program for " + requestPath + ", parsing it incrementally");
+                    InputStream rest = new SequenceInputStream(new ByteArrayInputStream(head), is);
+                    Reader reader = new InputStreamReader(rest, StandardCharsets.UTF_8);
+                    ExecutionContext context = new ExecutionContext(projectState, jythonExecutor, aggregatedOutput, DEFAULT_SPRITE_ID);
+                    profile(context, 1, profiler);
+                    streamed = new ScriptThread(new StreamingProgramParser(reader), context);
+                    streamed.run();
+                }
 
-                    if (found) {
-                        LOGGER.info(String.format("Resolved variable '%s' (scope: %s) to value: %s", varName, varScope, varValue));
-                        return varValue; // Could be null if variable exists but has null value
+                if (!publishDurably(project)) {
+                    aggregatedOutput.append("Warning: The program's changes could not be saved to disk yet.\n");
+                }
+                if (aggregatedOutput.isStreaming()) {
+                    aggregatedOutput.close();
+                } else if (profiler != null) {
+                    sendJsonResponse(t, 200, profiler.toTrace(aggregatedOutput.toString()));
+                } else {
+                    sendResponse(t, 200, aggregatedOutput.toString(), requestPath, "ExecuteProgramArray");
+                }
+
+            } catch (JSONException e) {
+                if (body.isLimitExceeded()) { // JSONTokener wraps the stream's exception in its own
+                    LOGGER.warning("Program body for " + requestPath + " exceeded " + MAX_PROGRAM_BODY_BYTES + " bytes");
+                    sendErrorResponse(t, aggregatedOutput, profiler, streamed, 413, "Payload Too Large: Programs are limited to " + MAX_PROGRAM_BODY_BYTES + " bytes.", requestPath);
+                    return;
+                }
+                LOGGER.log(Level.WARNING, "JSON parsing error for " + requestPath + ": " + e.getMessage(), e);
+                sendErrorResponse(t, aggregatedOutput, profiler, streamed, 400, "Bad Request: Malformed JSON program structure. " + e.getMessage(), requestPath);
+            } catch (LimitedInputStream.LimitExceededException e) {
+                LOGGER.warning("Program body for " + requestPath + " exceeded " + MAX_PROGRAM_BODY_BYTES + " bytes");
+                sendErrorResponse(t, aggregatedOutput, profiler, streamed, 413, "Payload Too Large: Programs are limited to " + MAX_PROGRAM_BODY_BYTES + " bytes.", requestPath);
+            } catch (Exception e) { // Catch-all for other unexpected errors during processing
+                LOGGER.log(Level.SEVERE, "Unexpected error processing program for " + requestPath + ": " + e.getMessage(), e);
+                sendErrorResponse(t, aggregatedOutput, profiler, streamed, 500, "Internal Server Error: Could not execute program due to an unexpected server error.", requestPath);
+            } finally {
+                // Whatever the program changed, even if it failed halfway, becomes visible to readers as one new version
+                projectState.publish();
+            }
+        }
+
+        /**
+         * Runs the program's scripts. A single script runs right here, writing straight to {@code output}.
+         * Several scripts run concurrently on the {@link ScriptScheduler}, all drawing from one output limit and
+         * one instruction budget; their outputs are then written in request order.
+         */
+        private static void runScripts(CompiledProgram program, ProjectState project, ProgramOutput output, Profiler profiler)
+                throws InterruptedException {
+            List<CompiledProgram.Script> scripts = program.getScripts();
+            if (scripts.size() == 1) {
+                ExecutionContext context = newContext(scripts.get(0), project, output, null);
+                profile(context, 1, profiler);
+                new ScriptThread(scripts.get(0).getBlocks(), context).run();
+                return;
+            }
+            // The scripts draw on one output limit and one instruction budget, which add up to what a single-script
+            // request gets, however many scripts there are. Any one script may use what the others leave.
+            List<String> headers = new ArrayList<>(scripts.size());
+            long headerBytes = 0;
+            for (CompiledProgram.Script script : scripts) {
+                String spriteId = script.getSpriteId() != null ? script.getSpriteId() : DEFAULT_SPRITE_ID;
+                String header = "Script " + (headers.size() + 1) + " (sprite '" + spriteId + "'):\n";
+                headers.add(header);
+                headerBytes += ProgramOutput.utf8Length(header, header.length());
+            }
+            ProgramOutput.SharedLimit outputLimit = new ProgramOutput.SharedLimit(ProgramOutput.MAX_REQUEST_BYTES - headerBytes);
+            ExecutionContext.SharedBudget budget = new ExecutionContext.SharedBudget(ScriptThread.DEFAULT_INSTRUCTION_BUDGET);
+            List<ScriptThread> threads = new ArrayList<>(scripts.size());
+            for (CompiledProgram.Script script : scripts) {
+                ExecutionContext context = newContext(script, project, ProgramOutput.buffered(outputLimit), budget);
+                profile(context, threads.size() + 1, profiler);
+                threads.add(new ScriptThread(script.getBlocks(), context));
+            }
+            scriptScheduler.runAll(threads); // Runs loops too, until the scripts finish or the shared budget runs out
+
+            for (int i = 0; i < threads.size(); i++) {
+                output.append(headers.get(i));
+                output.append(threads.get(i).getContext().getOutput().toString());
+            }
+        }
+
+        /** Publishes the program's changes and waits (group commit) until they are on disk. */
+        private static boolean publishDurably(ProjectRegistry.Project project) throws InterruptedException {
+            ProjectSnapshot published = project.getState().publish();
+            ProjectPersistence persistence = project.getPersistence();
+            if (persistence == null) {
+                return true;
+            }
+            if (!persistence.awaitDurable(published.getVersion(), ProjectPersistence.COMMIT_TIMEOUT_MILLIS)) {
+                LOGGER.warning("Version " + published.getVersion() + " of project '" + project.getId() + "' was not durable within "
+                        + ProjectPersistence.COMMIT_TIMEOUT_MILLIS + " ms");
+                return false;
+            }
+            return true;
+        }
+
+        private static ExecutionContext newContext(CompiledProgram.Script script, ProjectState project, ProgramOutput output,
+                                                   ExecutionContext.SharedBudget budget) {
+            String spriteId = script.getSpriteId() != null ? script.getSpriteId() : DEFAULT_SPRITE_ID;
+            return budget == null ? new ExecutionContext(project, jythonExecutor, output, spriteId)
+                    : new ExecutionContext(project, jythonExecutor, output, spriteId, budget);
+        }
+
+        /** Gives the script its own lane in the profile, named like its section of the output. */
+        private static void profile(ExecutionContext context, int scriptNumber, Profiler profiler) {
+            if (profiler != null) {
+                context.setProfiler(profiler.lane("Script " + scriptNumber + " (sprite '" + context.getTargetSpriteId() + "')"));
+            }
+        }
+
+        private static int firstNonBlank(byte[] bytes) {
+            for (byte b : bytes) {
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                    return b;
+                }
+            }
+            return -1;
+        }
+
+        private static long parseContentLength(String header) {
+            if (header == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static boolean isBlank(byte[] bytes) {
+            return firstNonBlank(bytes) < 0;
+        }
+
+        /** Whether the query string has {@code name=true}, e.g. {@code ?stream=true}. */
+        private static boolean hasQueryFlag(HttpExchange t, String name) {
+            String query = t.getRequestURI().getQuery();
+            String flag = name + "=true";
+            return query != null && (query.equals(flag) || query.startsWith(flag + "&") || query.contains("&" + flag));
+        }
+
+        /**
+         * Answers a failed request. A program run as it is parsed can fail after some of its blocks already
+         * ran; their changes are kept, so rather than an error status that would claim nothing
+         * happened, the client gets a 200 with the blocks' output and the error as its last line. The same
+         * goes for output that has already been streamed, whose status was sent long ago.
+         */
+        private static void sendErrorResponse(HttpExchange t, ProgramOutput output, Profiler profiler, ScriptThread streamed,
+                                              int statusCode, String message, String requestPath) throws IOException {
+            boolean blocksRan = streamed != null && streamed.getStartedBlockCount() > 0;
+            if (!output.isCommitted() && !blocksRan) {
+                sendResponse(t, statusCode, message, requestPath, "ExecuteProgram");
+                return;
+            }
+            LOGGER.warning("Program for " + requestPath + " failed after some of its blocks ran: " + message);
+            try {
+                output.append("Error: ").append(message).append("\n");
+                if (blocksRan) {
+                    output.append("The blocks before the error ran, and their changes were kept.\n");
+                }
+                if (output.isStreaming()) {
+                    output.close();
+                    return;
+                }
+            } catch (UncheckedIOException e) {
+                LOGGER.warning("Could not report the error to the client for " + requestPath + ": " + e.getMessage()); // Client went away
+                return;
+            }
+            if (profiler != null) {
+                sendJsonResponse(t, 200, profiler.toTrace(output.toString()));
+            } else {
+                sendResponse(t, 200, output.toString(), requestPath, "ExecuteProgram");
+            }
+        }
+    }
+
+    /**
+     * Live stages, see {@link StageEngine}:
+     * <ul>
+     *     <li>{@code POST /api/stages} with a program body (same formats as /api/execute_program) starts a stage</li>
+     *     <li>{@code GET /api/stages} reports the engine's tick timing</li>
+     *     <li>{@code GET /api/stages/<id>?since=<tick>} returns the frames published after that tick</li>
+     *     <li>{@code DELETE /api/stages/<id>} stops a stage</li>
+     * </ul>
+     * A stage belongs to the project that started it and is not visible to other projects.
+     */
+    static class StageHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String requestPath = t.getRequestURI().getPath();
+            String apiPath = apiPath(t);
+            String stageId = apiPath.startsWith("/api/stages/") ? apiPath.substring("/api/stages/".length()) : "";
+            String method = t.getRequestMethod();
+            if (stageId.isEmpty() && "GET".equals(method)) {
+                sendJsonResponse(t, 200, engineStats()); // Engine-wide, not about any one project
+                return;
+            }
+            ProjectRegistry.Project project = acquireProject(t, "Stages");
+            if (project == null) {
+                return;
+            }
+            try {
+                if (stageId.isEmpty() && "POST".equals(method)) {
+                    startStage(t, requestPath, project);
+                } else if (!stageId.isEmpty() && "GET".equals(method)) {
+                    StageEngine.Stage stage = stageOf(project, stageId);
+                    if (stage == null) {
+                        sendResponse(t, 404, "Not Found: No stage '" + stageId + "'.", requestPath, "Stages");
+                        return;
+                    }
+                    sendJsonResponse(t, 200, stageFrames(stage, parseSince(t.getRequestURI().getQuery())));
+                } else if (!stageId.isEmpty() && "DELETE".equals(method)) {
+                    if (stageOf(project, stageId) != null && stageEngine.stop(stageId)) {
+                        sendResponse(t, 200, "Stage '" + stageId + "' stopped.", requestPath, "Stages");
                     } else {
-                        LOGGER.warning(String.format("resolveInputValue: Variable '%s' (scope: %s) not found.", varName, varScope));
-                        aggregatedOutput.append(String.format("  Error: Variable '%s' (scope: %s) not found.\n", varName, varScope));
-                        return 0; // Default value for unfound variables (Scratch-like behavior)
+                        sendResponse(t, 404, "Not Found: No stage '" + stageId + "'.", requestPath, "Stages");
                     }
+                } else {
+                    sendResponse(t, 405, "Method Not Allowed.", requestPath, "Stages");
                 }
+            } catch (JSONException e) {
+                LOGGER.log(Level.WARNING, "JSON parsing error for " + requestPath + ": " + e.getMessage(), e);
+                sendResponse(t, 400, "Bad Request: Malformed JSON program structure. " + e.getMessage(), requestPath, "Stages");
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Unexpected error handling " + method + " " + requestPath + ": " + e.getMessage(), e);
+                sendResponse(t, 500, "Internal Server Error: Could not process the stage request.", requestPath, "Stages");
+            } finally {
+                project.release();
             }
+        }
 
-            // If not a variable reporter, treat as literal and parse
-            if (rawValue instanceof String) {
-                String valueStr = (String) rawValue;
-                if (valueStr.matches("-?\\d+(\\.\\d+)?")) {
-                    try {
-                        double doubleVal = Double.parseDouble(valueStr);
-                        if (doubleVal == (long) doubleVal) return (long) doubleVal;
-                        return doubleVal;
-                    } catch (NumberFormatException nfe) { /* Fall through to return as string */ }
-                } else if (valueStr.equalsIgnoreCase("true")) {
-                    return true;
-                } else if (valueStr.equalsIgnoreCase("false")) {
-                    return false;
+        private static StageEngine.Stage stageOf(ProjectRegistry.Project project, String stageId) {
+            StageEngine.Stage stage = stageEngine.get(stageId);
+            return stage != null && stage.getProject() == project.getState() ? stage : null;
+        }
+
+        private static void startStage(HttpExchange t, String requestPath, ProjectRegistry.Project project) throws IOException {
+            byte[] body;
+            try (InputStream is = t.getRequestBody()) {
+                body = is.readNBytes(CACHEABLE_PROGRAM_BYTES + 1);
+            }
+            if (body.length > CACHEABLE_PROGRAM_BYTES) { // Stage programs are kept compiled in memory for their whole life
+                sendResponse(t, 413, "Payload Too Large: Stage programs are limited to " + CACHEABLE_PROGRAM_BYTES + " bytes.", requestPath, "Stages");
+                return;
+            }
+            if (ExecuteProgramHandler.isBlank(body)) {
+                sendResponse(t, 400, "Bad Request: Request body cannot be empty.", requestPath, "Stages");
+                return;
+            }
+            CompiledProgram program = programCompiler.compile(body);
+            if (program.size() > CompiledProgram.MAX_SCRIPTS) {
+                sendResponse(t, 413, "Payload Too Large: Stage programs are limited to " + CompiledProgram.MAX_SCRIPTS + " scripts.", requestPath, "Stages");
+                return;
+            }
+            StageEngine.Stage stage;
+            project.retain(); // The stage keeps the project in memory until it stops
+            try {
+                stage = stageEngine.start(program, project.getState(), jythonExecutor, DEFAULT_SPRITE_ID, project::release);
+            } catch (IllegalStateException e) {
+                project.release();
+                t.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(t, 503, "Service Unavailable: " + e.getMessage() + ".", requestPath, "Stages");
+                return;
+            } catch (RuntimeException e) {
+                project.release();
+                throw e;
+            }
+            sendJsonResponse(t, 201, new JSONObject().put("stageId", stage.getId())
+                    .put("tickHz", TimeUnit.SECONDS.toNanos(1) / stageEngine.getPeriodNanos()));
+        }
+
+        private static JSONObject engineStats() {
+            return new JSONObject()
+                    .put("stages", stageEngine.getStageCount())
+                    .put("tickHz", TimeUnit.SECONDS.toNanos(1) / stageEngine.getPeriodNanos())
+                    .put("ticks", stageEngine.getTickCount())
+                    .put("droppedTicks", stageEngine.getDroppedTickCount())
+                    .put("averageTickMicros", TimeUnit.NANOSECONDS.toMicros(stageEngine.getAverageTickNanos()))
+                    .put("maxTickMicros", TimeUnit.NANOSECONDS.toMicros(stageEngine.getMaxTickNanos()));
+        }
+
+        private static JSONObject stageFrames(StageEngine.Stage stage, long sinceTick) {
+            JSONArray frames = new JSONArray();
+            for (StageEngine.Frame frame : stage.framesSince(sinceTick)) {
+                frames.put(new JSONObject()
+                        .put("tick", frame.tick)
+                        .put("durationMicros", TimeUnit.NANOSECONDS.toMicros(frame.durationNanos))
+                        .put("sprites", new JSONObject(frame.sprites))
+                        .put("globals", new JSONObject(frame.globals))
+                        .put("output", frame.output));
+            }
+            return new JSONObject()
+                    .put("stageId", stage.getId())
+                    .put("tick", stage.getTick())
+                    .put("finished", stage.isFinished())
+                    .put("lastTickMicros", TimeUnit.NANOSECONDS.toMicros(stage.getLastTickNanos()))
+                    .put("maxTickMicros", TimeUnit.NANOSECONDS.toMicros(stage.getMaxTickNanos()))
+                    .put("frames", frames);
+        }
+
+        private static long parseSince(String query) {
+            return parseLongParam(query, "since", 0);
+        }
+    }
+
+    /**
+     * The project state, served from immutable snapshots, so it never waits for running programs:
+     * <ul>
+     *     <li>{@code GET /api/state} returns the latest published version (sprites and global variables) as JSON</li>
+     *     <li>{@code GET /api/state?since=<version>} returns only what changed after that version, see {@link StateDelta}</li>
+     *     <li>{@code GET /api/state/stream} pushes the same deltas as Server-Sent Events, see {@link StateBroadcaster}</li>
+     * </ul>
+     */
+    static class StateHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String requestPath = t.getRequestURI().getPath();
+            if (!"GET".equals(t.getRequestMethod())) {
+                sendResponse(t, 405, "Method Not Allowed. Only GET is supported.", requestPath, "State");
+                return;
+            }
+            String apiPath = apiPath(t);
+            if (!"/api/state".equals(apiPath) && !"/api/state/stream".equals(apiPath)) {
+                sendResponse(t, 404, "Not Found: " + requestPath, requestPath, "State");
+                return;
+            }
+            ProjectRegistry.Project project = acquireProject(t, "State");
+            if (project == null) {
+                return;
+            }
+            try {
+                ProjectState projectState = project.getState();
+                String query = t.getRequestURI().getQuery();
+                if ("/api/state/stream".equals(apiPath)) {
+                    // EventSource sends the id of the last event it got when it reconnects
+                    String lastEventId = t.getRequestHeaders().getFirst("Last-Event-ID");
+                    long since = lastEventId != null ? parseLong(lastEventId.trim(), -1) : parseLongParam(query, "since", -1);
+                    // A subscribed project stays in memory until its last subscriber goes away
+                    if (!project.getBroadcaster().subscribe(t, since)) {
+                        t.getResponseHeaders().set("Retry-After", "5");
+                        sendResponse(t, 503, "Service Unavailable: Too many state stream subscribers.", requestPath, "State");
+                    }
+                    return; // The exchange stays open; the broadcaster writes to it and closes it
+                }
+                ProjectSnapshot latest = projectState.snapshot();
+                long since = parseLongParam(query, "since", -1);
+                if (since >= 0) {
+                    ProjectSnapshot from = projectState.snapshotAt(since);
+                    sendJsonResponse(t, 200, StateDelta.between(from, latest, projectState.changedSpriteIds(from, latest)));
+                } else {
+                    sendJsonResponse(t, 200, stateJson(latest));
                 }
-                return valueStr; // Return as string if no other parsing fits
-            } else if (rawValue instanceof Number || rawValue instanceof Boolean) {
-                return rawValue; // Already parsed by JSONObject
-            } else if (rawValue == null || JSONObject.NULL.equals(rawValue)) {
-                return null; // Or a suitable default like "" or 0
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Unexpected error serving " + requestPath + ": " + e.getMessage(), e);
+                sendResponse(t, 500, "Internal Server Error: Could not read the project state.", requestPath, "State");
+            } finally {
+                project.release();
+            }
+        }
+
+        static JSONObject stateJson(ProjectSnapshot snapshot) {
+            JSONObject sprites = new JSONObject();
+            for (ProjectSnapshot.SpriteSnapshot sprite : snapshot.getSprites().values()) {
+                sprites.put(sprite.id, spriteJson(sprite));
             }
+            return new JSONObject()
+                    .put("version", snapshot.getVersion())
+                    .put("sprites", sprites)
+                    .put("globals", new JSONObject(snapshot.getGlobals()));
+        }
 
-            // Default: return as string or a default value if rawValue is not a recognized type
-            return (rawValue != null) ? rawValue.toString() : "";
+        static JSONObject spriteJson(ProjectSnapshot.SpriteSnapshot sprite) {
+            return new JSONObject()
+                    .put("id", sprite.id)
+                    .put("name", sprite.name)
+                    .put("x", sprite.x)
+                    .put("y", sprite.y)
+                    .put("currentCostumeId", sprite.currentCostumeId == null ? JSONObject.NULL : sprite.currentCostumeId)
+                    .put("costumes", new JSONArray(sprite.costumes))
+                    .put("sounds", new JSONArray(sprite.sounds))
+                    .put("variables", new JSONObject(sprite.variables));
         }
+    }
 
+    /**
+     * Costume and sound files, see {@link AssetStore}:
+     * <ul>
+     *     <li>{@code POST /api/assets} with the file as body and its media type as Content-Type stores it
+     *     (once, however often it is uploaded) and answers with its {@code assetId}. With
+     *     {@code ?sprite=<spriteId>&kind=costume|sound&name=<name>&id=<costumeId>} it is also added to that
+     *     sprite of the request's project.</li>
+     *     <li>{@code GET /api/assets/<assetId>} serves the file. Asset ids name their content, so responses
+     *     are cacheable forever, and a matching {@code If-None-Match} gets a 304.</li>
+     * </ul>
+     */
+    static class AssetHandler implements HttpHandler {
+        private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
 
         @Override
         public void handle(HttpExchange t) throws IOException {
             String requestPath = t.getRequestURI().getPath();
-            LOGGER.info("ExecuteProgramHandler received request for: " + requestPath + " from " + t.getRemoteAddress());
+            String apiPath = apiPath(t);
+            String assetId = apiPath.startsWith("/api/assets/") ? apiPath.substring("/api/assets/".length()) : "";
+            String method = t.getRequestMethod();
+            try {
+                if (assetId.isEmpty() && "POST".equals(method)) {
+                    upload(t, requestPath);
+                } else if (!assetId.isEmpty() && ("GET".equals(method) || "HEAD".equals(method))) {
+                    serve(t, requestPath, assetId, "HEAD".equals(method));
+                } else {
+                    sendResponse(t, 405, "Method Not Allowed.", requestPath, "Assets");
+                }
+            } catch (LimitedInputStream.LimitExceededException e) {
+                sendResponse(t, 413, "Payload Too Large: Assets are limited to " + assetStore.getMaxBytes() + " bytes.", requestPath, "Assets");
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Unexpected error handling " + method + " " + requestPath + ": " + e.getMessage(), e);
+                sendResponse(t, 500, "Internal Server Error: Could not process the asset request.", requestPath, "Assets");
+            }
+        }
 
-            if (!"POST".equals(t.getRequestMethod())) {
-                LOGGER.warning("Invalid method for " + requestPath + ": " + t.getRequestMethod());
-                sendResponse(t, 405, "Method Not Allowed. Only POST is supported.", requestPath, "ExecuteProgram");
+        private static void upload(HttpExchange t, String requestPath) throws IOException, InterruptedException {
+            String contentType = t.getRequestHeaders().getFirst("Content-Type");
+            if (!AssetStore.isSupportedType(contentType)) {
+                sendResponse(t, 415, "Unsupported Media Type: Assets must be PNG, JPEG, GIF, SVG, WebP, WAV, MP3 or OGG files.", requestPath, "Assets");
                 return;
             }
-
-            // Read the JSON request body
-            String requestBodyString;
-            try (InputStream is = t.getRequestBody();
-                 BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line); // Read as a single line, assuming compact JSON
+            if (ExecuteProgramHandler.parseContentLength(t.getRequestHeaders().getFirst("Content-Length")) > assetStore.getMaxBytes()) {
+                sendResponse(t, 413, "Payload Too Large: Assets are limited to " + assetStore.getMaxBytes() + " bytes.", requestPath, "Assets");
+                return;
+            }
+            String query = t.getRequestURI().getQuery();
+            String spriteId = queryParam(query, "sprite");
+            if (spriteId == null) {
+                AssetStore.Asset asset;
+                try (InputStream is = t.getRequestBody()) {
+                    asset = assetStore.store(is, contentType);
                 }
-                requestBodyString = sb.toString();
-            } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Error reading request body for " + requestPath, e);
-                sendResponse(t, 500, "Internal Server Error: Could not read request body.", requestPath, "ExecuteProgram");
+                sendJsonResponse(t, asset.deduplicated ? 200 : 201, assetJson(asset));
                 return;
             }
 
-            if (requestBodyString.trim().isEmpty()) {
-                LOGGER.warning("Empty request body received for " + requestPath);
-                sendResponse(t, 400, "Bad Request: Request body cannot be empty.", requestPath, "ExecuteProgram");
+            String kind = firstNonNull(queryParam(query, "kind"), "costume");
+            if (!"costume".equals(kind) && !"sound".equals(kind)) {
+                sendResponse(t, 400, "Bad Request: kind must be 'costume' or 'sound'.", requestPath, "Assets");
                 return;
             }
+            ProjectRegistry.Project project = acquireProject(t, "Assets");
+            if (project == null) {
+                return;
+            }
+            try {
+                Sprite sprite = project.getState().getSprites().get(spriteId);
+                if (sprite == null) {
+                    sendResponse(t, 404, "Not Found: No sprite '" + spriteId + "'.", requestPath, "Assets");
+                    return;
+                }
+                AssetStore.Asset asset;
+                try (InputStream is = t.getRequestBody()) {
+                    asset = assetStore.store(is, contentType);
+                }
+                Map<String, String> metadata = new LinkedHashMap<>();
+                metadata.put("id", firstNonNull(queryParam(query, "id"), asset.id));
+                metadata.put("name", firstNonNull(queryParam(query, "name"), asset.id));
+                metadata.put("assetId", asset.id);
+                if ("costume".equals(kind)) {
+                    sprite.addCostume(metadata);
+                } else {
+                    sprite.addSound(metadata);
+                }
+                ProjectSnapshot published = project.getState().publish();
+                if (project.getPersistence() != null
+                        && !project.getPersistence().awaitDurable(published.getVersion(), ProjectPersistence.COMMIT_TIMEOUT_MILLIS)) {
+                    LOGGER.warning("New " + kind + " of sprite '" + spriteId + "' in project '" + project.getId() + "' is not durable yet");
+                }
+                sendJsonResponse(t, asset.deduplicated ? 200 : 201, assetJson(asset)
+                        .put(kind, new JSONObject(metadata)).put("spriteId", spriteId));
+            } finally {
+                project.release();
+            }
+        }
 
-            LOGGER.info("Received request body for " + requestPath + ": " + requestBodyString);
-            StringBuilder aggregatedOutput = new StringBuilder();
+        private static void serve(HttpExchange t, String requestPath, String assetId, boolean headOnly) throws IOException {
+            long size = assetStore.sizeOf(assetId);
+            if (size < 0) {
+                sendResponse(t, 404, "Not Found: No asset '" + assetId + "'.", requestPath, "Assets");
+                return;
+            }
+            String etag = "\"" + assetId + "\"";
+            t.getResponseHeaders().set("ETag", etag);
+            t.getResponseHeaders().set("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+            if (etag.equals(t.getRequestHeaders().getFirst("If-None-Match"))) {
+                t.sendResponseHeaders(304, -1);
+                t.close();
+                return;
+            }
+            String contentType = AssetStore.contentTypeOf(assetId);
+            t.getResponseHeaders().set("Content-Type", contentType);
+            // Assets are uploaded by clients and served from our origin. An SVG can carry script, so no asset
+            // may be sniffed as something else or run anything if opened directly, and SVGs are downloaded
+            // rather than shown when navigated to (an <img> still renders them)
+            t.getResponseHeaders().set("X-Content-Type-Options", "nosniff");
+            t.getResponseHeaders().set("Content-Security-Policy", "default-src 'none'; style-src 'unsafe-inline'; sandbox");
+            if ("image/svg+xml".equals(contentType)) {
+                t.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + assetId + "\"");
+            }
+            if (headOnly) {
+                t.getResponseHeaders().set("Content-Length", Long.toString(size));
+                t.sendResponseHeaders(200, -1);
+                t.close();
+                return;
+            }
+            t.sendResponseHeaders(200, size);
+            try (OutputStream os = t.getResponseBody()) {
+                assetStore.transferTo(assetId, os);
+            }
+        }
 
-            try {
-                JSONArray program = new JSONArray(requestBodyString); // Parse the whole body as an array
-
-                for (int i = 0; i < program.length(); i++) {
-                    JSONObject block = program.getJSONObject(i);
-                    String blockType = block.optString("type", "UNKNOWN_BLOCK"); // Default to UNKNOWN_BLOCK if type is missing
-                    JSONObject inputs = block.optJSONObject("inputs");
-                    if (inputs == null) inputs = new JSONObject(); // Ensure inputs is never null for optString/optInt calls
-
-                    // String blockId = block.optString("id", "no_id"); // For logging if needed
-                    // LOGGER.info("Processing block " + (i + 1) + "/" + program.length() + " (ID: " + blockId + ", Type: " + blockType + ")");
-                    aggregatedOutput.append("Block ").append(i + 1).append(" (").append(blockType).append("):\n");
-
-                    switch (blockType) {
-                        case "PYTHON_BLOCK": {
-                            String pythonCode = inputs.optString("CODE", "");
-                            if (pythonCode.trim().isEmpty()) {
-                                aggregatedOutput.append("  Error: Python code was empty.\n");
-                                LOGGER.warning("Empty Python code for PYTHON_BLOCK.");
-                                continue;
-                            }
-                            LOGGER.info("Executing PYTHON_BLOCK via Jython.");
-                            JythonExecutor.ExecutionResult result = jythonExecutor.executeScript(pythonCode);
-                            String[] lines = result.toString().split("\n");
-                            for (String line : lines) {
-                                aggregatedOutput.append("  ").append(line).append("\n");
-                            }
-                            if (result.hasError()) {
-                                LOGGER.warning("Jython execution for PYTHON_BLOCK had errors.");
-                            }
-                            break;
-                        }
-                        case "CHANGE_VARIABLE_BLOCK": {
-                            String varNameChange = inputs.optString("VARIABLE_NAME", null);
-                            String varScopeChange = inputs.optString("VARIABLE_SCOPE", "global");
-                            // VALUE to change by can itself be a variable or a literal
-                            // Pass aggregatedOutput to resolveInputValue so it can log errors there
-                            Object resolvedValueToChangeBy = resolveInputValue(inputs, "VALUE", "sprite1", aggregatedOutput); // Assuming "sprite1" for now
-
-                            if (varNameChange == null || varNameChange.trim().isEmpty()) {
-                                aggregatedOutput.append("  Error: Variable name not provided for CHANGE_VARIABLE_BLOCK.\n");
-                                LOGGER.warning("Variable name not provided for CHANGE_VARIABLE_BLOCK");
-                                break;
-                            }
-
-                            double numValueToChangeBy;
-                            if (resolvedValueToChangeBy instanceof Number) {
-                                numValueToChangeBy = ((Number) resolvedValueToChangeBy).doubleValue();
-                            } else {
-                                try {
-                                    numValueToChangeBy = Double.parseDouble(String.valueOf(resolvedValueToChangeBy));
-                                } catch (NumberFormatException e) {
-                                    aggregatedOutput.append(String.format("  Error: Value for CHANGE_VARIABLE_BLOCK ('%s') on variable '%s' is not a number.\n", String.valueOf(resolvedValueToChangeBy), varNameChange));
-                                    LOGGER.warning(String.format("Non-numeric value '%s' used in CHANGE_VARIABLE for variable '%s'", String.valueOf(resolvedValueToChangeBy), varNameChange));
-                                    break;
-                                }
-                            }
-
-                            Map<String, Object> targetMapChange = null;
-                            // Sprite targetSpriteChange = null; // Not strictly needed if only using targetMapChange
-                            String logScopeDisplayChange = "Global"; // For logging
-
-                            if (varScopeChange.equals("global")) {
-                                targetMapChange = SimpleHttpServer.this.projectGlobalVariables;
-                            } else {
-                                String targetSpriteIdChange = "sprite1"; // Hardcoded for now
-                                Sprite spriteForChange = SimpleHttpServer.this.projectSprites.get(targetSpriteIdChange);
-                                if (spriteForChange != null) {
-                                    targetMapChange = spriteForChange.getAllLocalVariables();
-                                    logScopeDisplayChange = "Local for " + spriteForChange.getName();
-                                } else {
-                                    aggregatedOutput.append(String.format("  Error: Sprite '%s' not found for local variable '%s' in CHANGE block.\n", targetSpriteIdChange, varNameChange));
-                                    LOGGER.warning("Sprite not found for CHANGE_VARIABLE (local): " + targetSpriteIdChange);
-                                    break;
-                                }
-                            }
-
-                            if (targetMapChange != null) {
-                                Object currentValueObj = targetMapChange.get(varNameChange);
-                                double currentNumericValue = 0;
-                                if (currentValueObj instanceof Number) {
-                                    currentNumericValue = ((Number) currentValueObj).doubleValue();
-                                } else if (currentValueObj != null && !String.valueOf(currentValueObj).isEmpty()) { // check if not null and not empty string
-                                    try {
-                                        currentNumericValue = Double.parseDouble(String.valueOf(currentValueObj));
-                                    } catch (NumberFormatException e) {
-                                        // Variable exists but isn't a number. Scratch treats as 0 in 'change by'.
-                                        LOGGER.warning(String.format("Variable '%s' (%s) current value ('%s') is not a number, treating as 0 for change op.", varNameChange, logScopeDisplayChange, currentValueObj));
-                                    }
-                                }
-                                // If variable doesn't exist (currentValueObj is null), Scratch creates it and treats its value as 0 for 'change by'.
-
-                                double newValue = currentNumericValue + numValueToChangeBy;
-                                targetMapChange.put(varNameChange, newValue);
-
-                                aggregatedOutput.append(String.format("  %s variable '%s' changed by %s, new value is %s.\n", logScopeDisplayChange, varNameChange, numValueToChangeBy, newValue));
-                                LOGGER.info(String.format("Changed %s variable '%s' by %s to %s", logScopeDisplayChange, varNameChange, numValueToChangeBy, newValue));
-                            }
-                            break;
-                        }
-                        case "SET_VARIABLE_BLOCK": {
-                            String varNameSet = inputs.optString("VARIABLE_NAME", null);
-                            String varScopeSet = inputs.optString("VARIABLE_SCOPE", "global");
-                            // Resolve the VALUE input, which might be a literal or a variable reporter
-                            Object valueToSet = resolveInputValue(inputs, "VALUE", "sprite1", aggregatedOutput); // Assuming "sprite1" for now
-
-                            if (varNameSet == null || varNameSet.trim().isEmpty()) {
-                                aggregatedOutput.append("  Error: Variable name not provided for SET_VARIABLE_BLOCK.\n");
-                                LOGGER.warning("Variable name missing in SET_VARIABLE_BLOCK.");
-                                continue;
-                            }
-
-                            if (varScopeSet.equals("global")) {
-                                projectGlobalVariables.put(varNameSet, valueToSet);
-                                aggregatedOutput.append(String.format("  Global variable '%s' set to %s.\n", varNameSet, valueToSet));
-                                LOGGER.info(String.format("Set global variable '%s' to %s", varNameSet, valueToSet));
-                            } else { // "local"
-                                String targetSpriteIdSet = "sprite1"; // Hardcoded
-                                Sprite localSpriteSet = projectSprites.get(targetSpriteIdSet);
-                                if (localSpriteSet != null) {
-                                    localSpriteSet.setLocalVariable(varNameSet, valueToSet);
-                                    aggregatedOutput.append(String.format("  Local variable '%s' for sprite '%s' set to %s.\n", varNameSet, localSpriteSet.getName(), valueToSet));
-                                    LOGGER.info(String.format("Set local variable '%s' for sprite '%s' to %s", varNameSet, localSpriteSet.getName(), valueToSet));
-                                } else {
-                                    aggregatedOutput.append(String.format("  Error: Sprite '%s' not found for setting local variable '%s'.\n", targetSpriteIdSet, varNameSet));
-                                    LOGGER.warning("Sprite not found for SET_VARIABLE_BLOCK (local): " + targetSpriteIdSet);
-                                }
-                            }
-                            break;
-                        }
-                        case "SWITCH_COSTUME_BLOCK": {
-                            String costumeId = inputs.optString("COSTUME_ID", null); // Assuming direct costume ID for now
-                            String costumeNameForLog = inputs.optString("COSTUME_NAME", costumeId);
-                            String targetSpriteId_Looks = "sprite1"; // Hardcoded
-                            Sprite looksSprite = projectSprites.get(targetSpriteId_Looks);
-
-                            if (costumeId == null || costumeId.isEmpty()) {
-                                aggregatedOutput.append("  Error: No costume ID for SWITCH_COSTUME_BLOCK.\n");
-                                LOGGER.warning("Costume ID missing in SWITCH_COSTUME_BLOCK.");
-                                continue;
-                            }
-                            if (looksSprite != null) {
-                                boolean costumeExists = looksSprite.getCostumes().stream().anyMatch(c -> costumeId.equals(c.get("id")));
-                                if (costumeExists) {
-                                    looksSprite.setCurrentCostumeId(costumeId);
-                                    aggregatedOutput.append(String.format("  Sprite '%s' switched to costume '%s'.\n", looksSprite.getName(), costumeNameForLog));
-                                    LOGGER.info("Executed SWITCH_COSTUME_BLOCK for " + looksSprite.getName() + " to " + costumeNameForLog);
-                                } else {
-                                    aggregatedOutput.append(String.format("  Error: Costume ID '%s' not found for sprite '%s'.\n", costumeId, looksSprite.getName()));
-                                    LOGGER.warning("Costume ID " + costumeId + " not found for " + looksSprite.getName());
-                                }
-                            } else {
-                                aggregatedOutput.append(String.format("  Error: Sprite '%s' not found for SWITCH_COSTUME_BLOCK.\n", targetSpriteId_Looks));
-                                LOGGER.warning("Sprite not found for SWITCH_COSTUME_BLOCK: " + targetSpriteId_Looks);
-                            }
-                            break;
-                        }
-                        case "SAY_BLOCK": {
-                            Object sayValueRaw = resolveInputValue(inputs, "TEXT", "sprite1", aggregatedOutput);
-                            String textToSay = String.valueOf(sayValueRaw); // Convert resolved value to String
-                            LOGGER.info("Executing SAY_BLOCK: " + textToSay);
-                            aggregatedOutput.append("  [Output] SAY: ").append(textToSay).append("\n");
-                            break;
-                        }
-                        case "LOOP_BLOCK": {
-                            Object countRaw = resolveInputValue(inputs, "COUNT", "sprite1", aggregatedOutput);
-                            int count = 0;
-                            if (countRaw instanceof Number) {
-                                count = ((Number) countRaw).intValue();
-                            } else {
-                                try { count = Integer.parseInt(String.valueOf(countRaw)); }
-                                catch (NumberFormatException e) {
-                                    aggregatedOutput.append("  Error: Loop count was not a valid number ('"+countRaw+"').\n");
-                                    LOGGER.warning("Invalid loop count: " + countRaw);
-                                    continue;
-                                }
-                            }
-                            LOGGER.info("Encountered LOOP_BLOCK with count: " + count);
-                            aggregatedOutput.append("  Loop ").append(count).append(" times (Note: execution of children not yet implemented).\n");
-                            break;
-                        }
-                        case "GOTO_XY_BLOCK": {
-                            Object xValRaw = resolveInputValue(inputs, "X", "sprite1", aggregatedOutput);
-                            Object yValRaw = resolveInputValue(inputs, "Y", "sprite1", aggregatedOutput);
-                            double xVal = 0.0, yVal = 0.0;
-
-                            try {
-                                xVal = (xValRaw instanceof Number) ? ((Number)xValRaw).doubleValue() : Double.parseDouble(String.valueOf(xValRaw));
-                                yVal = (yValRaw instanceof Number) ? ((Number)yValRaw).doubleValue() : Double.parseDouble(String.valueOf(yValRaw));
-                            } catch (NumberFormatException e) {
-                                aggregatedOutput.append("  Error: Invalid coordinate for GOTO_XY_BLOCK (X: '"+xValRaw+"', Y: '"+yValRaw+"').\n");
-                                LOGGER.warning("Invalid coordinates for GOTO_XY: X="+xValRaw+", Y="+yValRaw);
-                                continue;
-                            }
-
-                            String targetSpriteId = "sprite1"; // Hardcoded
-                            Sprite currentSprite = projectSprites.get(targetSpriteId);
-                            if (currentSprite != null) {
-                                currentSprite.setX(xVal);
-                                currentSprite.setY(yVal);
-                                aggregatedOutput.append(String.format("  Sprite '%s' moved to X: %.2f, Y: %.2f.\n", currentSprite.getName(), xVal, yVal));
-                                LOGGER.info(String.format("Executed GOTO_XY_BLOCK for %s to X=%.2f, Y=%.2f", currentSprite.getName(), xVal, yVal));
-                            } else {
-                                aggregatedOutput.append(String.format("  Error: Sprite '%s' not found for GOTO_XY_BLOCK.\n", targetSpriteId));
-                                LOGGER.warning("Sprite not found for GOTO_XY_BLOCK: " + targetSpriteId);
-                            }
-                            break;
-                        }
-                        default:
-                            LOGGER.warning("Unknown block type encountered: " + blockType);
-                            aggregatedOutput.append("  Error: Unknown block type '").append(blockType).append("'.\n");
-                            break;
-                    }
-                    aggregatedOutput.append("\n"); // Add a blank line after each block's output section
+        private static JSONObject assetJson(AssetStore.Asset asset) {
+            return new JSONObject()
+                    .put("assetId", asset.id)
+                    .put("size", asset.size)
+                    .put("contentType", asset.contentType)
+                    .put("url", "/api/assets/" + asset.id)
+                    .put("deduplicated", asset.deduplicated);
+        }
+
+        private static String firstNonNull(String value, String fallback) {
+            return value != null ? value : fallback;
+        }
+    }
+
+    /**
+     * {@code /api/projects/<projectId>/<endpoint>}: the project API with the project in the path instead of
+     * the {@code X-Project-Id} header, e.g. {@code /api/projects/class-7b/state/stream}. Hands the request
+     * to the endpoint's handler, telling it the project and the endpoint's own path.
+     */
+    static class ProjectRouteHandler implements HttpHandler {
+        private final HttpHandler executeProgramHandler;
+        private final HttpHandler stageHandler;
+        private final HttpHandler stateHandler;
+        private final HttpHandler assetHandler;
+
+        ProjectRouteHandler(HttpHandler executeProgramHandler, HttpHandler stageHandler, HttpHandler stateHandler, HttpHandler assetHandler) {
+            this.executeProgramHandler = executeProgramHandler;
+            this.stageHandler = stageHandler;
+            this.stateHandler = stateHandler;
+            this.assetHandler = assetHandler;
+        }
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String requestPath = t.getRequestURI().getPath();
+            String rest = requestPath.substring("/api/projects/".length());
+            int slash = rest.indexOf('/');
+            String projectId = slash < 0 ? rest : rest.substring(0, slash);
+            String apiPath = "/api" + (slash < 0 ? "" : rest.substring(slash));
+            t.setAttribute(PROJECT_ID_ATTRIBUTE, projectId);
+            t.setAttribute(API_PATH_ATTRIBUTE, apiPath);
+
+            if (apiPath.equals("/api/execute_program")) {
+                executeProgramHandler.handle(t);
+            } else if (apiPath.equals("/api/stages") || apiPath.startsWith("/api/stages/")) {
+                stageHandler.handle(t);
+            } else if (apiPath.equals("/api/state") || apiPath.startsWith("/api/state/")) {
+                stateHandler.handle(t);
+            } else if (apiPath.equals("/api/assets") || apiPath.startsWith("/api/assets/")) {
+                assetHandler.handle(t);
+            } else {
+                sendResponse(t, 404, "Not Found: " + requestPath, requestPath, "Projects");
+            }
+        }
+    }
+
+    /**
+     * The project a request is for: the one named in the path (see {@link ProjectRouteHandler}), else
+     * in the {@code X-Project-Id} header, else the default project.
+     */
+    private static String projectIdOf(HttpExchange t) {
+        Object fromPath = t.getAttribute(PROJECT_ID_ATTRIBUTE);
+        if (fromPath != null) {
+            return (String) fromPath;
+        }
+        String fromHeader = t.getRequestHeaders().getFirst(PROJECT_ID_HEADER);
+        return fromHeader != null ? fromHeader.trim() : ProjectRegistry.DEFAULT_PROJECT_ID;
+    }
+
+    // The request path with any /api/projects/<id> prefix replaced by /api
+    private static String apiPath(HttpExchange t) {
+        Object apiPath = t.getAttribute(API_PATH_ATTRIBUTE);
+        return apiPath != null ? (String) apiPath : t.getRequestURI().getPath();
+    }
+
+    /**
+     * The request's project with one use taken, to be released by the caller. If there is no such
+     * project (bad id, or it could not be loaded), sends the error response and returns null.
+     */
+    private static ProjectRegistry.Project acquireProject(HttpExchange t, String contextName) throws IOException {
+        String requestPath = t.getRequestURI().getPath();
+        String projectId = projectIdOf(t);
+        if (!ProjectRegistry.isValidId(projectId)) {
+            sendResponse(t, 400, "Bad Request: Invalid project id. Use up to 64 letters, digits, '_' or '-'.", requestPath, contextName);
+            return null;
+        }
+        try {
+            return projectRegistry.acquire(projectId);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not load project '" + projectId + "' for " + requestPath + ": " + e.getMessage(), e);
+            sendResponse(t, 503, "Service Unavailable: Could not load project '" + projectId + "'.", requestPath, contextName);
+            return null;
+        }
+    }
+
+    // The URL-decoded value of query parameter {@code name}, or null if it is absent
+    private static String queryParam(String query, String name) {
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith(name + "=")) {
+                    return URLDecoder.decode(param.substring(name.length() + 1), StandardCharsets.UTF_8);
                 }
-                sendResponse(t, 200, aggregatedOutput.toString(), requestPath, "ExecuteProgramArray");
+            }
+        }
+        return null;
+    }
 
-            } catch (JSONException e) {
-                LOGGER.log(Level.WARNING, "JSON parsing error for " + requestPath + ": " + e.getMessage() + ". Body: " + requestBodyString, e);
-                sendResponse(t, 400, "Bad Request: Malformed JSON program structure. " + e.getMessage(), requestPath, "ExecuteProgram");
-            } catch (Exception e) { // Catch-all for other unexpected errors during processing
-                LOGGER.log(Level.SEVERE, "Unexpected error processing program for " + requestPath + ": " + e.getMessage() + ". Body: " + requestBodyString, e);
-                sendResponse(t, 500, "Internal Server Error: Could not execute program due to an unexpected server error.", requestPath, "ExecuteProgram");
+    // The value of the numeric query parameter {@code name}, or {@code missing} if it is absent or not a number
+    private static long parseLongParam(String query, String name, long missing) {
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith(name + "=")) {
+                    return parseLong(param.substring(name.length() + 1), missing);
+                }
             }
         }
+        return missing;
+    }
+
+    private static long parseLong(String value, long invalid) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return invalid;
+        }
+    }
+
+    private static void sendJsonResponse(HttpExchange t, int statusCode, JSONObject json) throws IOException {
+        byte[] responseBytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        t.sendResponseHeaders(statusCode, responseBytes.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(responseBytes);
+        }
     }
 
     // Common response sender utility - overloaded for scriptName context
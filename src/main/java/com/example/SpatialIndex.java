@@ -0,0 +1,194 @@
+package com.example;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A uniform grid over one project's sprite positions, for the sensing reporters ({@code TOUCHING},
+ * {@code DISTANCE_TO}) that would otherwise have to look at every sprite.
+ *
+ * The stage is cut into square cells of {@code cellSize}; each cell holds the sprites whose position
+ * falls into it. Sprites report their own moves (see {@link Sprite#setPosition}), and the index only
+ * does work when a sprite crosses into another cell. A touching check then looks at the few cells
+ * around the sprite, and a distance query at rings of cells around it, nearest first.
+ *
+ * Sprites have no size on the server, so every sprite counts as a {@code spriteSize} square centred on
+ * its position, the size the editor draws sprites without a costume.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.spatial.cellSize} - width and height of a grid cell (default 64)</li>
+ *     <li>{@code jscratch.spatial.spriteSize} - width and height of a sprite for touching checks (default 30)</li>
+ * </ul>
+ */
+public class SpatialIndex {
+
+    public static final double CELL_SIZE = Math.max(1, Double.parseDouble(System.getProperty("jscratch.spatial.cellSize", "64")));
+    public static final double SPRITE_SIZE = Math.max(0, Double.parseDouble(System.getProperty("jscratch.spatial.spriteSize", "30")));
+
+    // Cell key -> sprites in the cell. Cells are only changed inside compute calls, so an emptied cell can
+    // be dropped without losing a sprite that is being added to it at the same time.
+    private final Map<Long, Set<Sprite>> cells = new ConcurrentHashMap<>();
+    private final Map<String, Sprite> sprites; // The project's sprites, for the rare full scan
+
+    public SpatialIndex(Map<String, Sprite> sprites) {
+        this.sprites = sprites;
+    }
+
+    /** Starts tracking {@code sprite}, which then keeps its own cell up to date as it moves. */
+    public void add(Sprite sprite) {
+        synchronized (sprite) {
+            sprite.spatialIndex = this;
+            sprite.cellKey = keyOf(sprite.getX(), sprite.getY());
+            addToCell(sprite.cellKey, sprite);
+        }
+    }
+
+    /** Stops tracking {@code sprite}. */
+    public void remove(Sprite sprite) {
+        synchronized (sprite) {
+            if (sprite.spatialIndex == this) {
+                sprite.spatialIndex = null;
+                removeFromCell(sprite.cellKey, sprite);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Set<Sprite> cell : cells.values()) {
+            for (Sprite sprite : cell) {
+                remove(sprite);
+            }
+        }
+    }
+
+    /** Called by a tracked sprite after its position changed. Costs one division per axis unless it changed cell. */
+    void moved(Sprite sprite) {
+        if (keyOf(sprite.getX(), sprite.getY()) == sprite.cellKey) {
+            return;
+        }
+        synchronized (sprite) { // Moves of one sprite from several scripts must not leave it in two cells
+            long key = keyOf(sprite.getX(), sprite.getY());
+            if (sprite.spatialIndex == this && key != sprite.cellKey) {
+                addToCell(key, sprite); // Add before removing, so the sprite never briefly disappears
+                removeFromCell(sprite.cellKey, sprite);
+                sprite.cellKey = key;
+            }
+        }
+    }
+
+    /**
+     * True if {@code self} overlaps the sprite with id {@code targetId} or any of its clones. Only the
+     * cells within one sprite size of {@code self} are looked at.
+     */
+    public boolean touching(Sprite self, String targetId) {
+        double x = self.getX();
+        double y = self.getY();
+        long minCellX = cell(x - SPRITE_SIZE);
+        long maxCellX = cell(x + SPRITE_SIZE);
+        long minCellY = cell(y - SPRITE_SIZE);
+        long maxCellY = cell(y + SPRITE_SIZE);
+        for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (long cellY = minCellY; cellY <= maxCellY; cellY++) {
+                Set<Sprite> cell = cells.get(key(cellX, cellY));
+                if (cell == null) {
+                    continue;
+                }
+                for (Sprite other : cell) {
+                    if (other != self && isInstanceOf(other, targetId)
+                            && Math.abs(other.getX() - x) < SPRITE_SIZE && Math.abs(other.getY() - y) < SPRITE_SIZE) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The distance from {@code self} to the nearest of the sprite with id {@code targetId} and its
+     * clones, or NaN if there is none. Searches rings of cells outwards from {@code self} and stops once
+     * no closer sprite can be in the next ring; far-apart sprites fall back to a scan of all sprites.
+     */
+    public double distanceToNearest(Sprite self, String targetId) {
+        double x = self.getX();
+        double y = self.getY();
+        double best = Double.POSITIVE_INFINITY;
+        Sprite original = sprites.get(targetId);
+        if (original != null && original != self) {
+            best = Math.hypot(original.getX() - x, original.getY() - y); // Bounds the search; clones can only be closer
+        }
+        long rings = Double.isInfinite(best) ? Long.MAX_VALUE : (long) Math.ceil(best / CELL_SIZE);
+        if ((double) rings * rings > sprites.size()) {
+            return scan(self, targetId, best); // More cells to visit than sprites to look at
+        }
+        long centreX = cell(x);
+        long centreY = cell(y);
+        for (long ring = 0; ring <= rings; ring++) {
+            if ((ring - 1) * CELL_SIZE >= best) {
+                break; // Everything from this ring on is at least (ring - 1) cells away
+            }
+            for (long cellX = centreX - ring; cellX <= centreX + ring; cellX++) {
+                boolean edgeColumn = cellX == centreX - ring || cellX == centreX + ring;
+                long step = edgeColumn ? 1 : 2 * Math.max(1, ring); // Inner columns: only the top and bottom cells
+                for (long cellY = centreY - ring; cellY <= centreY + ring; cellY += step) {
+                    best = nearestInCell(cells.get(key(cellX, cellY)), self, targetId, x, y, best);
+                }
+            }
+        }
+        return Double.isInfinite(best) ? Double.NaN : best;
+    }
+
+    private double scan(Sprite self, String targetId, double best) {
+        for (Sprite other : sprites.values()) {
+            if (other != self && isInstanceOf(other, targetId)) {
+                best = Math.min(best, Math.hypot(other.getX() - self.getX(), other.getY() - self.getY()));
+            }
+        }
+        return Double.isInfinite(best) ? Double.NaN : best;
+    }
+
+    private static double nearestInCell(Set<Sprite> cell, Sprite self, String targetId, double x, double y, double best) {
+        if (cell != null) {
+            for (Sprite other : cell) {
+                if (other != self && isInstanceOf(other, targetId)) {
+                    best = Math.min(best, Math.hypot(other.getX() - x, other.getY() - y));
+                }
+            }
+        }
+        return best;
+    }
+
+    // Like Scratch, a sprite's clones count as that sprite for sensing
+    private static boolean isInstanceOf(Sprite sprite, String targetId) {
+        return targetId.equals(sprite.getId()) || targetId.equals(sprite.getCloneOf());
+    }
+
+    private void addToCell(long key, Sprite sprite) {
+        cells.compute(key, (k, cell) -> {
+            Set<Sprite> updated = cell != null ? cell : ConcurrentHashMap.newKeySet();
+            updated.add(sprite);
+            return updated;
+        });
+    }
+
+    private void removeFromCell(long key, Sprite sprite) {
+        cells.computeIfPresent(key, (k, cell) -> {
+            cell.remove(sprite);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    private static long cell(double coordinate) {
+        return (long) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static long keyOf(double x, double y) {
+        return key(cell(x), cell(y));
+    }
+
+    private static long key(long cellX, long cellY) {
+        return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+}
@@ -1,23 +1,45 @@
 package com.example;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap; // For localVariables and default costume meta
-// import java.util.concurrent.ConcurrentHashMap; // Decided on HashMap for now
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Server-side state of one sprite. Sprites are shared by concurrently running programs and HTTP
+ * handlers, so every field is safe to read and write from any thread: scalar properties are volatile,
+ * costumes and sounds are immutable and replaced on change (rarely changed, often read), and local
+ * variables live in a lock-free {@link VariableStore}.
+ *
+ * A clone (see {@link ClonePool}) is a flyweight: it shares its parent's costume table and sound list
+ * and starts with a copy-on-write view of the parent's local variables, so all it holds of its own is
+ * its position, current costume and the variables it has written since.
+ */
 public class Sprite {
-    private String id;
-    private String name;
-    private double x;
-    private double y;
-    private String currentCostumeId;
-    // For costumes and sounds, we store metadata. The actual data (e.g., image/audio bytes or DataURLs)
-    // would be handled differently depending on whether they are server-managed or client-side.
-    // For now, these lists will hold maps of metadata, like {"id": "unique_id", "name": "costume_name.png"}
-    private List<Map<String, String>> costumes;
-    private List<Map<String, String>> sounds;
-    private Map<String, Object> localVariables;
+    private final String id;
+    private volatile String name;
+    private volatile double x;
+    private volatile double y;
+    private volatile String currentCostumeId;
+    // For costumes and sounds, we store metadata, like {"id": "unique_id", "name": "costume_name.png"}.
+    // Costumes uploaded to the server also carry an "assetId" naming their image in the AssetStore;
+    // the others are client-side data URLs.
+    private volatile CostumeTable costumes; // Replaced, never modified
+    private volatile List<Map<String, String>> sounds; // Unmodifiable, replaced, never modified
+    private volatile VariableStore localVariables; // Replaced only when a pooled clone is reused
+    private volatile String cloneOf; // Id of the sprite this is a clone of, null for an original
+    // Set while the sprite is in a project's SpatialIndex, which moves it between grid cells; both managed by the index
+    volatile SpatialIndex spatialIndex;
+    volatile long cellKey;
+    // Bumped by every setter and add* method (local variables track their own writes), so snapshot
+    // publishers can tell an unchanged sprite from a changed one without comparing fields
+    private final AtomicLong revision = new AtomicLong();
+    // The project this sprite is in, told the first time the sprite changes after each publish, so that
+    // publishing looks only at changed sprites. Set and cleared by ProjectState.
+    private volatile ProjectState owner;
+    private volatile boolean changed; // Reported to owner since its last publish
+    private final Runnable localVariableWritten = this::changed;
     // In a more complete model, 'scripts' would also be here, perhaps as a JSON string or a list of block objects.
 
     public Sprite(String id, String name, double x, double y, String currentCostumeId,
@@ -27,9 +49,10 @@ public class Sprite {
         this.x = x;
         this.y = y;
         this.currentCostumeId = currentCostumeId;
-        this.costumes = costumes != null ? new ArrayList<>(costumes) : new ArrayList<>();
-        this.sounds = sounds != null ? new ArrayList<>(sounds) : new ArrayList<>();
-        this.localVariables = new HashMap<>(); // Initialize localVariables
+        this.costumes = CostumeTable.of(costumes);
+        this.localVariables = new VariableStore();
+        this.localVariables.setWriteListener(localVariableWritten);
+        this.sounds = sounds != null ? Collections.unmodifiableList(new ArrayList<>(sounds)) : Collections.emptyList();
     }
 
     // Default constructor for convenience or if created without all initial data
@@ -38,61 +61,165 @@ public class Sprite {
         // localVariables is initialized by the main constructor call above
     }
 
+    // Clones are only made by ClonePool, which reuses them through becomeCloneOf()
+    Sprite(String id, Sprite parent) {
+        this.id = id;
+        becomeCloneOf(parent);
+    }
+
+    /**
+     * Turns this (pooled) sprite into a fresh clone of {@code parent}: same name, position, costume,
+     * costume table and sounds, and local variables that read the parent's current values until written.
+     */
+    synchronized void becomeCloneOf(Sprite parent) {
+        this.name = parent.getName();
+        this.x = parent.getX();
+        this.y = parent.getY();
+        this.currentCostumeId = parent.getCurrentCostumeId();
+        this.costumes = parent.getCostumeTable(); // Shared: tables are immutable
+        this.sounds = parent.getSounds();
+        VariableStore locals = parent.getLocalVariables().copyOnWrite();
+        locals.setWriteListener(localVariableWritten);
+        this.localVariables = locals;
+        this.cloneOf = parent.isClone() ? parent.getCloneOf() : parent.getId(); // Clones of clones belong to the original
+        touch();
+    }
+
     // Getters
     public String getId() { return id; }
     public String getName() { return name; }
     public double getX() { return x; }
     public double getY() { return y; }
     public String getCurrentCostumeId() { return currentCostumeId; }
-    public List<Map<String, String>> getCostumes() { return costumes; }
-    public List<Map<String, String>> getSounds() { return sounds; }
+    public List<Map<String, String>> getCostumes() { return costumes.list(); } // Unmodifiable; use addCostume()
+    public CostumeTable getCostumeTable() { return costumes; }
+    public boolean hasCostume(String costumeId) { return costumes.contains(costumeId); }
+    public List<Map<String, String>> getSounds() { return sounds; } // Unmodifiable; use addSound()
+    public boolean isClone() { return cloneOf != null; }
+    /** The id of the original sprite this is a clone of, or null if it is not a clone. */
+    public String getCloneOf() { return cloneOf; }
+
+    public long getRevision() { return revision.get(); }
+
+    void attach(ProjectState project) {
+        this.owner = project;
+    }
+
+    // Called by the owner before it reads the sprite for a new version
+    void clearChanged() {
+        this.changed = false;
+    }
+
+    // After the change is made: a publish that cleared the flag before reading either sees the change or is told again
+    private void changed() {
+        if (!changed) {
+            changed = true;
+            ProjectState project = owner;
+            if (project != null) {
+                project.spriteChanged(id);
+            }
+        }
+    }
+
+    private void touch() {
+        revision.incrementAndGet();
+        changed();
+    }
 
     // Setters
-    public void setName(String name) { this.name = name; }
-    public void setX(double x) { this.x = x; }
-    public void setY(double y) { this.y = y; }
-    public void setCurrentCostumeId(String currentCostumeId) { this.currentCostumeId = currentCostumeId; }
+    public void setName(String name) { this.name = name; touch(); }
+    public void setX(double x) { this.x = x; touch(); moved(); }
+    public void setY(double y) { this.y = y; touch(); moved(); }
+
+    /** Sets both coordinates, with one update of the spatial index instead of two. */
+    public void setPosition(double x, double y) {
+        this.x = x;
+        this.y = y;
+        touch();
+        moved();
+    }
+
+    private void moved() {
+        SpatialIndex index = spatialIndex;
+        if (index != null) {
+            index.moved(this);
+        }
+    }
+    public void setCurrentCostumeId(String currentCostumeId) { this.currentCostumeId = currentCostumeId; touch(); }
 
     // Methods to manage costumes and sounds metadata
     public void addCostume(Map<String, String> costumeMeta) {
-        if (this.costumes == null) {
-            this.costumes = new ArrayList<>();
-        }
-        this.costumes.add(costumeMeta);
-        if (this.currentCostumeId == null && !this.costumes.isEmpty()) {
-            this.currentCostumeId = this.costumes.get(0).get("id");
+        synchronized (this) { // Adders replace the table, so they must not overlap; the first costume becomes current
+            this.costumes = this.costumes.with(costumeMeta);
+            if (this.currentCostumeId == null) {
+                this.currentCostumeId = this.costumes.list().get(0).get("id");
+            }
         }
+        touch();
     }
 
     public void addSound(Map<String, String> soundMeta) {
-        if (this.sounds == null) {
-            this.sounds = new ArrayList<>();
+        synchronized (this) {
+            List<Map<String, String>> added = new ArrayList<>(this.sounds);
+            added.add(soundMeta);
+            this.sounds = Collections.unmodifiableList(added);
         }
-        this.sounds.add(soundMeta);
+        touch();
     }
 
     // In a server-side model, you might have methods here to load actual costume/sound data
     // from a file path stored in the metadata, but for client-side DataURLs, this is mostly for structure.
 
     // Local Variable Management
+    // Names are interned to slots (see VariableStore); compiled blocks use the slot methods directly.
+    public VariableStore getLocalVariables() {
+        return this.localVariables;
+    }
+
+    public boolean containsLocalVariable(String name) {
+        int slot = this.localVariables.existingSlotOf(name);
+        return slot >= 0 && this.localVariables.contains(slot);
+    }
+
     public Object getLocalVariable(String name) {
-        return this.localVariables.get(name);
+        int slot = this.localVariables.existingSlotOf(name);
+        return slot >= 0 ? this.localVariables.get(slot) : null;
     }
 
     public void setLocalVariable(String name, Object value) {
-        // Basic type checking or conversion could be added here if needed
-        // e.g., ensuring numbers are stored as Double or Long, not just any Object.
-        // For now, allowing any Object as per typical dynamic language variable behavior.
-        this.localVariables.put(name, value);
+        this.localVariables.set(this.localVariables.slotOf(name), value);
+    }
+
+    /** Atomically sets the variable to {@code update} if it currently holds {@code expected} (see {@link VariableStore#compareAndSet}). */
+    public boolean compareAndSetLocalVariable(String name, Object expected, Object update) {
+        return this.localVariables.compareAndSet(this.localVariables.slotOf(name), expected, update);
+    }
+
+    /** Atomically adds {@code delta} to the variable (missing or non-numeric counts as 0) and returns the new value. */
+    public double addAndGetLocalVariable(String name, double delta) {
+        return this.localVariables.addAndGet(this.localVariables.slotOf(name), delta);
     }
 
+    /**
+     * An immutable snapshot of all local variables. It is cached until the next write, so repeated
+     * reads of an unchanged sprite don't copy anything. Writes go through the methods above.
+     */
     public Map<String, Object> getAllLocalVariables() {
-        // Return a copy to prevent external modification of the internal map if desired,
-        // though direct modification might be intended in some controlled scenarios.
-        return new HashMap<>(this.localVariables);
+        return this.localVariables.snapshot();
+    }
+
+    /**
+     * A live map view of the local variables, not a copy. Used to expose the sprite's variables to
+     * Python blocks, where writes must land in the sprite directly.
+     */
+    public Map<String, Object> getLocalVariablesView() {
+        return this.localVariables.asMap();
     }
 
     public void removeLocalVariable(String name) {
-        this.localVariables.remove(name);
+        int slot = this.localVariables.existingSlotOf(name);
+        if (slot >= 0) {
+            this.localVariables.remove(slot);
+        }
     }
 }
@@ -0,0 +1,373 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs block programs as live "stages" that advance at a fixed frame rate, instead of running them to
+ * completion in one request.
+ *
+ * Every stage is one task on a shared scheduled thread pool, fired {@code tickHz} times per second.
+ * A tick steps each runnable script of the stage for one slice (by default up to the end of its next
+ * loop iteration, which is how far a Scratch script gets in one frame), then compares the sprites and
+ * variables the stage touches with the previous tick and publishes the differences as a {@link Frame}.
+ * Clients poll the frames they have not seen yet.
+ *
+ * A tick that starts more than one period late is dropped rather than run back to back with the
+ * next, so an overloaded server falls behind in simulated time instead of using more CPU.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.stage.tickHz} - ticks per second (default 30)</li>
+ *     <li>{@code jscratch.stage.threads} - threads stepping stages (default: number of CPUs)</li>
+ *     <li>{@code jscratch.stage.maxStages} - live stages at most (default 4096)</li>
+ *     <li>{@code jscratch.stage.sliceInstructions} - instructions a script runs per tick before yielding at a loop boundary (default 1)</li>
+ *     <li>{@code jscratch.stage.frameHistory} - frames kept per stage for polling clients (default 64)</li>
+ * </ul>
+ */
+public class StageEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(StageEngine.class.getName());
+
+    /** The changes published by one tick. Values are copies, so a frame never changes after publication. */
+    public static class Frame {
+        public final long tick;
+        public final long durationNanos;
+        public final Map<String, Map<String, Object>> sprites; // Sprite id -> changed properties
+        public final Map<String, Object> globals;              // Changed global variables
+        public final String output;                            // Text the scripts printed during the tick
+
+        Frame(long tick, long durationNanos, Map<String, Map<String, Object>> sprites, Map<String, Object> globals, String output) {
+            this.tick = tick;
+            this.durationNanos = durationNanos;
+            this.sprites = Collections.unmodifiableMap(sprites);
+            this.globals = Collections.unmodifiableMap(globals);
+            this.output = output;
+        }
+
+        boolean isEmpty() {
+            return sprites.isEmpty() && globals.isEmpty() && output.isEmpty();
+        }
+    }
+
+    private final long periodNanos;
+    private final int maxStages;
+    private final long sliceInstructions;
+    private final int frameHistory;
+    private final ScheduledThreadPoolExecutor ticker;
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private final AtomicInteger stageCounter = new AtomicInteger();
+
+    // Engine-wide tick timing
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder droppedTicks = new LongAdder();
+    private final LongAdder tickNanos = new LongAdder();
+    private final AtomicLong maxTickNanos = new AtomicLong();
+
+    public StageEngine(int tickHz, int threads, int maxStages, long sliceInstructions, int frameHistory) {
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, tickHz);
+        this.maxStages = Math.max(1, maxStages);
+        this.sliceInstructions = Math.max(1, sliceInstructions);
+        this.frameHistory = Math.max(1, frameHistory);
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.ticker = new ScheduledThreadPoolExecutor(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "stage-ticker-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.setRemoveOnCancelPolicy(true); // Stopped stages must not linger in the queue
+    }
+
+    public static StageEngine fromSystemProperties() {
+        return new StageEngine(
+            Integer.getInteger("jscratch.stage.tickHz", 30),
+            Integer.getInteger("jscratch.stage.threads", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("jscratch.stage.maxStages", 4096),
+            Long.getLong("jscratch.stage.sliceInstructions", 1L),
+            Integer.getInteger("jscratch.stage.frameHistory", 64));
+    }
+
+    /**
+     * Starts ticking {@code program} against the given project state. {@code onStopped} (may be null)
+     * runs once when the stage stops ticking, because it finished, failed or was stopped.
+     *
+     * @throws IllegalStateException if the engine already runs {@code maxStages} stages
+     */
+    public Stage start(CompiledProgram program, ProjectState project, JythonExecutor jythonExecutor, String defaultSpriteId,
+                       Runnable onStopped) {
+        if (stages.size() >= maxStages) {
+            stages.values().removeIf(Stage::isFinished); // Finished stages only linger so clients can read their last frames
+        }
+        if (stages.size() >= maxStages) {
+            throw new IllegalStateException("The server already runs " + maxStages + " stages");
+        }
+        Stage stage = new Stage("stage-" + stageCounter.incrementAndGet(), program, project, jythonExecutor, defaultSpriteId, onStopped);
+        stages.put(stage.id, stage);
+        stage.future = ticker.scheduleAtFixedRate(stage::tick, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        LOGGER.info("Started " + stage.id + " with " + stage.scripts.size() + " script(s)");
+        return stage;
+    }
+
+    public Stage get(String stageId) {
+        return stages.get(stageId);
+    }
+
+    /** Stops and forgets a stage; returns false if there was no such stage. */
+    public boolean stop(String stageId) {
+        Stage stage = stages.remove(stageId);
+        if (stage == null) {
+            return false;
+        }
+        stage.stop();
+        LOGGER.info("Stopped " + stageId + " after " + stage.getTick() + " tick(s)");
+        return true;
+    }
+
+    public Collection<Stage> getStages() {
+        return Collections.unmodifiableCollection(stages.values());
+    }
+
+    public int getStageCount() { return stages.size(); }
+    public long getPeriodNanos() { return periodNanos; }
+    public long getTickCount() { return ticks.sum(); }
+    public long getDroppedTickCount() { return droppedTicks.sum(); }
+    public long getMaxTickNanos() { return maxTickNanos.get(); }
+
+    public long getAverageTickNanos() {
+        long count = ticks.sum();
+        return count == 0 ? 0 : tickNanos.sum() / count;
+    }
+
+    private void recordTick(long nanos) {
+        ticks.increment();
+        tickNanos.add(nanos);
+        maxTickNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // What a stage last reported for one sprite; the sprite and snapshot are compared by identity
+    private static final class Published {
+        Sprite sprite;
+        long revision;
+        double x;
+        double y;
+        String costume;
+        Map<String, Object> locals = Collections.emptyMap();
+    }
+
+    /**
+     * One live program: its scripts, their shared output and the frames published so far. A stage whose
+     * scripts have all finished stops ticking but stays readable until it is stopped or its slot is needed.
+     */
+    public class Stage {
+        private final String id;
+        private final List<ScriptThread> scripts = new ArrayList<>();
+        private final Map<String, Published> published = new LinkedHashMap<>(); // Sprites the scripts target, by id
+        private final Map<String, Sprite> sprites;
+        private final VariableStore globalVariables;
+        private final ProjectState project;
+        private final AtomicReference<Runnable> onStopped; // Cleared when run
+        private final ProgramOutput output = ProgramOutput.buffered(ProgramOutput.MAX_BLOCK_BYTES); // Per tick, see drain()
+        private Map<String, Object> publishedGlobals = Collections.emptyMap(); // The globals snapshot last compared against
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private final long startNanos = System.nanoTime();
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean finished;
+        private volatile long tick;
+        private long lastTickNanos;
+        private long maxTickNanosForStage;
+
+        private Stage(String id, CompiledProgram program, ProjectState project, JythonExecutor jythonExecutor, String defaultSpriteId,
+                      Runnable onStopped) {
+            this.id = id;
+            this.project = project;
+            this.onStopped = new AtomicReference<>(onStopped);
+            this.sprites = project.getSprites();
+            this.globalVariables = project.getGlobals();
+            ExecutionContext.SharedBudget budget = new ExecutionContext.SharedBudget(ScriptThread.DEFAULT_INSTRUCTION_BUDGET);
+            for (CompiledProgram.Script script : program.getScripts()) {
+                String spriteId = script.getSpriteId() != null ? script.getSpriteId() : defaultSpriteId;
+                published.computeIfAbsent(spriteId, k -> new Published());
+                scripts.add(new ScriptThread(script.getBlocks(),
+                        new ExecutionContext(project, jythonExecutor, output, spriteId, budget))); // One budget for the whole stage
+            }
+            diff(); // Baseline, so the first frame only reports what the program changed
+        }
+
+        public String getId() { return id; }
+        public ProjectState getProject() { return project; }
+        public long getTick() { return tick; }
+        public boolean isFinished() { return finished; }
+
+        public synchronized long getLastTickNanos() { return lastTickNanos; }
+        public synchronized long getMaxTickNanos() { return maxTickNanosForStage; }
+
+        /** Published frames with a tick number above {@code sinceTick}, oldest first. */
+        public List<Frame> framesSince(long sinceTick) {
+            synchronized (frames) {
+                List<Frame> result = new ArrayList<>();
+                for (Frame frame : frames) {
+                    if (frame.tick > sinceTick) {
+                        result.add(frame);
+                    }
+                }
+                return result;
+            }
+        }
+
+        // Runs on a ticker thread; the executor never runs two ticks of the same stage at once.
+        private void tick() {
+            long started = System.nanoTime();
+            long due = startNanos + (tick + 1) * periodNanos;
+            tick++;
+            if (started - due > periodNanos) {
+                droppedTicks.increment(); // Running late: skip this frame instead of catching up
+                return;
+            }
+            try {
+                boolean allFinished = true;
+                for (ScriptThread script : scripts) {
+                    if (script.isFinished()) {
+                        continue;
+                    }
+                    try {
+                        if (!script.runSlice(sliceInstructions)) {
+                            allFinished = false;
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, id + ": script for sprite '" + script.getContext().getTargetSpriteId() + "' failed: " + e.getMessage(), e);
+                        script.fail(e);
+                    }
+                }
+                Map<String, Map<String, Object>> changedSprites = new LinkedHashMap<>();
+                Map<String, Object> changedGlobals = new LinkedHashMap<>();
+                diff(changedSprites, changedGlobals);
+                long duration = System.nanoTime() - started;
+                Frame frame = new Frame(tick, duration, changedSprites, changedGlobals, output.drain());
+                publish(frame);
+                if (!changedSprites.isEmpty() || !changedGlobals.isEmpty()) {
+                    project.publish(); // Make the tick's changes visible to project readers as one version
+                }
+                recordTick(duration);
+                synchronized (this) {
+                    lastTickNanos = duration;
+                    maxTickNanosForStage = Math.max(maxTickNanosForStage, duration);
+                }
+                if (allFinished) {
+                    finished = true;
+                    stop();
+                    LOGGER.info(id + " finished after " + tick + " tick(s)");
+                }
+            } catch (RuntimeException e) {
+                // An exception would silently cancel the scheduled task; stop the stage visibly instead
+                LOGGER.log(Level.SEVERE, id + ": tick " + tick + " failed, stopping the stage", e);
+                finished = true;
+                stop();
+            }
+        }
+
+        private void publish(Frame frame) {
+            if (frame.isEmpty()) {
+                return; // Nothing changed; pollers only need the tick counter
+            }
+            synchronized (frames) {
+                frames.addLast(frame);
+                while (frames.size() > frameHistory) {
+                    frames.removeFirst();
+                }
+            }
+        }
+
+        private void diff() {
+            diff(new HashMap<>(), new HashMap<>());
+        }
+
+        /**
+         * Collects what changed since the last call. A sprite whose revision and local-variable snapshot are
+         * the same objects as last time is skipped without allocating anything; the globals likewise by their
+         * snapshot's identity (snapshots are cached until the next write, see {@link VariableStore#snapshot()}).
+         */
+        private void diff(Map<String, Map<String, Object>> changedSprites, Map<String, Object> changedGlobals) {
+            for (Map.Entry<String, Published> entry : published.entrySet()) {
+                Sprite sprite = sprites.get(entry.getKey());
+                if (sprite == null) {
+                    continue;
+                }
+                Published last = entry.getValue();
+                long revision = sprite.getRevision(); // Before the values: a write in between just means one more look next tick
+                Map<String, Object> locals = sprite.getAllLocalVariables();
+                if (sprite == last.sprite && revision == last.revision && locals == last.locals) {
+                    continue;
+                }
+                Map<String, Object> changes = new LinkedHashMap<>();
+                boolean known = sprite == last.sprite; // A new or replaced sprite is reported in full
+                if (!known || Double.compare(sprite.getX(), last.x) != 0) {
+                    last.x = sprite.getX();
+                    changes.put("x", last.x);
+                }
+                if (!known || Double.compare(sprite.getY(), last.y) != 0) {
+                    last.y = sprite.getY();
+                    changes.put("y", last.y);
+                }
+                if (!known || !Objects.equals(sprite.getCurrentCostumeId(), last.costume)) {
+                    last.costume = sprite.getCurrentCostumeId();
+                    changes.put("costume", last.costume);
+                }
+                Map<String, Object> changedLocals = changedValues(known ? last.locals : Collections.emptyMap(), locals);
+                if (!changedLocals.isEmpty()) {
+                    changes.put("variables", changedLocals);
+                }
+                last.sprite = sprite;
+                last.revision = revision;
+                last.locals = locals;
+                if (!changes.isEmpty()) {
+                    changedSprites.put(entry.getKey(), changes);
+                }
+            }
+            Map<String, Object> globals = globalVariables.snapshot();
+            if (globals != publishedGlobals) {
+                changedGlobals.putAll(changedValues(publishedGlobals, globals));
+                publishedGlobals = globals;
+            }
+        }
+
+        // Variables in current that are new or differ from previous (removed ones are not reported)
+        private Map<String, Object> changedValues(Map<String, Object> previous, Map<String, Object> current) {
+            Map<String, Object> changed = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> variable : current.entrySet()) {
+                Object before = previous.get(variable.getKey());
+                if (!Objects.equals(before, variable.getValue()) || (before == null && !previous.containsKey(variable.getKey()))) {
+                    changed.put(variable.getKey(), variable.getValue());
+                }
+            }
+            return changed;
+        }
+
+        private void stop() {
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            Runnable callback = onStopped.getAndSet(null);
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Pushes a project's published versions to subscribed clients as Server-Sent Events
+ * ({@code GET /api/state/stream}). Every event is a {@link StateDelta} from the version the client
+ * last saw to the latest one:
+ * <pre>
+ * id: 42
+ * event: delta
+ * data: {"v":42,"f":41,"gs":{"score":7}}
+ * </pre>
+ * Browsers reconnect on their own and send the last id back as {@code Last-Event-ID}, so a client
+ * that drops out only misses the versions in between, and gets them as one delta.
+ *
+ * Publishing only schedules a push; the push runs on a small shared pool, reads the latest snapshot
+ * and encodes each distinct delta once, however many clients need it. Versions published while a
+ * push is running are folded into the next push, so a client that cannot keep up receives fewer,
+ * larger deltas rather than a growing backlog.
+ *
+ * The push never writes to a socket itself. It adds each event to its client's queue, and a writer
+ * task of that client's own sends the queue, so a slow client only ever holds up itself. A client
+ * whose queue is full, or whose write has been stuck for {@code writeTimeoutMs}, is dropped; it
+ * reconnects and catches up with one delta from its last event id.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.state.stream.maxClients} - subscribers per project at most (default 1024)</li>
+ *     <li>{@code jscratch.state.stream.heartbeatMs} - idle time after which a comment line is sent to keep connections open (default 15000)</li>
+ *     <li>{@code jscratch.state.stream.threads} - threads encoding events, shared by all projects (default 2)</li>
+ *     <li>{@code jscratch.state.stream.maxQueued} - events queued for one client before it is dropped (default 32)</li>
+ *     <li>{@code jscratch.state.stream.writeTimeoutMs} - how long one write to a client may take before it is dropped (default 30000)</li>
+ *     <li>{@code jscratch.state.stream.writerThreads} - threads writing events to clients, shared by all projects, on JDKs without virtual threads (default 64)</li>
+ * </ul>
+ */
+public class StateBroadcaster implements ProjectState.PublishListener {
+
+    private static final Logger LOGGER = Logger.getLogger(StateBroadcaster.class.getName());
+
+    private static final int MAX_CLIENTS = Integer.getInteger("jscratch.state.stream.maxClients", 1024);
+    private static final long HEARTBEAT_MILLIS = Math.max(1, Long.getLong("jscratch.state.stream.heartbeatMs", 15000L));
+    private static final int MAX_QUEUED = Math.max(1, Integer.getInteger("jscratch.state.stream.maxQueued", 32));
+    private static final long WRITE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(1, Long.getLong("jscratch.state.stream.writeTimeoutMs", 30000L)));
+    private static final int WRITER_THREADS = Integer.getInteger("jscratch.state.stream.writerThreads", 64);
+    private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // Shared by every project's broadcaster: pushes are short, and a project only ever has one scheduled at a time
+    private static final ScheduledThreadPoolExecutor PUSHERS = new ScheduledThreadPoolExecutor(
+            Math.max(1, Integer.getInteger("jscratch.state.stream.threads", 2)), new PusherThreadFactory("state-push-"));
+
+    // Blocking socket writes, at most one task per client with events queued, and closes of dropped clients. Kept
+    // apart so a close never waits behind writes that are stuck on the very clients being dropped.
+    private static final ExecutorService WRITERS = createWriterExecutor("state-write-");
+    private static final ExecutorService CLOSERS = createWriterExecutor("state-close-");
+
+    /**
+     * A virtual thread per task where the JDK has them, since a write blocked on a slow client then costs
+     * next to nothing. Otherwise a pool of {@code jscratch.state.stream.writerThreads} threads: clients
+     * beyond that many with events queued wait their turn, and a client stuck in a write holds its thread
+     * until it is dropped.
+     */
+    private static ExecutorService createWriterExecutor(String prefix) {
+        try {
+            // Looked up reflectively so this still builds and runs on JDKs without virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(1, WRITER_THREADS);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new PusherThreadFactory(prefix));
+            pool.allowCoreThreadTimeOut(true); // Idle threads go away after a minute
+            return pool;
+        }
+    }
+
+    private static class PusherThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        PusherThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    // All fields but exchange and out are guarded by the client's lock, which is never held during a write
+    private static class Client {
+        final HttpExchange exchange;
+        final OutputStream out;
+        long version; // Last version queued, -1 if the client must be sent the full state
+        long lastWriteNanos = System.nanoTime();
+        long writeStartedNanos; // When the write in progress started, 0 if none is
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        boolean writing; // A writer thread owns the queue
+        boolean dropped;
+
+        Client(HttpExchange exchange, long version) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.version = version;
+        }
+    }
+
+    private final ProjectState state;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean pushScheduled = new AtomicBoolean();
+    private final ScheduledFuture<?> heartbeat;
+
+    public StateBroadcaster(ProjectState state) {
+        this.state = state;
+        state.addPublishListener(this);
+        this.heartbeat = PUSHERS.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Starts an event stream on {@code exchange} and returns at once; events are written later, from the
+     * push pool. {@code sinceVersion} is the last version the client has, or -1 for none, in which case
+     * the first event is the full state. Returns false, without touching the exchange, if the project
+     * already has as many subscribers as allowed.
+     */
+    public boolean subscribe(HttpExchange exchange, long sinceVersion) throws IOException {
+        if (clients.size() >= MAX_CLIENTS) {
+            return false;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // Chunked: the response lasts as long as the subscription
+        // A version the history no longer has (or never had, e.g. from before a restart) means starting over
+        long version = sinceVersion >= 0 && state.snapshotAt(sinceVersion) != null ? sinceVersion : -1;
+        clients.add(new Client(exchange, version));
+        schedulePush();
+        return true;
+    }
+
+    /** Ends every subscription and stops listening to the project. */
+    public void close() {
+        state.removePublishListener(this);
+        heartbeat.cancel(false);
+        for (Client client : clients) {
+            synchronized (client) {
+                drop(client);
+            }
+        }
+    }
+
+    @Override
+    public void published(ProjectSnapshot previous, ProjectSnapshot next) {
+        if (!clients.isEmpty()) {
+            schedulePush();
+        }
+    }
+
+    private void schedulePush() {
+        if (pushScheduled.compareAndSet(false, true)) {
+            PUSHERS.execute(this::push);
+        }
+    }
+
+    private void push() {
+        pushScheduled.set(false); // Before reading the snapshot, so a version published from here on schedules another push
+        ProjectSnapshot latest = state.snapshot();
+        Map<Long, byte[]> events = new HashMap<>(); // One encoding per starting version
+        for (Client client : clients) {
+            synchronized (client) {
+                if (client.version >= latest.getVersion()) {
+                    continue; // Already up to date, possibly by a push that started after this one
+                }
+                byte[] event = events.computeIfAbsent(client.version, version -> encode(version, latest));
+                if (enqueue(client, event)) {
+                    client.version = latest.getVersion();
+                }
+            }
+        }
+    }
+
+    private byte[] encode(long fromVersion, ProjectSnapshot latest) {
+        // A version that fell out of the history since the client subscribed gets the full state instead
+        ProjectSnapshot from = fromVersion < 0 ? null : state.snapshotAt(fromVersion);
+        String data = StateDelta.between(from, latest, state.changedSpriteIds(from, latest)).toString();
+        return ("id: " + latest.getVersion() + "\nevent: delta\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void heartbeat() {
+        long now = System.nanoTime();
+        long idleSince = now - TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+        for (Client client : clients) {
+            synchronized (client) {
+                if (client.writeStartedNanos != 0 && now - client.writeStartedNanos > WRITE_TIMEOUT_NANOS) {
+                    LOGGER.fine(() -> "State stream client " + client.exchange.getRemoteAddress() + " stopped reading, dropping it");
+                    drop(client);
+                } else if (!client.writing && client.lastWriteNanos - idleSince <= 0) {
+                    enqueue(client, HEARTBEAT); // Also how clients that went away are noticed
+                }
+            }
+        }
+    }
+
+    // Caller holds the client's lock. Queues bytes for the client's writer, starting one if none is running.
+    // Returns false, and drops the client, if it has gone or has fallen too far behind.
+    private boolean enqueue(Client client, byte[] bytes) {
+        if (client.dropped) {
+            return false;
+        }
+        if (client.queue.size() >= MAX_QUEUED) {
+            LOGGER.fine(() -> "State stream client " + client.exchange.getRemoteAddress() + " fell " + MAX_QUEUED + " events behind, dropping it");
+            drop(client);
+            return false;
+        }
+        client.queue.add(bytes);
+        if (!client.writing) {
+            client.writing = true;
+            WRITERS.execute(() -> drain(client));
+        }
+        return true;
+    }
+
+    // Runs on a writer thread: sends whatever is queued, one flush per batch, until the queue is empty
+    private void drain(Client client) {
+        while (true) {
+            byte[][] batch;
+            synchronized (client) {
+                if (client.dropped || client.queue.isEmpty()) {
+                    client.writing = false;
+                    client.writeStartedNanos = 0;
+                    return;
+                }
+                batch = client.queue.toArray(new byte[0][]);
+                client.queue.clear();
+                client.writeStartedNanos = System.nanoTime();
+            }
+            try {
+                for (byte[] bytes : batch) {
+                    client.out.write(bytes);
+                }
+                client.out.flush();
+            } catch (IOException e) {
+                LOGGER.fine(() -> "State stream client " + client.exchange.getRemoteAddress() + " went away: " + e.getMessage());
+                synchronized (client) {
+                    drop(client);
+                    client.writing = false;
+                }
+                return;
+            }
+            synchronized (client) {
+                client.lastWriteNanos = System.nanoTime();
+                client.writeStartedNanos = 0;
+            }
+        }
+    }
+
+    // Caller holds the client's lock. The exchange is closed on another thread, since closing may wait on the
+    // client's socket; a write stuck on it then fails, which ends that client's writer.
+    private void drop(Client client) {
+        if (client.dropped) {
+            return;
+        }
+        client.dropped = true;
+        client.queue.clear();
+        clients.remove(client);
+        CLOSERS.execute(client.exchange::close);
+    }
+}
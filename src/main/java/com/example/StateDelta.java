@@ -0,0 +1,175 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The difference between two {@link ProjectSnapshot versions} of a project, in the compact JSON form
+ * served by {@code GET /api/state?since=<version>} and pushed by {@link StateBroadcaster}:
+ * <pre>
+ * {"v": 42, "f": 40,                       // this version, and the version it applies to
+ *  "s":  {"sprite1": {"x": 10, "vs": {"hits": 3}, "vd": ["tmp"]}},  // changed sprites, changed fields only
+ *  "sd": ["sprite2"],                      // removed sprites
+ *  "gs": {"score": 7},                     // changed global variables
+ *  "gd": ["old"]}                          // removed global variables
+ * </pre>
+ * Sprite fields are {@code n} (name), {@code x}, {@code y}, {@code c} (current costume id),
+ * {@code cs} (costumes), {@code ss} (sounds), {@code vs} (changed local variables), {@code vd}
+ * (removed local variables) and {@code o} (for a clone, the id of the sprite it is a clone of). Empty parts are left out, so an unchanged version encodes as
+ * {@code {"v":42,"f":42}}.
+ *
+ * When the client's version is unknown (too old for the history, or from another server run) the
+ * delta is taken against an empty project and marked {@code "full": true}; the client should then
+ * drop whatever it has before applying it.
+ */
+public class StateDelta {
+
+    private StateDelta() {
+    }
+
+    /** The changes from {@code from} to {@code to}; a full delta if {@code from} is null. */
+    public static JSONObject between(ProjectSnapshot from, ProjectSnapshot to) {
+        return between(from, to, to.changedSpriteIdsSince(from));
+    }
+
+    /**
+     * Like {@link #between(ProjectSnapshot, ProjectSnapshot)}, looking only at the sprites in
+     * {@code changedSpriteIds} (see {@link ProjectState#changedSpriteIds}) unless it is null.
+     */
+    public static JSONObject between(ProjectSnapshot from, ProjectSnapshot to, Collection<String> changedSpriteIds) {
+        JSONObject delta = new JSONObject().put("v", to.getVersion());
+        if (from == null) {
+            delta.put("full", true);
+        } else {
+            delta.put("f", from.getVersion());
+        }
+        if (from == to) {
+            return delta;
+        }
+
+        if (from != null && changedSpriteIds != null) {
+            JSONObject sprites = new JSONObject();
+            JSONArray removedSprites = new JSONArray();
+            for (String id : changedSpriteIds) {
+                ProjectSnapshot.SpriteSnapshot before = from.getSprite(id);
+                ProjectSnapshot.SpriteSnapshot after = to.getSprite(id);
+                if (after == null) {
+                    if (before != null) {
+                        removedSprites.put(id);
+                    }
+                } else if (before != after) {
+                    JSONObject changes = spriteChanges(before, after);
+                    if (changes.length() > 0) {
+                        sprites.put(id, changes);
+                    }
+                }
+            }
+            putIfNotEmpty(delta, "s", sprites);
+            putIfNotEmpty(delta, "sd", removedSprites);
+            putGlobals(delta, from, to);
+            return delta;
+        }
+
+        JSONObject sprites = new JSONObject();
+        for (ProjectSnapshot.SpriteSnapshot sprite : to.getSprites().values()) {
+            ProjectSnapshot.SpriteSnapshot before = from == null ? null : from.getSprite(sprite.id);
+            if (before == sprite) {
+                continue; // Shared between the versions, so unchanged
+            }
+            JSONObject changes = spriteChanges(before, sprite);
+            if (changes.length() > 0) {
+                sprites.put(sprite.id, changes);
+            }
+        }
+        putIfNotEmpty(delta, "s", sprites);
+
+        if (from != null) {
+            JSONArray removedSprites = new JSONArray();
+            for (String id : from.getSprites().keySet()) {
+                if (to.getSprite(id) == null) {
+                    removedSprites.put(id);
+                }
+            }
+            putIfNotEmpty(delta, "sd", removedSprites);
+        }
+        putGlobals(delta, from, to);
+        return delta;
+    }
+
+    private static void putGlobals(JSONObject delta, ProjectSnapshot from, ProjectSnapshot to) {
+        if (from == null || from.getGlobals() != to.getGlobals()) { // Same map instance means no global was written
+            Map<String, Object> before = from == null ? null : from.getGlobals();
+            putIfNotEmpty(delta, "gs", changedVariables(before, to.getGlobals()));
+            putIfNotEmpty(delta, "gd", removedVariables(before, to.getGlobals()));
+        }
+    }
+
+    private static JSONObject spriteChanges(ProjectSnapshot.SpriteSnapshot before, ProjectSnapshot.SpriteSnapshot after) {
+        JSONObject changes = new JSONObject();
+        if (after.cloneOf != null && (before == null || !after.cloneOf.equals(before.cloneOf))) {
+            changes.put("o", after.cloneOf);
+        }
+        if (before == null || !Objects.equals(before.name, after.name)) {
+            changes.put("n", after.name == null ? JSONObject.NULL : after.name);
+        }
+        if (before == null || before.x != after.x) {
+            changes.put("x", after.x);
+        }
+        if (before == null || before.y != after.y) {
+            changes.put("y", after.y);
+        }
+        if (before == null || !Objects.equals(before.currentCostumeId, after.currentCostumeId)) {
+            changes.put("c", after.currentCostumeId == null ? JSONObject.NULL : after.currentCostumeId);
+        }
+        if (before == null || !before.costumes.equals(after.costumes)) {
+            changes.put("cs", new JSONArray(after.costumes));
+        }
+        if (before == null || !before.sounds.equals(after.sounds)) {
+            changes.put("ss", new JSONArray(after.sounds));
+        }
+        if (before == null || before.variables != after.variables) {
+            Map<String, Object> variablesBefore = before == null ? null : before.variables;
+            putIfNotEmpty(changes, "vs", changedVariables(variablesBefore, after.variables));
+            putIfNotEmpty(changes, "vd", removedVariables(variablesBefore, after.variables));
+        }
+        return changes;
+    }
+
+    private static JSONObject changedVariables(Map<String, Object> before, Map<String, Object> after) {
+        JSONObject changed = new JSONObject();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            if (before == null || !before.containsKey(entry.getKey()) || !Objects.equals(before.get(entry.getKey()), entry.getValue())) {
+                changed.put(entry.getKey(), entry.getValue() == null ? JSONObject.NULL : entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    private static JSONArray removedVariables(Map<String, Object> before, Map<String, Object> after) {
+        JSONArray removed = new JSONArray();
+        if (before != null) {
+            for (String name : before.keySet()) {
+                if (!after.containsKey(name)) {
+                    removed.put(name);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static void putIfNotEmpty(JSONObject target, String key, JSONObject value) {
+        if (value.length() > 0) {
+            target.put(key, value);
+        }
+    }
+
+    private static void putIfNotEmpty(JSONObject target, String key, JSONArray value) {
+        if (value.length() > 0) {
+            target.put(key, value);
+        }
+    }
+}
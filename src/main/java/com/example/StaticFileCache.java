@@ -0,0 +1,339 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The files of the web editor ({@code webapp/}), held in memory so a page load costs no disk access.
+ *
+ * Each file is read once, on its first request. Text files (HTML, CSS, JavaScript, JSON, SVG) are
+ * also gzipped once, and clients that accept gzip get the compressed copy. Every file gets an ETag
+ * (a hash of its content) and a Last-Modified time, so revalidating clients usually get a
+ * {@code 304 Not Modified} with no body. Files of {@code mmapThresholdBytes} or more are memory-mapped
+ * instead of copied into the heap.
+ *
+ * A watcher thread drops a file from the cache as soon as it changes on disk, so edits to the web
+ * files show up on the next request. Where the file system cannot be watched, each request compares
+ * the file's size and modification time with the cached copy instead.
+ *
+ * Configuration (system properties, all optional):
+ * <ul>
+ *     <li>{@code jscratch.static.cacheMaxBytes} - heap used for cached files at most; files beyond it are read per request (default 32 MB)</li>
+ *     <li>{@code jscratch.static.mmapThresholdBytes} - size from which files are memory-mapped rather than held in the heap (default 1 MB)</li>
+ *     <li>{@code jscratch.static.watch} - watch the files for changes (default true)</li>
+ * </ul>
+ */
+public class StaticFileCache {
+
+    private static final Logger LOGGER = Logger.getLogger(StaticFileCache.class.getName());
+
+    /** One cached file. Immutable; a changed file gets a new entry. */
+    public static class Entry {
+        final Path file;
+        final String contentType;
+        final String etag;                // Quoted, for the uncompressed content
+        final long lastModifiedMillis;
+        final long size;
+        private final byte[] bytes;       // Null if mapped
+        private final ByteBuffer mapped;  // Null unless the file is at least mmapThresholdBytes
+        private final byte[] gzipped;     // Null if not compressible or not smaller compressed
+
+        Entry(Path file, String contentType, String etag, long lastModifiedMillis, long size,
+              byte[] bytes, ByteBuffer mapped, byte[] gzipped) {
+            this.file = file;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.size = size;
+            this.bytes = bytes;
+            this.mapped = mapped;
+            this.gzipped = gzipped;
+        }
+
+        public String getContentType() { return contentType; }
+        public long getLastModifiedMillis() { return lastModifiedMillis; }
+        public boolean hasGzip() { return gzipped != null; }
+
+        /** The ETag of the representation sent: the gzipped copy gets its own, as its bytes differ. */
+        public String etag(boolean gzip) {
+            return gzip ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag;
+        }
+
+        public long length(boolean gzip) {
+            return gzip ? gzipped.length : size;
+        }
+
+        public void writeTo(OutputStream out, boolean gzip) throws IOException {
+            if (gzip) {
+                out.write(gzipped);
+            } else if (bytes != null) {
+                out.write(bytes);
+            } else {
+                WritableByteChannel channel = Channels.newChannel(out);
+                ByteBuffer buffer = mapped.duplicate(); // Own position; the mapping is shared by concurrent requests
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        long heapBytes() {
+            return (bytes != null ? bytes.length : 0) + (gzipped != null ? gzipped.length : 0);
+        }
+    }
+
+    private final Path root; // Real path of the web root
+    private final long maxBytes;
+    private final long mmapThresholdBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>(); // By normalized request path
+    private final AtomicLong cachedBytes = new AtomicLong();
+    // Bumped by every invalidation. A file read that overlapped one may be stale, so it is served but not cached.
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean watching;
+
+    public StaticFileCache(Path root, long maxBytes, long mmapThresholdBytes) throws IOException {
+        this.root = root.toRealPath();
+        this.maxBytes = maxBytes;
+        this.mmapThresholdBytes = mmapThresholdBytes;
+    }
+
+    public static StaticFileCache fromSystemProperties(Path root) throws IOException {
+        StaticFileCache cache = new StaticFileCache(root,
+                Long.getLong("jscratch.static.cacheMaxBytes", 32L * 1024 * 1024),
+                Long.getLong("jscratch.static.mmapThresholdBytes", 1024L * 1024));
+        if (Boolean.parseBoolean(System.getProperty("jscratch.static.watch", "true"))) {
+            cache.startWatching();
+        }
+        return cache;
+    }
+
+    /**
+     * The file for a request path ("/" and directories mean their {@code index.html}), or null if there
+     * is no such file.
+     *
+     * @throws SecurityException if the path leads outside the web root
+     */
+    public Entry get(String requestPath) throws IOException {
+        String key = normalize(requestPath);
+        Entry cached = entries.get(key);
+        if (cached != null && (watching || isUnchanged(cached))) {
+            return cached;
+        }
+        long loadGeneration = generation.get();
+        Path file = root.resolve(key);
+        if (Files.isDirectory(file)) {
+            file = file.resolve("index.html");
+        }
+        Entry loaded;
+        try {
+            Path real = file.toRealPath();
+            if (!real.startsWith(root)) {
+                throw new SecurityException("Outside the web root: " + requestPath); // e.g. through a symbolic link
+            }
+            if (!Files.isRegularFile(real)) {
+                return null;
+            }
+            loaded = load(file, real);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (loaded.heapBytes() <= maxBytes - cachedBytes.get() && generation.get() == loadGeneration) {
+            Entry replaced = entries.put(key, loaded);
+            cachedBytes.addAndGet(loaded.heapBytes() - (replaced != null ? replaced.heapBytes() : 0));
+        }
+        return loaded;
+    }
+
+    public int getCachedFileCount() {
+        return entries.size();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    // The request path relative to the web root, without "." and ".." steps
+    private String normalize(String requestPath) {
+        String relative = requestPath.startsWith("/") ? requestPath.substring(1) : requestPath;
+        Path normalized = root.getFileSystem().getPath(relative).normalize();
+        if (normalized.isAbsolute() || normalized.startsWith("..")) {
+            throw new SecurityException("Outside the web root: " + requestPath);
+        }
+        return normalized.toString();
+    }
+
+    private Entry load(Path file, Path real) throws IOException {
+        try (FileChannel channel = FileChannel.open(real, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long lastModified = Files.getLastModifiedTime(real).toMillis();
+            String contentType = contentTypeOf(real.getFileName().toString());
+            if (size >= mmapThresholdBytes) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return new Entry(file, contentType, etagOf(mapped.duplicate()), lastModified, size, null, mapped, null);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break; // Shrank while being read; the watcher's event will have it read again
+                }
+            }
+            byte[] bytes = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+            byte[] gzipped = isCompressible(contentType) ? gzip(bytes) : null;
+            if (gzipped != null && gzipped.length >= bytes.length) {
+                gzipped = null; // Not worth it
+            }
+            return new Entry(file, contentType, etagOf(ByteBuffer.wrap(bytes)), lastModified, bytes.length, bytes, null, gzipped);
+        }
+    }
+
+    private static boolean isUnchanged(Entry entry) {
+        try {
+            return Files.size(entry.file) == entry.size && Files.getLastModifiedTime(entry.file).toMillis() == entry.lastModifiedMillis;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void invalidate(Path changed) {
+        generation.incrementAndGet();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().file.startsWith(changed) && entries.remove(entry.getKey(), entry.getValue())) {
+                cachedBytes.addAndGet(-entry.getValue().heapBytes());
+            }
+        }
+    }
+
+    private void invalidateAll() {
+        generation.incrementAndGet();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entries.remove(entry.getKey(), entry.getValue())) {
+                cachedBytes.addAndGet(-entry.getValue().heapBytes());
+            }
+        }
+    }
+
+    private void startWatching() {
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            registerTree(watcher, root);
+            Thread thread = new Thread(() -> watch(watcher), "static-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            watching = true;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.WARNING, "Cannot watch " + root + " for changes; cached web files are checked on every request instead", e);
+        }
+    }
+
+    private static void registerTree(WatchService watcher, Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                subdir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateAll(); // Events were lost, so anything may have changed
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        registerTree(watcher, changed);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Cannot watch new directory " + changed, e);
+                    }
+                }
+            }
+            key.reset(); // Invalid once its directory is gone, which is fine
+        }
+    }
+
+    private static String etagOf(ByteBuffer content) {
+        MessageDigest sha256 = ContentHash.newDigest();
+        sha256.update(content);
+        return "\"" + ContentHash.toHex(sha256.digest()).substring(0, 32) + "\"";
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 3 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json") || contentType.startsWith("image/svg+xml");
+    }
+
+    static String contentTypeOf(String fileName) {
+        String lcFileName = fileName.toLowerCase(Locale.ROOT);
+        if (lcFileName.endsWith(".html") || lcFileName.endsWith(".htm")) {
+            return "text/html; charset=utf-8";
+        } else if (lcFileName.endsWith(".css")) {
+            return "text/css; charset=utf-8";
+        } else if (lcFileName.endsWith(".js")) {
+            return "application/javascript; charset=utf-8";
+        } else if (lcFileName.endsWith(".json")) {
+            return "application/json; charset=utf-8";
+        } else if (lcFileName.endsWith(".svg")) {
+            return "image/svg+xml";
+        } else if (lcFileName.endsWith(".png")) {
+            return "image/png";
+        } else if (lcFileName.endsWith(".jpg") || lcFileName.endsWith(".jpeg")) {
+            return "image/jpeg";
+        } else if (lcFileName.endsWith(".gif")) {
+            return "image/gif";
+        } else if (lcFileName.endsWith(".ico")) {
+            return "image/x-icon";
+        }
+        // Fallback to URLConnection's guess or a default
+        String guessed = URLConnection.guessContentTypeFromName(fileName);
+        return (guessed != null) ? guessed : "application/octet-stream";
+    }
+}
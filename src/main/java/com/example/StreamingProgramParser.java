@@ -0,0 +1,61 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull parser for a JSON block program that is too large to buffer: reads the top-level array one
+ * block at a time and compiles each block as it is read. Only the block being decoded is ever held
+ * in memory, so memory use depends on the largest block rather than on the size of the program.
+ *
+ * Syntax errors are thrown from {@link #next()} as {@link JSONException}, at the point where they
+ * are found; blocks before that point have already been handed out.
+ */
+public class StreamingProgramParser implements Iterator<BlockNode> {
+
+    private final JSONTokener tokener;
+    private boolean done;
+
+    public StreamingProgramParser(Reader reader) throws JSONException {
+        this.tokener = new JSONTokener(reader);
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSON block program must be an array and start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            done = true;
+        } else {
+            tokener.back();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !done;
+    }
+
+    @Override
+    public BlockNode next() throws JSONException {
+        if (done) {
+            throw new NoSuchElementException();
+        }
+        Object value = tokener.nextValue();
+        if (!(value instanceof JSONObject)) {
+            throw tokener.syntaxError("Each element of a block program must be a block object");
+        }
+        switch (tokener.nextClean()) {
+            case ',':
+                break;
+            case ']':
+                done = true;
+                break;
+            default:
+                throw tokener.syntaxError("Expected ',' or ']' after a block");
+        }
+        return ProgramCompiler.compileBlock((JSONObject) value);
+    }
+}
@@ -0,0 +1,648 @@
+package com.example;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Variable storage indexed by slot instead of by name, with numbers kept unboxed.
+ *
+ * Every variable name is interned once into an integer slot of the store's own name table, so slots are
+ * dense and walking a store costs what its own variables cost, not what every project ever named. A
+ * compiled block keeps its variable as a {@link Ref}, which remembers the slot per name table, so a block
+ * run against the same store again does not hash the name again.
+ * Each slot holds the raw bits of a {@code double}. Anything else (strings, booleans, null) is kept in a
+ * parallel object slot, with the double marked by a reserved NaN pattern. Reading, setting and
+ * {@link #addAndGet changing} a number therefore allocates nothing, and concurrent changes to the
+ * same counter are atomic (compare-and-set on the bits) instead of lost.
+ *
+ * Numbers read back as {@code Long} when they are integral, and {@code Double} otherwise, so a
+ * counter changed by 1 prints as {@code 3} rather than {@code 3.0}. {@link #asMap()} gives a live
+ * {@code Map<String, Object>} view for code that works with names (Python bindings, state sync).
+ *
+ * Slots live in fixed-size segments that are allocated the first time one of their slots is written.
+ *
+ * A {@link #copyOnWrite() copy-on-write} store (a sprite clone's locals) starts out reading a frozen copy
+ * of another store's values, shared by every store made from the same unchanged original, and copies a
+ * segment only when it first writes to it. It shares the original's name table, so the slots line up.
+ *
+ * A name table holds at most {@code jscratch.variables.maxNames} names (default 65536). Past that, new
+ * names fail with an {@link IllegalStateException} in that store only; the table goes away with its
+ * stores when the project is evicted.
+ */
+public class VariableStore {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // NaN payloads no arithmetic produces: Double.doubleToLongBits folds every real NaN into 0x7ff8000000000000
+    private static final long UNSET = 0x7ff8_dead_0000_0001L;
+    private static final long OBJECT = 0x7ff8_dead_0000_0002L;
+
+    /** Variable names one name table holds at most ({@code jscratch.variables.maxNames}, default 65536). */
+    private static final int MAX_NAMES = Integer.getInteger("jscratch.variables.maxNames", 1 << 16);
+
+    /** Name to slot, for one store and the copy-on-write stores made from it. Only ever grows. */
+    private static final class Names {
+        final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+        volatile String[] slotNames = new String[SEGMENT_SIZE];
+
+        int slotOf(String name) {
+            Integer slot = slots.get(name);
+            return slot != null ? slot : intern(name);
+        }
+
+        int existingSlotOf(String name) {
+            Integer slot = slots.get(name);
+            return slot != null ? slot : -1;
+        }
+
+        private synchronized int intern(String name) {
+            Integer existing = slots.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            int slot = slots.size();
+            if (slot >= MAX_NAMES) {
+                throw new IllegalStateException("Too many distinct variable names (limit " + MAX_NAMES + ")");
+            }
+            String[] names = slotNames;
+            if (slot >= names.length) {
+                String[] grown = new String[names.length * 2];
+                System.arraycopy(names, 0, grown, 0, names.length);
+                names = grown;
+            }
+            names[slot] = name;
+            slotNames = names; // Publish the name before the slot can be looked up
+            slots.put(name, slot);
+            return slot;
+        }
+
+        String nameOf(int slot) {
+            return slotNames[slot];
+        }
+    }
+
+    /**
+     * A variable name as compiled into a block. Compiled programs are shared by every project that runs
+     * them, so the slot is resolved per store: the ref remembers the last name table it was used with and
+     * the slot there, and only looks the name up again when it meets another table.
+     */
+    public static final class Ref {
+        private final String name;
+        private volatile Resolved last; // Immutable, so the table and its slot are always read together
+
+        private static final class Resolved {
+            final Names names;
+            final int slot;
+
+            Resolved(Names names, int slot) {
+                this.names = names;
+                this.slot = slot;
+            }
+        }
+
+        public Ref(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** The variable's slot in {@code store}, interning the name there if needed (for writes). */
+        public int slotIn(VariableStore store) {
+            Resolved resolved = last;
+            if (resolved != null && resolved.names == store.names) {
+                return resolved.slot;
+            }
+            int slot = store.names.slotOf(name);
+            last = new Resolved(store.names, slot);
+            return slot;
+        }
+
+        /** The variable's slot in {@code store}, or -1 if the store has never had such a variable (for reads). */
+        public int existingSlotIn(VariableStore store) {
+            Resolved resolved = last;
+            if (resolved != null && resolved.names == store.names) {
+                return resolved.slot;
+            }
+            int slot = store.names.existingSlotOf(name);
+            if (slot >= 0) {
+                last = new Resolved(store.names, slot);
+            }
+            return slot;
+        }
+    }
+
+    /** Returns this store's slot for {@code name}, assigning the next free one the first time a name is seen. */
+    public int slotOf(String name) {
+        return names.slotOf(name);
+    }
+
+    /** Returns this store's slot for {@code name}, or -1 if it has never had a variable of that name. */
+    public int existingSlotOf(String name) {
+        return names.existingSlotOf(name);
+    }
+
+    /** Distinct variable names in this store's name table (shared with its copy-on-write stores). */
+    public int getNameCount() {
+        return names.slots.size();
+    }
+
+    private static final class Segment {
+        final AtomicLongArray bits = new AtomicLongArray(SEGMENT_SIZE);
+        final AtomicReferenceArray<Object> objects = new AtomicReferenceArray<>(SEGMENT_SIZE);
+
+        Segment() {
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                bits.lazySet(i, UNSET);
+            }
+        }
+
+        Segment(Frozen base, int index) {
+            long[] baseBits = base.bits[index];
+            Object[] baseObjects = base.objects[index];
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                bits.lazySet(i, baseBits == null ? UNSET : baseBits[i]);
+                objects.lazySet(i, baseObjects == null ? null : baseObjects[i]);
+            }
+        }
+    }
+
+    /** An immutable copy of a store's slots, read by the copy-on-write stores made from it. */
+    private static final class Frozen {
+        final long version;                // The original's write count when frozen
+        final long[][] bits;               // Per segment, null where the original had none
+        final Object[][] objects;
+        final Map<String, Object> values;  // The original's snapshot(), which unwritten copies share
+
+        Frozen(long version, long[][] bits, Object[][] objects, Map<String, Object> values) {
+            this.version = version;
+            this.bits = bits;
+            this.objects = objects;
+            this.values = values;
+        }
+
+        long bitsAt(int slot) {
+            int index = slot >>> SEGMENT_BITS;
+            return index < bits.length && bits[index] != null ? bits[index][slot & SEGMENT_MASK] : UNSET;
+        }
+
+        Object objectAt(int slot) {
+            return objects[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK]; // Only called where bitsAt() is OBJECT
+        }
+    }
+
+    private volatile Segment[] segments = new Segment[1];
+    private final Names names;
+    private final Frozen base; // Values read until a segment is copied, or null
+    private volatile Frozen frozen; // Cached result of freeze()
+
+    public VariableStore() {
+        this.names = new Names();
+        this.base = null;
+    }
+
+    private VariableStore(Names names, Frozen base) {
+        this.names = names;
+        this.base = base;
+        this.segments = new Segment[Math.max(1, base.bits.length)];
+    }
+
+    /**
+     * A new store that starts with this store's current values and then changes independently. Nothing
+     * is copied until the new store is written, and then only the written slot's segment; stores made
+     * from this one while it is unchanged share one frozen copy of its values.
+     */
+    public VariableStore copyOnWrite() {
+        return new VariableStore(names, freeze());
+    }
+
+    private Frozen freeze() {
+        long version = writes.sum();
+        Frozen cached = frozen;
+        if (cached != null && cached.version == version) {
+            return cached;
+        }
+        Map<String, Object> values = snapshot(); // Before copying, so values is never newer than the slots
+        Segment[] current = segments;
+        int length = Math.max(current.length, base == null ? 0 : base.bits.length);
+        long[][] bits = new long[length][];
+        Object[][] objects = new Object[length][];
+        for (int index = 0; index < length; index++) {
+            Segment segment = index < current.length ? current[index] : null;
+            if (segment != null) {
+                bits[index] = new long[SEGMENT_SIZE];
+                objects[index] = new Object[SEGMENT_SIZE];
+                synchronized (segment) { // Keeps each OBJECT tag together with its value
+                    for (int i = 0; i < SEGMENT_SIZE; i++) {
+                        bits[index][i] = segment.bits.get(i);
+                        objects[index][i] = segment.objects.get(i);
+                    }
+                }
+            } else if (base != null && index < base.bits.length) {
+                bits[index] = base.bits[index]; // Never written here: still the base's values, which are immutable
+                objects[index] = base.objects[index];
+            }
+        }
+        Frozen rebuilt = new Frozen(version, bits, objects, values);
+        frozen = rebuilt;
+        return rebuilt;
+    }
+
+    /** True if the variable in {@code slot} has been set (possibly to null) and not removed. */
+    public boolean contains(int slot) {
+        Segment segment = segmentFor(slot);
+        if (segment == null) {
+            return base != null && base.bitsAt(slot) != UNSET;
+        }
+        return segment.bits.get(slot & SEGMENT_MASK) != UNSET;
+    }
+
+    /** True if the variable in {@code slot} holds a number stored unboxed. */
+    public boolean isNumber(int slot) {
+        Segment segment = segmentFor(slot);
+        long bits = segment != null ? segment.bits.get(slot & SEGMENT_MASK) : base != null ? base.bitsAt(slot) : UNSET;
+        return bits != UNSET && bits != OBJECT;
+    }
+
+    /** The value in {@code slot}, or null if it is not set (see {@link #contains}). */
+    public Object get(int slot) {
+        Segment segment = segmentFor(slot);
+        if (segment == null) {
+            return base == null ? null : frozenValue(slot);
+        }
+        long bits = segment.bits.get(slot & SEGMENT_MASK);
+        if (bits == UNSET) {
+            return null;
+        }
+        if (bits == OBJECT) {
+            return segment.objects.get(slot & SEGMENT_MASK);
+        }
+        return box(Double.longBitsToDouble(bits));
+    }
+
+    /**
+     * The numeric value in {@code slot} without boxing: numbers as they are, numeric strings parsed,
+     * and 0 for anything else (including an unset variable), as Scratch's "change by" does.
+     */
+    public double getDouble(int slot) {
+        Segment segment = segmentFor(slot);
+        if (segment == null) {
+            return base == null ? 0 : toDouble(frozenValue(slot));
+        }
+        return toDouble(segment, slot & SEGMENT_MASK, segment.bits.get(slot & SEGMENT_MASK));
+    }
+
+    private Object frozenValue(int slot) {
+        long bits = base.bitsAt(slot);
+        if (bits == UNSET) {
+            return null;
+        }
+        return bits == OBJECT ? base.objectAt(slot) : box(Double.longBitsToDouble(bits));
+    }
+
+    /*
+     * Writes: numbers only ever touch the bits, with a plain set or a compare-and-set, and never lock.
+     * Anything that writes the object array, or reads it to decide on a compare-and-set, holds the
+     * segment's monitor, so a value and its OBJECT tag can't be interleaved with another such write;
+     * the final compare-and-set on the bits still catches lock-free numeric writes in between.
+     */
+
+    /** Sets the variable; numbers are stored unboxed (longs beyond 2^53 keep their exact boxed value). */
+    public void set(int slot, Object value) {
+        if (isStoredUnboxed(value)) {
+            setDouble(slot, ((Number) value).doubleValue());
+            return;
+        }
+        Segment segment = segmentForWrite(slot);
+        synchronized (segment) {
+            segment.objects.set(slot & SEGMENT_MASK, value);
+            segment.bits.set(slot & SEGMENT_MASK, OBJECT);
+        }
+        written();
+    }
+
+    public void setDouble(int slot, double value) {
+        segmentForWrite(slot).bits.set(slot & SEGMENT_MASK, Double.doubleToLongBits(value));
+        written();
+    }
+
+    /** Atomically adds {@code delta} to the variable (unset or non-numeric counts as 0) and returns the new value. */
+    public double addAndGet(int slot, double delta) {
+        Segment segment = segmentForWrite(slot);
+        int index = slot & SEGMENT_MASK;
+        while (true) {
+            long bits = segment.bits.get(index);
+            if (bits == OBJECT) {
+                // The current value is an object (e.g. a numeric string); read it under the lock
+                synchronized (segment) {
+                    bits = segment.bits.get(index);
+                    double updated = toDouble(segment, index, bits) + delta;
+                    if (segment.bits.compareAndSet(index, bits, Double.doubleToLongBits(updated))) {
+                        written();
+                        return updated;
+                    }
+                }
+                continue;
+            }
+            double updated = toDouble(segment, index, bits) + delta;
+            if (segment.bits.compareAndSet(index, bits, Double.doubleToLongBits(updated))) {
+                written();
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Atomically sets the variable to {@code update} if its current value equals {@code expected}.
+     * Numbers compare by numeric value (so {@code 3L} matches {@code 3.0}); a null {@code expected}
+     * matches an unset variable as well as one set to null.
+     */
+    public boolean compareAndSet(int slot, Object expected, Object update) {
+        Segment segment = segmentForWrite(slot);
+        int index = slot & SEGMENT_MASK;
+        long bits = segment.bits.get(index);
+        if (bits != UNSET && bits != OBJECT && isStoredUnboxed(expected) && isStoredUnboxed(update)) {
+            // Numbers only: a single lock-free compare-and-set on the bits
+            long expectedBits = Double.doubleToLongBits(((Number) expected).doubleValue());
+            if (!segment.bits.compareAndSet(index, expectedBits, Double.doubleToLongBits(((Number) update).doubleValue()))) {
+                return false;
+            }
+            written();
+            return true;
+        }
+        synchronized (segment) {
+            bits = segment.bits.get(index);
+            Object current = bits == UNSET ? null : bits == OBJECT ? segment.objects.get(index) : box(Double.longBitsToDouble(bits));
+            if (!valueEquals(current, expected)) {
+                return false;
+            }
+            boolean swapped;
+            if (isStoredUnboxed(update)) {
+                swapped = segment.bits.compareAndSet(index, bits, Double.doubleToLongBits(((Number) update).doubleValue()));
+            } else {
+                segment.objects.set(index, update);
+                swapped = segment.bits.compareAndSet(index, bits, OBJECT);
+            }
+            if (swapped) {
+                written();
+            }
+            return swapped;
+        }
+    }
+
+    public void remove(int slot) {
+        Segment segment = segmentFor(slot);
+        if (segment == null && base != null && base.bitsAt(slot) != UNSET) {
+            segment = segmentForWrite(slot); // Inherited: copy the segment so the removal hides the base's value
+        }
+        if (segment != null) {
+            synchronized (segment) {
+                segment.bits.set(slot & SEGMENT_MASK, UNSET);
+                segment.objects.set(slot & SEGMENT_MASK, null);
+            }
+            written();
+        }
+    }
+
+    private static boolean isStoredUnboxed(Object value) {
+        return value instanceof Double || value instanceof Float || value instanceof Integer
+                || value instanceof Short || value instanceof Byte
+                || (value instanceof Long && Math.abs((Long) value) <= (1L << 53));
+    }
+
+    private static boolean valueEquals(Object current, Object expected) {
+        if (current instanceof Number && expected instanceof Number) {
+            return ((Number) current).doubleValue() == ((Number) expected).doubleValue();
+        }
+        return current == null ? expected == null : current.equals(expected);
+    }
+
+    /** Numbers that are whole come back as Long, so integer counters keep reading as integers. */
+    static Object box(double value) {
+        long asLong = (long) value;
+        if (asLong == value && Math.abs(value) <= (1L << 53)) {
+            return asLong;
+        }
+        return value;
+    }
+
+    private static double toDouble(Segment segment, int index, long bits) {
+        if (bits == UNSET) {
+            return 0;
+        }
+        if (bits != OBJECT) {
+            return Double.longBitsToDouble(bits);
+        }
+        return toDouble(segment.objects.get(index));
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value != null) {
+            try {
+                return Double.parseDouble(String.valueOf(value).trim());
+            } catch (NumberFormatException e) {
+                // Not a number: Scratch treats it as 0
+            }
+        }
+        return 0;
+    }
+
+    private Segment segmentFor(int slot) {
+        Segment[] current = segments;
+        int index = slot >>> SEGMENT_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    private Segment segmentForWrite(int slot) {
+        Segment segment = segmentFor(slot);
+        return segment != null ? segment : allocateSegment(slot >>> SEGMENT_BITS);
+    }
+
+    private synchronized Segment allocateSegment(int index) {
+        Segment[] current = segments;
+        if (index >= current.length) {
+            Segment[] grown = new Segment[Math.max(index + 1, current.length * 2)];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        if (current[index] == null) {
+            current[index] = base != null && index < base.bits.length && base.bits[index] != null
+                    ? new Segment(base, index) // Copy on first write
+                    : new Segment();
+        }
+        segments = current; // Volatile write publishes the new segment
+        return current[index];
+    }
+
+    private Map<String, Object> mapView;
+
+    // Bumped after every write; lets snapshot() hand out its cached copy while nothing has changed
+    private final LongAdder writes = new LongAdder();
+    private volatile Runnable writeListener; // Run after every write; see setWriteListener()
+
+    /** Has {@code listener} run after every write to this store (a sprite uses it to report changes). It must be quick. */
+    public void setWriteListener(Runnable listener) {
+        this.writeListener = listener;
+    }
+
+    private void written() {
+        writes.increment();
+        Runnable listener = writeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+    private volatile Snapshot snapshot;
+
+    /**
+     * An immutable copy of all variables, by name. The copy is cached and only rebuilt after a write,
+     * so readers that poll (state sync, stage frames) share one copy instead of each making their own.
+     */
+    public Map<String, Object> snapshot() {
+        long version = writes.sum(); // Read before copying: a write during the copy forces a rebuild next time
+        if (version == 0 && base != null) {
+            return base.values; // An unwritten copy: same values as the original had, so share its copy
+        }
+        Snapshot cached = snapshot;
+        if (cached != null && cached.version == version) {
+            return cached.values;
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : asMap().entrySet()) {
+            values.put(entry.getKey(), entry.getValue());
+        }
+        Snapshot rebuilt = new Snapshot(version, Collections.unmodifiableMap(values));
+        snapshot = rebuilt;
+        return rebuilt.values;
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final Map<String, Object> values;
+
+        Snapshot(long version, Map<String, Object> values) {
+            this.version = version;
+            this.values = values;
+        }
+    }
+
+    /**
+     * A live map view by name: reads and writes go straight to the slots. Iteration walks the slots,
+     * so it sees a weakly consistent picture of concurrent changes, like a ConcurrentHashMap.
+     */
+    public synchronized Map<String, Object> asMap() {
+        if (mapView == null) {
+            mapView = new MapView();
+        }
+        return mapView;
+    }
+
+    private final class MapView extends AbstractMap<String, Object> {
+
+        @Override
+        public boolean containsKey(Object key) {
+            int slot = key instanceof String ? existingSlotOf((String) key) : -1;
+            return slot >= 0 && contains(slot);
+        }
+
+        @Override
+        public Object get(Object key) {
+            int slot = key instanceof String ? existingSlotOf((String) key) : -1;
+            return slot >= 0 ? VariableStore.this.get(slot) : null;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            int slot = slotOf(key);
+            Object previous = VariableStore.this.get(slot);
+            set(slot, value);
+            return previous;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            int slot = key instanceof String ? existingSlotOf((String) key) : -1;
+            if (slot < 0) {
+                return null;
+            }
+            Object previous = VariableStore.this.get(slot);
+            VariableStore.this.remove(slot);
+            return previous;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new SlotIterator();
+                }
+
+                @Override
+                public int size() {
+                    int count = 0;
+                    for (Iterator<Entry<String, Object>> it = iterator(); it.hasNext(); it.next()) {
+                        count++;
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+
+    private final class SlotIterator implements Iterator<Map.Entry<String, Object>> {
+        private final int end = Math.max(segments.length, base == null ? 0 : base.bits.length) * SEGMENT_SIZE;
+        private int nextSlot = -1;
+        private int lastSlot = -1;
+
+        SlotIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                nextSlot++;
+            } while (nextSlot < end && !contains(nextSlot));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextSlot < end;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastSlot = nextSlot;
+            advance();
+            return new AbstractMap.SimpleImmutableEntry<>(names.nameOf(lastSlot), get(lastSlot));
+        }
+
+        @Override
+        public void remove() {
+            if (lastSlot < 0) {
+                throw new IllegalStateException();
+            }
+            VariableStore.this.remove(lastSlot);
+            lastSlot = -1;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncLogHandlerTest {
+
+    @TempDir
+    Path dir;
+
+    private AsyncLogHandler handler;
+
+    @AfterEach
+    void close() {
+        if (handler != null) {
+            handler.close();
+        }
+    }
+
+    // Holds the writer thread inside the first record it formats until released, so the ring fills up
+    private static final class StallingFormatter extends SimpleFormatter {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public synchronized String formatMessage(LogRecord record) {
+            if (stalled.getCount() > 0) {
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.formatMessage(record);
+        }
+    }
+
+    private void open(int bufferRecords, long blockMillis) throws IOException {
+        handler = new AsyncLogHandler(dir.resolve("server.log"), bufferRecords, blockMillis, Collections.emptyMap(), 1 << 20, 1);
+    }
+
+    private static LogRecord record(Level level, String message) {
+        LogRecord record = new LogRecord(level, message);
+        record.setLoggerName("com.example.Test");
+        return record;
+    }
+
+    @Test
+    void fullRingDropsRecordsAndReportsHowManyOnceThereIsRoom() throws Exception {
+        open(4, 0);
+        StallingFormatter formatter = new StallingFormatter();
+        handler.setFormatter(formatter);
+
+        handler.publish(record(Level.INFO, "first"));
+        assertTrue(formatter.stalled.await(5, TimeUnit.SECONDS)); // The writer holds "first"; the ring is empty again
+        for (int i = 0; i < 10; i++) {
+            handler.publish(record(Level.INFO, "queued " + i));
+        }
+        assertEquals(4, handler.getQueuedCount());
+        assertEquals(6, handler.getDroppedCount());
+
+        formatter.release.countDown();
+        handler.close();
+
+        assertEquals(5, handler.getWrittenCount());
+        String log = new String(Files.readAllBytes(dir.resolve("server.log")), StandardCharsets.UTF_8);
+        assertTrue(log.contains("INFO [" + Thread.currentThread().getName() + "] Test: queued 3"), log);
+        assertFalse(log.contains("queued 4"), log);
+        assertTrue(log.contains("Dropped 6 log record(s) because the log buffer was full"), log);
+    }
+
+    @Test
+    void warningWaitsForRoomThenIsDroppedAndCounted() throws Exception {
+        open(2, 20);
+        StallingFormatter formatter = new StallingFormatter();
+        handler.setFormatter(formatter);
+
+        handler.publish(record(Level.INFO, "first"));
+        assertTrue(formatter.stalled.await(5, TimeUnit.SECONDS));
+        handler.publish(record(Level.INFO, "a"));
+        handler.publish(record(Level.INFO, "b"));
+        long started = System.nanoTime();
+        handler.publish(record(Level.WARNING, "no room"));
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertTrue(waitedMillis >= 20, "waited " + waitedMillis + " ms");
+        assertEquals(1, handler.getDroppedCount());
+        formatter.release.countDown();
+    }
+
+    @Test
+    void everythingQueuedIsWrittenOnClose() throws Exception {
+        open(64, 0);
+        for (int i = 0; i < 50; i++) {
+            handler.publish(record(Level.INFO, "record " + i));
+        }
+        handler.close();
+
+        assertEquals(50, handler.getWrittenCount());
+        assertEquals(0, handler.getDroppedCount());
+        assertEquals(50, Files.readAllLines(dir.resolve("server.log"), StandardCharsets.UTF_8).size());
+    }
+}
@@ -0,0 +1,63 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class HashTrieTest {
+
+    @Test
+    void matchesAHashMapOverRandomChanges() {
+        Random random = new Random(42);
+        Map<String, Integer> expected = new HashMap<>();
+        HashTrie<Integer> trie = HashTrie.empty();
+        for (int i = 0; i < 50_000; i++) {
+            String key = "sprite" + random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                trie = trie.without(key);
+            } else {
+                expected.put(key, i);
+                trie = trie.with(key, i);
+            }
+        }
+        assertEquals(expected, trie);
+        assertEquals(expected.size(), trie.size());
+        assertEquals(expected.size(), trie.entrySet().stream().count());
+    }
+
+    @Test
+    void keysWithTheSameHashAreKeptApart() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        HashTrie<String> trie = HashTrie.<String>empty().with("Aa", "first").with("BB", "second").with("AaBB", "third");
+
+        assertEquals("first", trie.get("Aa"));
+        assertEquals("second", trie.get("BB"));
+        HashTrie<String> without = trie.without("Aa");
+        assertNull(without.get("Aa"));
+        assertEquals("second", without.get("BB"));
+        assertEquals(2, without.size());
+    }
+
+    @Test
+    void olderVersionsAreUnchangedByNewerOnes() {
+        HashTrie<Integer> first = HashTrie.of(Map.of("a", 1, "b", 2));
+        HashTrie<Integer> second = first.with("a", 10).without("b").with("c", 3);
+
+        assertEquals(Map.of("a", 1, "b", 2), first);
+        assertEquals(Map.of("a", 10, "c", 3), second);
+    }
+
+    @Test
+    void removingAMissingKeyReturnsTheSameTrie() {
+        HashTrie<Integer> trie = HashTrie.of(Map.of("a", 1));
+
+        assertSame(trie, trie.without("missing"));
+    }
+}
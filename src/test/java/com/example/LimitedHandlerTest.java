@@ -0,0 +1,107 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LimitedHandlerTest {
+
+    private HttpServer server;
+    private ExecutorService threads;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void stop() {
+        release.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+        if (threads != null) {
+            threads.shutdownNow();
+        }
+    }
+
+    // Each test gets its own context name, since the metrics it registers are global
+    private LimitedHandler start(String name, int maxConcurrent, int queueDepth, boolean shedEverything) throws IOException {
+        LimitedHandler limited = new LimitedHandler(name, exchange -> {
+            try {
+                release.await(); // Holds its slot until the test lets go
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, 2);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[] {'o', 'k'});
+            }
+        }, maxConcurrent, queueDepth);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", limited);
+        threads = Executors.newFixedThreadPool(8);
+        server.setExecutor(shedEverything ? task -> LimitedHandler.runShedding(task) : threads);
+        server.start();
+        return limited;
+    }
+
+    private CompletableFuture<HttpResponse<String>> send() {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/")).build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void requestsBeyondTheLimitAndQueueAreRejectedAtOnce() throws Exception {
+        LimitedHandler limited = start("test-limit", 1, 1, false);
+
+        CompletableFuture<HttpResponse<String>> running = send();
+        awaitTrue(() -> limited.getActiveCount() == 1);
+        CompletableFuture<HttpResponse<String>> queued = send();
+        awaitTrue(() -> limited.getWaitingCount() == 1);
+
+        HttpResponse<String> rejected = send().get(5, TimeUnit.SECONDS);
+        assertEquals(503, rejected.statusCode());
+        assertEquals(LimitedHandler.RETRY_AFTER_SECONDS, rejected.headers().firstValue("Retry-After").orElseThrow());
+        assertEquals(1, limited.getRejectedCount());
+
+        release.countDown();
+        assertEquals(200, running.get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(200, queued.get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(0, limited.getActiveCount());
+    }
+
+    @Test
+    void requestsRunWhileSheddingAreRejectedEvenWithSlotsFree() throws Exception {
+        LimitedHandler limited = start("test-shed", 4, 4, true);
+
+        HttpResponse<String> response = send().get(5, TimeUnit.SECONDS);
+
+        assertEquals(503, response.statusCode());
+        assertEquals(1, limited.getRejectedCount());
+        assertEquals(0, limited.getActiveCount());
+    }
+}
@@ -0,0 +1,118 @@
+package com.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NioHttpEngineTest {
+
+    private NioHttpEngine engine;
+    private ExecutorService handlers;
+    private int port;
+
+    @BeforeEach
+    void start() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        engine = new NioHttpEngine(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0, 2, 16 * 1024, 16, 60_000);
+        // Answers with the request path; /slow takes a while, so a later request finishes first
+        engine.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/slow")) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = path.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        handlers = Executors.newFixedThreadPool(4);
+        engine.setExecutor(handlers);
+        engine.start();
+    }
+
+    @AfterEach
+    void stop() {
+        engine.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    void pipelinedGetsAreAnsweredInOrderOnOneConnection() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(5000);
+            String requests = "GET /slow HTTP/1.1\r\nHost: test\r\n\r\n"
+                    + "GET /a HTTP/1.1\r\nHost: test\r\n\r\n"
+                    + "GET /b HTTP/1.1\r\nHost: test\r\n\r\n";
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.ISO_8859_1)); // All three in one write
+            socket.getOutputStream().flush();
+
+            InputStream in = socket.getInputStream();
+            assertEquals("/slow", readResponseBody(in));
+            assertEquals("/a", readResponseBody(in));
+            assertEquals("/b", readResponseBody(in));
+        }
+    }
+
+    @Test
+    void connectionIsKeptAliveBetweenRequests() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            for (String path : new String[] {"/first", "/second"}) {
+                socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: test\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                assertEquals(path, readResponseBody(in));
+            }
+        }
+    }
+
+    // Reads one response with a Content-Length body, checking for a 200
+    private static String readResponseBody(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        assertEquals("HTTP/1.1 200", statusLine.substring(0, 12), statusLine);
+        Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        byte[] body = in.readNBytes(Integer.parseInt(headers.get("content-length")));
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed mid-response");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+}
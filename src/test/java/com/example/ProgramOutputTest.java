@@ -0,0 +1,63 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgramOutputTest {
+
+    private static final String SMILE = "😀"; // One code point, a surrogate pair, 4 bytes of UTF-8
+
+    @Test
+    void blockWriterCutsOnACharacterBoundaryWithinTheByteLimit() throws IOException {
+        ProgramOutput output = ProgramOutput.buffered(10_000);
+        ProgramOutput.BlockWriter writer = output.blockWriter("", 7);
+
+        writer.write("ab" + SMILE + SMILE + "cd");
+        writer.finish();
+
+        String kept = output.toString().substring(0, output.toString().indexOf('\n'));
+        assertEquals("ab" + SMILE, kept);
+        assertTrue(output.toString().contains("[Output truncated: this block's output exceeded 7 bytes]"));
+    }
+
+    @Test
+    void blockWriterNeverSplitsASurrogatePair() throws IOException {
+        ProgramOutput output = ProgramOutput.buffered(10_000);
+        ProgramOutput.BlockWriter writer = output.blockWriter("", 3);
+
+        writer.write("a" + SMILE);
+        writer.finish();
+
+        assertTrue(output.toString().startsWith("a\n"), output.toString());
+    }
+
+    @Test
+    void fittingCharsCountsUtf8Bytes() {
+        assertEquals(2, ProgramOutput.fittingChars("ééx", 0, 3, 4)); // Two 2-byte characters
+        assertEquals(1, ProgramOutput.fittingChars("a" + SMILE, 0, 3, 4));
+        assertEquals(3, ProgramOutput.fittingChars("a" + SMILE, 0, 3, 5));
+    }
+
+    @Test
+    void buffersSharingALimitStayWithinItTogether() {
+        ProgramOutput.SharedLimit limit = new ProgramOutput.SharedLimit(100);
+        ProgramOutput quiet = ProgramOutput.buffered(limit);
+        ProgramOutput chatty = ProgramOutput.buffered(limit);
+
+        quiet.append("hi\n");
+        for (int i = 0; i < 100; i++) {
+            chatty.append("0123456789");
+        }
+
+        long total = quiet.toString().getBytes(StandardCharsets.UTF_8).length + chatty.toString().getBytes(StandardCharsets.UTF_8).length;
+        assertEquals("hi\n", quiet.toString());
+        assertTrue(chatty.toString().startsWith("0123456789"));
+        assertTrue(total <= 100 + 200, "total " + total); // Plus the truncation notice
+        assertTrue(chatty.isFull());
+    }
+}
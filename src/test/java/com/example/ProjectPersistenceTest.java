@@ -0,0 +1,97 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProjectPersistenceTest {
+
+    @TempDir
+    Path dir;
+
+    // Publishes one version moving the sprite and setting the score, and waits for it to be on disk
+    private static void publish(ProjectState state, ProjectPersistence persistence, double x, long score) throws InterruptedException {
+        state.getSprites().get("s1").setX(x);
+        VariableStore globals = state.getGlobals();
+        globals.set(globals.slotOf("score"), score);
+        long version = state.publish().getVersion();
+        assertTrue(persistence.awaitDurable(version, 5000));
+    }
+
+    private static ProjectState reopen(Path dir) throws IOException {
+        ProjectState state = new ProjectState();
+        ProjectPersistence persistence = ProjectPersistence.open(dir, state);
+        state.removePublishListener(persistence);
+        return state;
+    }
+
+    // Two versions on disk; returns the log's size after the first
+    private long writeTwoVersions() throws IOException, InterruptedException {
+        ProjectState state = new ProjectState();
+        ProjectPersistence persistence = ProjectPersistence.open(dir, state);
+        state.addSprite(new Sprite("s1", "Cat"));
+        publish(state, persistence, 1, 1);
+        long firstRecordEnd = Files.size(log());
+        publish(state, persistence, 5, 2);
+        state.removePublishListener(persistence);
+        assertTrue(Files.size(log()) > firstRecordEnd);
+        return firstRecordEnd;
+    }
+
+    private Path log() {
+        return dir.resolve("wal-1.log");
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    @Test
+    void replaysEveryIntactRecord() throws Exception {
+        writeTwoVersions();
+
+        ProjectSnapshot restored = reopen(dir).snapshot();
+
+        assertEquals(2, restored.getVersion());
+        assertEquals(5.0, restored.getSprite("s1").x);
+        assertEquals(2L, restored.getGlobals().get("score"));
+    }
+
+    @Test
+    void replayStopsAtARecordTornMidwayAndCutsItOff() throws Exception {
+        long firstRecordEnd = writeTwoVersions();
+        truncate(log(), firstRecordEnd + (Files.size(log()) - firstRecordEnd) / 2);
+
+        ProjectSnapshot restored = reopen(dir).snapshot();
+
+        assertEquals(1, restored.getVersion());
+        assertEquals(1.0, restored.getSprite("s1").x);
+        assertEquals(1L, restored.getGlobals().get("score"));
+        assertEquals(firstRecordEnd, Files.size(log()));
+    }
+
+    @Test
+    void replayTreatsALengthPastTheEndOfTheSegmentAsTorn() throws Exception {
+        long firstRecordEnd = writeTwoVersions();
+        truncate(log(), firstRecordEnd);
+        try (FileChannel channel = FileChannel.open(log(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).flip()); // length + 4 would overflow
+        }
+
+        ProjectSnapshot restored = reopen(dir).snapshot();
+
+        assertEquals(1, restored.getVersion());
+        assertEquals(firstRecordEnd, Files.size(log()));
+    }
+}
@@ -0,0 +1,88 @@
+package com.example;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ProjectStateTest {
+
+    private static ProjectState stateWithSprites(int count) {
+        ProjectState state = new ProjectState();
+        for (int i = 0; i < count; i++) {
+            state.addSprite(new Sprite("s" + i, "Sprite " + i));
+        }
+        state.publish();
+        return state;
+    }
+
+    @Test
+    void publishingAfterOneSpriteMovedRecordsOnlyThatSprite() {
+        ProjectState state = stateWithSprites(1_000);
+        ProjectSnapshot before = state.snapshot();
+
+        state.getSprites().get("s7").setX(42);
+        ProjectSnapshot after = state.publish();
+
+        assertEquals(Set.of("s7"), Set.copyOf(after.changedSpriteIdsSince(before)));
+        assertSame(before.getSprite("s8"), after.getSprite("s8")); // Unchanged sprites are shared
+        assertEquals(42.0, after.getSprite("s7").x);
+        assertEquals(0.0, before.getSprite("s7").x);
+    }
+
+    @Test
+    void publishingWithNothingChangedKeepsTheVersion() {
+        ProjectState state = stateWithSprites(3);
+        ProjectSnapshot before = state.snapshot();
+
+        assertSame(before, state.publish());
+    }
+
+    @Test
+    void removingASpriteRecordsItsIdAndDropsItFromTheNextVersion() {
+        ProjectState state = stateWithSprites(10);
+        ProjectSnapshot before = state.snapshot();
+        Sprite removed = state.getSprites().get("s3");
+
+        state.removeSprite(removed);
+        removed.setX(5); // No longer part of the project, so not reported
+        ProjectSnapshot after = state.publish();
+
+        assertEquals(Set.of("s3"), Set.copyOf(after.changedSpriteIdsSince(before)));
+        assertNull(after.getSprite("s3"));
+        assertEquals(9, after.getSprites().size());
+        assertSame(after, state.publish()); // The removed sprite's later change was not reported
+    }
+
+    @Test
+    void changedIdsAcrossSeveralVersionsAreTheirUnion() {
+        ProjectState state = stateWithSprites(100);
+        ProjectSnapshot from = state.snapshot();
+        state.getSprites().get("s1").setX(1);
+        state.publish();
+        state.getSprites().get("s2").setLocalVariable("score", 5L);
+        ProjectSnapshot to = state.publish();
+
+        assertEquals(Set.of("s1", "s2"), Set.copyOf(state.changedSpriteIds(from, to)));
+        assertNull(to.changedSpriteIdsSince(from)); // Only the step from the version right before is recorded
+    }
+
+    @Test
+    void deltaHoldsOnlyTheChangedAndRemovedSprites() {
+        ProjectState state = stateWithSprites(100);
+        ProjectSnapshot from = state.snapshot();
+        state.getSprites().get("s1").setX(5);
+        state.removeSprite(state.getSprites().get("s2"));
+        ProjectSnapshot to = state.publish();
+
+        JSONObject delta = StateDelta.between(from, to);
+
+        assertEquals(Set.of("s1"), delta.getJSONObject("s").keySet());
+        assertEquals(5, delta.getJSONObject("s").getJSONObject("s1").getInt("x"));
+        assertEquals("s2", delta.getJSONArray("sd").getString(0));
+    }
+}
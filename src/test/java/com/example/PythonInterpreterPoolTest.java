@@ -0,0 +1,60 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PythonInterpreterPoolTest {
+
+    @Test
+    void interpretersBorrowedTogetherPrintToTheirOwnWriters() throws Exception {
+        PythonInterpreterPool pool = new PythonInterpreterPool(new PythonInterpreterPool.Config(0, 2, 5000, 100));
+        StringWriter firstOut = new StringWriter();
+        StringWriter secondOut = new StringWriter();
+        PythonInterpreterPool.PooledInterpreter first = pool.borrow(firstOut, new StringWriter());
+        PythonInterpreterPool.PooledInterpreter second = pool.borrow(secondOut, new StringWriter()); // Rebinds its own sys.stdout only
+
+        first.get().exec("import sys\nprint('first')\nsys.stdout.write('via sys\\n')");
+        second.get().exec("print('second')");
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals("first\nvia sys\n", firstOut.toString());
+        assertEquals("second\n", secondOut.toString());
+    }
+
+    @Test
+    void reusedInterpreterStartsWithAFreshNamespace() throws Exception {
+        PythonInterpreterPool pool = new PythonInterpreterPool(new PythonInterpreterPool.Config(0, 1, 5000, 100));
+        PythonInterpreterPool.PooledInterpreter first = pool.borrow(new StringWriter(), new StringWriter());
+        first.get().exec("leftover = 1");
+        pool.release(first);
+
+        StringWriter out = new StringWriter();
+        PythonInterpreterPool.PooledInterpreter second = pool.borrow(out, new StringWriter());
+        second.get().exec("print('leftover' in dir())\nprint(__name__)");
+        pool.release(second);
+
+        assertSame(first, second);
+        assertEquals("False\n__main__\n", out.toString());
+    }
+
+    @Test
+    void borrowTimesOutWhenEveryInterpreterIsOut() throws Exception {
+        PythonInterpreterPool pool = new PythonInterpreterPool(new PythonInterpreterPool.Config(0, 1, 50, 100));
+        PythonInterpreterPool.PooledInterpreter taken = pool.borrow(new StringWriter(), new StringWriter());
+
+        long started = System.nanoTime();
+        assertThrows(TimeoutException.class, () -> pool.borrow(new StringWriter(), new StringWriter()));
+        assertTrue(System.nanoTime() - started >= 50_000_000L);
+
+        pool.release(taken);
+        pool.release(pool.borrow(new StringWriter(), new StringWriter())); // Free again
+    }
+}
@@ -0,0 +1,107 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StaticFileHandlerTest {
+
+    @TempDir
+    Path webapp;
+
+    private HttpServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    void start() throws IOException {
+        Files.writeString(webapp.resolve("app.js"), "console.log('hello');\n".repeat(200)); // Compressible: has a gzip variant
+        Files.writeString(webapp.resolve("index.html"), "<html></html>");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new SimpleHttpServer.StaticFileHandler(webapp.toString()));
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    private HttpResponse<String> get(String path, String... headers) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path));
+        if (headers.length > 0) {
+            request.headers(headers);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void matchingIfNoneMatchGets304WithVary() throws Exception {
+        HttpResponse<String> first = get("/app.js");
+        assertEquals(200, first.statusCode());
+        String etag = first.headers().firstValue("ETag").orElseThrow();
+
+        HttpResponse<String> again = get("/app.js", "If-None-Match", etag);
+
+        assertEquals(304, again.statusCode());
+        assertEquals("", again.body());
+        assertEquals(etag, again.headers().firstValue("ETag").orElseThrow());
+        assertEquals("Accept-Encoding", again.headers().firstValue("Vary").orElseThrow());
+    }
+
+    @Test
+    void gzipAndIdentityHaveDifferentEtags() throws Exception {
+        HttpResponse<String> identity = get("/app.js");
+        HttpResponse<String> gzip = get("/app.js", "Accept-Encoding", "gzip");
+
+        assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElseThrow());
+        String gzipEtag = gzip.headers().firstValue("ETag").orElseThrow();
+        assertNotEquals(identity.headers().firstValue("ETag").orElseThrow(), gzipEtag);
+        // The identity ETag does not validate the gzip variant
+        assertEquals(200, get("/app.js", "Accept-Encoding", "gzip", "If-None-Match", identity.headers().firstValue("ETag").orElseThrow()).statusCode());
+        assertEquals(304, get("/app.js", "Accept-Encoding", "gzip", "If-None-Match", gzipEtag).statusCode());
+    }
+
+    @Test
+    void ifModifiedSinceTheLastModificationGets304WithVary() throws Exception {
+        HttpResponse<String> first = get("/app.js");
+        String lastModified = first.headers().firstValue("Last-Modified").orElseThrow();
+
+        HttpResponse<String> again = get("/app.js", "If-Modified-Since", lastModified);
+
+        assertEquals(304, again.statusCode());
+        assertEquals("Accept-Encoding", again.headers().firstValue("Vary").orElseThrow());
+    }
+
+    @Test
+    void ifModifiedSinceBeforeTheLastModificationGetsTheFile() throws Exception {
+        HttpResponse<String> response = get("/app.js", "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().startsWith("console.log"));
+    }
+
+    @Test
+    void ifNoneMatchWinsOverIfModifiedSince() throws Exception {
+        String lastModified = get("/app.js").headers().firstValue("Last-Modified").orElseThrow();
+
+        HttpResponse<String> response = get("/app.js", "If-None-Match", "\"something-else\"", "If-Modified-Since", lastModified);
+
+        assertEquals(200, response.statusCode());
+    }
+}
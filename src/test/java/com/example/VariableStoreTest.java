@@ -0,0 +1,149 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VariableStoreTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20_000;
+
+    // Starts every task at once and waits for all of them
+    private static void race(Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                task.run();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    void addAndGetLosesNoUpdatesUnderContention() throws InterruptedException {
+        VariableStore store = new VariableStore();
+        int slot = store.slotOf("counter");
+        race(() -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                store.addAndGet(slot, 1);
+            }
+        });
+        assertEquals((long) THREADS * ROUNDS, store.get(slot));
+    }
+
+    @Test
+    void addAndGetOnANumericStringStaysAtomic() throws InterruptedException {
+        VariableStore store = new VariableStore();
+        int slot = store.slotOf("counter");
+        store.set(slot, "10"); // Starts out as an object; the first add turns it into a number
+        race(() -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                store.addAndGet(slot, 1);
+            }
+        });
+        assertEquals(10L + (long) THREADS * ROUNDS, store.get(slot));
+    }
+
+    @Test
+    void compareAndSetIncrementsLoseNoUpdatesUnderContention() throws InterruptedException {
+        VariableStore store = new VariableStore();
+        int slot = store.slotOf("counter");
+        store.set(slot, 0L);
+        race(() -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                while (true) {
+                    Object current = store.get(slot);
+                    if (store.compareAndSet(slot, current, ((Number) current).longValue() + 1)) {
+                        break;
+                    }
+                }
+            }
+        });
+        assertEquals((long) THREADS * ROUNDS, store.get(slot));
+    }
+
+    @Test
+    void compareAndSetComparesNumbersByValueAndNullAsUnset() {
+        VariableStore store = new VariableStore();
+        int slot = store.slotOf("x");
+        assertTrue(store.compareAndSet(slot, null, 3L));
+        assertFalse(store.compareAndSet(slot, 4L, 5L));
+        assertTrue(store.compareAndSet(slot, 3.0, "three"));
+        assertTrue(store.compareAndSet(slot, "three", 1.5));
+        assertEquals(1.5, store.get(slot));
+    }
+
+    @Test
+    void copyOnWriteStoresAreIsolatedFromTheOriginalAndEachOther() {
+        VariableStore original = new VariableStore();
+        int x = original.slotOf("x");
+        int name = original.slotOf("name");
+        original.set(x, 1L);
+        original.set(name, "cat");
+
+        VariableStore first = original.copyOnWrite();
+        VariableStore second = original.copyOnWrite();
+        assertEquals(1L, first.get(x));
+        assertEquals("cat", second.get(name));
+
+        first.addAndGet(x, 10);
+        second.set(name, "dog");
+        original.set(x, 100L);
+
+        assertEquals(11L, first.get(x));
+        assertEquals("cat", first.get(name));
+        assertEquals(1L, second.get(x));
+        assertEquals("dog", second.get(name));
+        assertEquals(100L, original.get(x));
+        assertEquals("cat", original.get(name));
+    }
+
+    @Test
+    void removingAnInheritedValueHidesItOnlyInTheCopy() {
+        VariableStore original = new VariableStore();
+        int x = original.slotOf("x");
+        original.set(x, 1L);
+        VariableStore copy = original.copyOnWrite();
+
+        copy.remove(x);
+
+        assertFalse(copy.contains(x));
+        assertNull(copy.get(x));
+        assertEquals(1L, original.get(x));
+    }
+
+    @Test
+    void copyMadeFromACopySeesItsWrites() {
+        VariableStore original = new VariableStore();
+        int x = original.slotOf("x");
+        original.set(x, 1L);
+        VariableStore copy = original.copyOnWrite();
+        copy.set(x, 2L);
+
+        VariableStore copyOfCopy = copy.copyOnWrite();
+        copy.set(x, 3L);
+
+        assertEquals(2L, copyOfCopy.get(x));
+        assertEquals(1L, original.get(x));
+    }
+}
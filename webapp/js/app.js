@@ -607,7 +607,7 @@ document.addEventListener('DOMContentLoaded', () => {
                         targetVarArray = activeSprite.variables;
                     } else {
                         console.warn("Optimistic update: Target sprite for local variable not active or found.");
-                        continue; // Skip this block's optimistic update
+                        return; // Skip this block's optimistic update
                     }
 
                     if (targetVarArray) {
@@ -635,7 +635,7 @@ document.addEventListener('DOMContentLoaded', () => {
                         targetVarArray_Change = activeSprite.variables;
                     } else {
                         console.warn("Optimistic update: Target sprite for CHANGE_VARIABLE local var not active/found.");
-                        continue;
+                        return; // Skip this block's optimistic update
                     }
 
                     if (targetVarArray_Change) {
@@ -666,7 +666,7 @@ document.addEventListener('DOMContentLoaded', () => {
                         targetVarArray_Change = activeSprite.variables;
                     } else {
                         console.warn("Optimistic update: Target sprite for CHANGE_VARIABLE local var not active/found.");
-                        continue;
+                        return; // Skip this block's optimistic update
                     }
 
                     if (targetVarArray_Change) {
@@ -1305,7 +1305,79 @@ document.addEventListener('DOMContentLoaded', () => {
         }
     }
 
+    // --- Server State Sync ---
+    // The server pushes what changed in its copy of the project (see StateDelta.java for the format).
+    // Variables are matched by name, sprites by id or else by name, since client and server ids differ.
+    function findSpriteForServer(serverId, serverName) {
+        return projectSprites.find(s => s.id === serverId)
+            || (serverName ? projectSprites.find(s => s.name === serverName) : undefined);
+    }
+
+    function applyVariableChanges(variables, changes) {
+        let changed = false;
+        Object.keys(changes || {}).forEach(name => {
+            const variable = variables.find(v => v.name === name);
+            if (variable && variable.value !== changes[name]) {
+                variable.value = changes[name];
+                changed = true;
+            }
+        });
+        return changed;
+    }
+
+    const serverSpriteNames = {}; // Server sprite id -> name, as deltas only carry a name when it changes
+    const serverCloneIds = new Set(); // Server-side clones share their parent's name, so must not be matched by it
+
+    function applyStateDelta(delta) {
+        let variablesChanged = applyVariableChanges(projectGlobalVariables, delta.gs);
+        let spritesMoved = false;
+        if (delta.full) {
+            serverCloneIds.clear();
+        }
+        (delta.sd || []).forEach(serverId => serverCloneIds.delete(serverId));
+        Object.keys(delta.s || {}).forEach(serverId => {
+            const changes = delta.s[serverId];
+            if (changes.n !== undefined) {
+                serverSpriteNames[serverId] = changes.n;
+            }
+            if (changes.o !== undefined) {
+                serverCloneIds.add(serverId);
+            }
+            if (serverCloneIds.has(serverId)) return; // Clones are not drawn on the client stage
+            const sprite = findSpriteForServer(serverId, serverSpriteNames[serverId]);
+            if (!sprite) return;
+            if (typeof changes.x === 'number' && sprite.x !== changes.x) { sprite.x = changes.x; spritesMoved = true; }
+            if (typeof changes.y === 'number' && sprite.y !== changes.y) { sprite.y = changes.y; spritesMoved = true; }
+            if (sprite.variables && applyVariableChanges(sprite.variables, changes.vs)) {
+                variablesChanged = true;
+            }
+        });
+        if (spritesMoved) {
+            renderStage();
+        }
+        if (variablesChanged) {
+            renderStageMonitors();
+        }
+    }
+
+    function connectStateStream() {
+        if (typeof EventSource === 'undefined') {
+            console.warn("EventSource not supported; stage monitors will only show local changes.");
+            return;
+        }
+        // EventSource reconnects by itself and resumes from the last event id it received
+        const stateStream = new EventSource('/api/state/stream');
+        stateStream.addEventListener('delta', event => {
+            try {
+                applyStateDelta(JSON.parse(event.data));
+            } catch (e) {
+                console.error("Could not apply server state delta:", e);
+            }
+        });
+    }
+
     renderVariablePalette(); // Initial render after default sprite and its vars are set up.
     renderStageMonitors(); // Initial render of stage monitors
+    connectStateStream(); // Keep monitors in step with the server's values
     console.log("JavaScript app.js loaded and initialized. Default sprite created and stage rendered.");
 });